@@ -3,6 +3,7 @@ package com.bsren.cache;
 import com.bsren.cache.longadder.LongAddable;
 import com.bsren.cache.longadder.LongAddables;
 
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -20,6 +21,13 @@ public abstract class AbstractCache<K,V> implements Cache<K,V> {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public void cleanUp() {}
 
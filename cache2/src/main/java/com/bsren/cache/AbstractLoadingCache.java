@@ -1,5 +1,9 @@
 package com.bsren.cache;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 public abstract class AbstractLoadingCache<K,V> extends AbstractCache<K,V>
@@ -13,6 +17,17 @@ public abstract class AbstractLoadingCache<K,V> extends AbstractCache<K,V>
         return null;
     }
 
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws Exception {
+        Map<K, V> result = Maps.newLinkedHashMap();
+        for (K key : keys) {
+            if (!result.containsKey(key)) {
+                result.put(key, get(key));
+            }
+        }
+        return ImmutableMap.copyOf(result);
+    }
+
     @Override
     public void refresh(K key) {
         throw new UnsupportedOperationException();
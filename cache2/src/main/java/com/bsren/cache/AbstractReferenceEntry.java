@@ -85,5 +85,25 @@ public abstract  class AbstractReferenceEntry<K, V> implements ReferenceEntry<K,
     public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
         throw new UnsupportedOperationException();
     }
+
+    @Override
+    public int getQueueType() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getVariableTime() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        throw new UnsupportedOperationException();
+    }
 }
 
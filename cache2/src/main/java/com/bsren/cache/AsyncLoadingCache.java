@@ -0,0 +1,45 @@
+package com.bsren.cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A loading cache whose values are handed out as {@link CompletableFuture}s, so a caller never
+ * blocks on a miss. Concurrent misses on the same key share a single load: the first one starts
+ * {@link CacheLoader#asyncLoad} and every later one receives a future of that same load.
+ *
+ * <p>A future returned for a failed load, or for a load that produced {@code null}, completes
+ * exceptionally and the entry is removed, so the next {@link #get} loads again.
+ */
+public interface AsyncLoadingCache<K, V> {
+
+    /**
+     * Returns a completed future of the value for {@code key}, or {@code null} if no value is
+     * present. A value that is still loading is not waited for.
+     */
+    CompletableFuture<V> getIfPresent(Object key);
+
+    /**
+     * Returns a future of the value for {@code key}, loading it if necessary. The future is
+     * already complete on a hit.
+     */
+    CompletableFuture<V> get(K key);
+
+    /**
+     * Returns a future of the values for {@code keys}, in iteration order, which completes once
+     * every key's value is available. It completes exceptionally if any key fails to load.
+     */
+    CompletableFuture<Map<K, V>> getAll(Iterable<? extends K> keys);
+
+    /**
+     * Associates the value of {@code valueFuture} with {@code key}. Until the future completes,
+     * gets of the key share it, while a previous value of the key stays visible like it does
+     * during a refresh. If the future fails or produces {@code null}, the entry is removed.
+     */
+    void put(K key, CompletableFuture<V> valueFuture);
+
+    /**
+     * Returns a view of this cache that blocks on loads, backed by the same storage.
+     */
+    LoadingCache<K, V> synchronous();
+}
@@ -1,6 +1,7 @@
 package com.bsren.cache;
 
 
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -19,6 +20,11 @@ public interface Cache<K,V> {
 
     void put(K key,V value);
 
+    /**
+     * Copies all of the mappings of {@code m} into the cache, locking each segment once.
+     */
+    void putAll(Map<? extends K, ? extends V> m);
+
     void invalidate(Object key);
 
     long size();
@@ -27,5 +33,25 @@ public interface Cache<K,V> {
 
     void cleanUp();
 
+    /**
+     * Shrinks the hash tables backing this cache to fit the entries it currently holds, never
+     * below the initial capacity. Tables also shrink on their own during maintenance once they are
+     * mostly empty; this method does it right away, for example after a large invalidation.
+     *
+     * <p>The default implementation does nothing.
+     */
+    default void trimToSize() {}
+
+    /**
+     * Returns a view of the entries stored in this cache as a thread-safe map. Modifications made
+     * to the map directly affect the cache.
+     *
+     * <p>{@code compute}, {@code computeIfAbsent}, {@code computeIfPresent} and {@code merge} each
+     * run atomically under a single segment lock, so read-modify-write updates need neither a
+     * retry loop nor a second lookup. The function must be short and must not modify this cache.
+     * Iterators are weakly consistent: they never throw
+     * {@link java.util.ConcurrentModificationException}, and may or may not reflect changes made
+     * after they were created.
+     */
     ConcurrentMap<K, V> asMap();
 }
@@ -1,19 +1,30 @@
 package com.bsren.cache;
 
+import com.bsren.cache.expiry.Expiry;
 import com.bsren.cache.listeners.RemovalListener;
 import com.bsren.cache.listeners.RemovalNotification;
+import com.bsren.cache.offheap.Serializer;
+import com.bsren.cache.offheap.SlabAllocator;
 import com.bsren.cache.weigher.Weigher;
 import com.google.common.base.*;
 import com.google.errorprone.annotations.CheckReturnValue;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.*;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
 public class CacheBuilder<K,V> {
 
     private static final int DEFAULT_INITIAL_CAPACITY = 16;
 
+    /**
+     * 按CPU数决定并发度时的标记，build时才读取CPU数
+     */
+    private static final int AUTOMATIC_CONCURRENCY_LEVEL = 0;
+
     private static final int DEFAULT_EXPIRATION_NANOS = 0;
 
     private static final int DEFAULT_REFRESH_NANOS = 0;
@@ -64,11 +75,24 @@ public class CacheBuilder<K,V> {
         }
     }
     
+    /**
+     * 堆外的value没有设置weigher时的占位，权重是value实际占用的堆外字节数，由Strength.OFF_HEAP算出
+     */
+    enum ValueBytesWeigher implements Weigher<Object, Object> {
+        INSTANCE;
+
+        @Override
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    }
+
     Weigher<? super K, ? super V> weigher;
     long maximumWeight = UNSET_INT;
     public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> weigher(
             Weigher<? super K1, ? super V1> weigher) {
         checkState(this.weigher == null);
+        checkState(this.maximumSize == UNSET_INT, "weigher can not be combined with maximum size");
         // safely limiting the kinds of caches this can produce
         @SuppressWarnings("unchecked")
         CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
@@ -76,16 +100,101 @@ public class CacheBuilder<K,V> {
         return me;
     }
     
+    public CacheBuilder<K, V> maximumSize(long maximumSize) {
+        checkState(
+                this.maximumSize == UNSET_INT, "maximum size was already set to %s", this.maximumSize);
+        checkState(
+                this.maximumWeight == UNSET_INT,
+                "maximum weight was already set to %s",
+                this.maximumWeight);
+        checkState(this.weigher == null, "maximum size can not be combined with weigher");
+        checkArgument(maximumSize >= 0, "maximum size must not be negative");
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    public CacheBuilder<K, V> maximumWeight(long maximumWeight) {
+        checkState(
+                this.maximumWeight == UNSET_INT,
+                "maximum weight was already set to %s",
+                this.maximumWeight);
+        checkState(
+                this.maximumSize == UNSET_INT, "maximum size was already set to %s", this.maximumSize);
+        checkArgument(maximumWeight >= 0, "maximum weight must not be negative");
+        this.maximumWeight = maximumWeight;
+        return this;
+    }
+
     long getMaximumWeight() {
         if (expireAfterWriteNanos == 0 || expireAfterAccessNanos == 0) {
             return 0;
         }
-        return (weigher == null) ? maximumSize : maximumWeight;
+        return (weigher == null && !weighsValueBytes()) ? maximumSize : maximumWeight;
     }
 
+    // 两个weigher都不看参数的类型，setter的泛型保证了用户的weigher能处理K1和V1
+    @SuppressWarnings("unchecked")
     <K1 extends K, V1 extends V> Weigher<K1, V1> getWeigher() {
+        if (weighsValueBytes()) {
+            return (Weigher<K1, V1>) ValueBytesWeigher.INSTANCE;
+        }
         return (Weigher<K1, V1>) MoreObjects.firstNonNull(weigher, CacheBuilder.OneWeigher.INSTANCE);
     }
+
+    /**
+     * 堆外的value设置了maximumWeight但没有weigher时，maximumWeight是堆外内存的字节数
+     */
+    boolean weighsValueBytes() {
+        return serializer != null && weigher == null && maximumWeight != UNSET_INT;
+    }
+
+    EvictionPolicy evictionPolicy;
+
+    /**
+     * Specifies how a cache bounded by {@link #maximumSize} or {@link #maximumWeight} chooses the
+     * entries to evict. Defaults to {@link EvictionPolicy#LRU}.
+     *
+     * <p>{@link EvictionPolicy#W_TINY_LFU} keeps a frequency history of recently seen keys and
+     * usually gives a much better hit rate on skewed workloads, at the same maximum weight.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> evictionPolicy(EvictionPolicy evictionPolicy) {
+        checkState(
+                this.evictionPolicy == null,
+                "eviction policy was already set to %s",
+                this.evictionPolicy);
+        this.evictionPolicy = checkNotNull(evictionPolicy);
+        return this;
+    }
+
+    EvictionPolicy getEvictionPolicy() {
+        return MoreObjects.firstNonNull(evictionPolicy, EvictionPolicy.LRU);
+    }
+
+    TableLayout tableLayout;
+
+    /**
+     * Specifies how each segment lays out its hash table. Defaults to {@link TableLayout#CHAINED}.
+     *
+     * <p>{@link TableLayout#OPEN_ADDRESSING} suits caches holding many small entries that are read
+     * far more often than they are written.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     * @throws IllegalStateException if a table layout was already set
+     */
+    public CacheBuilder<K, V> tableLayout(TableLayout tableLayout) {
+        checkState(
+                this.tableLayout == null,
+                "table layout was already set to %s",
+                this.tableLayout);
+        this.tableLayout = checkNotNull(tableLayout);
+        return this;
+    }
+
+    TableLayout getTableLayout() {
+        return MoreObjects.firstNonNull(tableLayout, TableLayout.CHAINED);
+    }
     
     static final Supplier<AbstractCache.StatsCounter> CACHE_STATS_COUNTER =
             new Supplier<AbstractCache.StatsCounter>() {
@@ -105,6 +214,7 @@ public class CacheBuilder<K,V> {
             };
 
     int initialCapacity = UNSET_INT;
+    int concurrencyLevel = UNSET_INT;
     long maximumSize = UNSET_INT;
 
     Strength keyStrength;
@@ -197,6 +307,57 @@ public class CacheBuilder<K,V> {
         return (initialCapacity == UNSET_INT) ? DEFAULT_INITIAL_CAPACITY : initialCapacity;
     }
 
+    /**
+     * Guides the allowed concurrency among update operations. The cache is split into about
+     * {@code concurrencyLevel} segments, rounded up to a power of two, each guarded by its own lock,
+     * so up to that many threads can write without contending. This is independent of
+     * {@link #initialCapacity}, which only sizes the tables.
+     *
+     * <p>When size-based eviction is used, the number of segments is further limited so that each
+     * segment can hold a meaningful share of the maximum size. Without a concurrency level, the
+     * number of segments grows with the initial capacity, and a small cache has a single lock.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     * @throws IllegalArgumentException if {@code concurrencyLevel} is nonpositive
+     * @throws IllegalStateException if a concurrency level was already set
+     */
+    public CacheBuilder<K, V> concurrencyLevel(int concurrencyLevel) {
+        checkState(
+                this.concurrencyLevel == UNSET_INT,
+                "concurrency level was already set to %s",
+                this.concurrencyLevel);
+        checkArgument(concurrencyLevel > 0);
+        this.concurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    /**
+     * Sets the concurrency level from the number of available processors, as four segments per
+     * processor, so a cache built on a larger machine gets more lock stripes.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     * @throws IllegalStateException if a concurrency level was already set
+     * @see #concurrencyLevel(int)
+     */
+    public CacheBuilder<K, V> automaticConcurrencyLevel() {
+        checkState(
+                this.concurrencyLevel == UNSET_INT,
+                "concurrency level was already set to %s",
+                this.concurrencyLevel);
+        this.concurrencyLevel = AUTOMATIC_CONCURRENCY_LEVEL;
+        return this;
+    }
+
+    /**
+     * 没有设置时返回UNSET_INT，由initialCapacity决定segment个数
+     */
+    int getConcurrencyLevel() {
+        if (concurrencyLevel == AUTOMATIC_CONCURRENCY_LEVEL) {
+            return 4 * Runtime.getRuntime().availableProcessors();
+        }
+        return concurrencyLevel;
+    }
+
     public CacheBuilder<K, V> weakKeys() {
         return setKeyStrength(Strength.WEAK);
     }
@@ -231,6 +392,53 @@ public class CacheBuilder<K,V> {
         return valueStrength==null?Strength.STRONG:valueStrength;
     }
 
+    Serializer<?> serializer;
+
+    /**
+     * Specifies that values should be serialized with {@code serializer} and kept off heap, in
+     * direct memory reserved in slabs by each segment, so that a large cache adds little to the heap
+     * the garbage collector has to trace. Keys and entries stay on heap. Every read deserializes the
+     * value again, so values are compared with {@code equals}, and removal listeners receive
+     * deserialized copies. The memory held by a value is reused as soon as it is removed, replaced,
+     * evicted or expired.
+     *
+     * <p>The cache must be bounded by {@link #maximumWeight} without a {@link #weigher}, otherwise
+     * building it throws {@link IllegalStateException}. Each entry weighs the bytes its value
+     * occupies off heap, so the maximum weight bounds the off-heap memory of the cache, and a
+     * segment never reserves more than its share of it, rounded up to a whole slab. A value larger
+     * than {@link SlabAllocator#SLAB_SIZE}, or one written while the segment has no room left in
+     * its slabs or the JVM has no direct memory left, is kept on heap until it is replaced.
+     *
+     * <p>Direct memory is limited by the JVM; a cache bounded above the default limit needs
+     * {@code -XX:MaxDirectMemorySize} raised accordingly.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     * @throws IllegalStateException if the value strength was already set
+     */
+    public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> offHeapValues(Serializer<V1> serializer) {
+        checkNotNull(serializer);
+        setValueStrength(Strength.OFF_HEAP);
+        @SuppressWarnings("unchecked")
+        CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
+        me.serializer = serializer;
+        return me;
+    }
+
+    // offHeapValues只接受V1的serializer，build出的cache的value类型就是V1
+    @SuppressWarnings("unchecked")
+    <V1 extends V> Serializer<V1> getSerializer() {
+        return (Serializer<V1>) serializer;
+    }
+
+    /**
+     * Refreshes an entry on the first read after {@code duration} has passed since it was written.
+     * The read returns the current value right away and the refresh goes through
+     * {@link CacheLoader#reload} on the {@link #executor}, or on
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()} when none is set. Only one reload of
+     * a key runs at a time; if it fails, the current value stays in the cache.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
     public CacheBuilder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
         checkNotNull(unit);
         checkState(refreshNanos == UNSET_INT, "refresh was already set to %s ns", refreshNanos);
@@ -240,11 +448,40 @@ public class CacheBuilder<K,V> {
     }
 
 
+    double earlyRefreshBeta = UNSET_INT;
+
+    /**
+     * Refreshes entries probabilistically before they expire, so entries written together do not
+     * all expire at once and stampede the loader. Each read of an entry that expires (by
+     * {@link #expireAfterWrite} or {@link #expireAfter}) triggers a refresh with probability
+     * rising as the expiration nears: a read at time {@code now} refreshes when
+     * {@code now - beta * loadTime * ln(random()) >= expirationTime}. {@code loadTime} is a
+     * moving average of the segment's recent load times, so slower loads start earlier.
+     *
+     * <p>A {@code beta} of 1 is usually right; larger values refresh earlier. Refreshes go through
+     * {@link CacheLoader#reload} and run on the {@link #executor}, or on
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()} when none is set; the read that
+     * triggers one returns the current value without waiting for it.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> earlyRefresh(double beta) {
+        checkState(earlyRefreshBeta == UNSET_INT, "earlyRefresh was already set to %s", earlyRefreshBeta);
+        checkArgument(beta > 0, "beta must be positive: %s", beta);
+        this.earlyRefreshBeta = beta;
+        return this;
+    }
+
+    double getEarlyRefreshBeta() {
+        return (earlyRefreshBeta == UNSET_INT) ? 0 : earlyRefreshBeta;
+    }
+
     public CacheBuilder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
         checkState(
                 expireAfterWriteNanos == UNSET_INT,
                 "expireAfterWrite was already set to %s ns",
                 expireAfterWriteNanos);
+        checkState(expiry == null, "expireAfterWrite can not be combined with expireAfter(Expiry)");
         checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
         this.expireAfterWriteNanos = unit.toNanos(duration);
         return this;
@@ -255,11 +492,151 @@ public class CacheBuilder<K,V> {
     }
 
 
+    long staleWhileRevalidateNanos = UNSET_INT;
+
+    /**
+     * Keeps expired entries for {@code duration} after they expire. Within that period a
+     * {@link LoadingCache#get} returns the expired value immediately and starts one background
+     * refresh of it through {@link CacheLoader#reload}; if the refresh fails, the expired value
+     * keeps being served. The refresh runs on the {@link #executor}, or on
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()} when none is set, so the read never
+     * waits for it.
+     *
+     * <p>An {@link AsyncLoadingCache#get} within the period returns an already completed future
+     * of the expired value, and starts the refresh the same way.
+     *
+     * <p>Expired entries are not visible to {@link Cache#getIfPresent} and still count toward
+     * the cache's size until the period is over.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> staleWhileRevalidate(long duration, TimeUnit unit) {
+        checkState(
+                staleWhileRevalidateNanos == UNSET_INT,
+                "staleWhileRevalidate was already set to %s ns",
+                staleWhileRevalidateNanos);
+        checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+        this.staleWhileRevalidateNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    long getStaleWhileRevalidateNanos() {
+        return (staleWhileRevalidateNanos == UNSET_INT) ? 0 : staleWhileRevalidateNanos;
+    }
+
+    long staleIfErrorNanos = UNSET_INT;
+
+    /**
+     * Keeps expired entries for {@code duration} after they expire, as a fallback for failed
+     * loads. Within that period a {@link LoadingCache#get} reloads the value as usual, but returns
+     * the expired value instead of throwing if {@link CacheLoader#reload} fails. Concurrent
+     * readers of the key share the one reload. An {@link AsyncLoadingCache#get} loads the value
+     * with {@link CacheLoader#asyncLoad} instead, and its future completes with the expired value
+     * if that load fails.
+     *
+     * <p>When combined with {@link #staleWhileRevalidate}, the expired value is served without
+     * waiting during the first period, and only as a fallback after it.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> staleIfError(long duration, TimeUnit unit) {
+        checkState(
+                staleIfErrorNanos == UNSET_INT,
+                "staleIfError was already set to %s ns",
+                staleIfErrorNanos);
+        checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+        this.staleIfErrorNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    long getStaleIfErrorNanos() {
+        return (staleIfErrorNanos == UNSET_INT) ? 0 : staleIfErrorNanos;
+    }
+
+    long loadFailureBackoffNanos = UNSET_INT;
+
+    long maximumLoadFailureBackoffNanos = UNSET_INT;
+
+    /**
+     * Caches failed loads, so a key whose load failed is not loaded again for a while. A load
+     * fails when {@link CacheLoader#load} throws or returns {@code null}. During the backoff,
+     * gets of the key fail with the same exception right away, without calling the loader;
+     * concurrent gets of a failing key all share the one failed load. The first failure backs
+     * off for {@code initialDuration}, and each consecutive failure of the same key doubles it,
+     * up to {@code maximumDuration}. A successful load, a put or an invalidation of the key
+     * forgets its failures.
+     *
+     * <p>Failed loads take no space in the size or weight of the cache. A cache bounded by
+     * {@link #maximumSize} or {@link #maximumWeight} remembers at most that many failures; when
+     * more keys fail, the failures due for a retry soonest are forgotten first.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> cacheLoadFailures(long initialDuration, long maximumDuration, TimeUnit unit) {
+        checkState(
+                loadFailureBackoffNanos == UNSET_INT,
+                "cacheLoadFailures was already set to %s ns",
+                loadFailureBackoffNanos);
+        checkArgument(initialDuration > 0, "duration must be positive: %s %s", initialDuration, unit);
+        checkArgument(maximumDuration >= initialDuration,
+                "maximum duration %s is less than initial duration %s", maximumDuration, initialDuration);
+        this.loadFailureBackoffNanos = unit.toNanos(initialDuration);
+        this.maximumLoadFailureBackoffNanos = unit.toNanos(maximumDuration);
+        return this;
+    }
+
+    long getLoadFailureBackoffNanos() {
+        return (loadFailureBackoffNanos == UNSET_INT) ? 0 : loadFailureBackoffNanos;
+    }
+
+    long getMaximumLoadFailureBackoffNanos() {
+        return (maximumLoadFailureBackoffNanos == UNSET_INT) ? 0 : maximumLoadFailureBackoffNanos;
+    }
+
+    long batchWindowNanos = UNSET_INT;
+
+    int maximumBatchSize = UNSET_INT;
+
+    /**
+     * Coalesces the misses of a {@link LoadingCache} into {@link CacheLoader#loadAll} calls. A
+     * miss opens a batch, and misses of other keys arriving within {@code window} join it; the
+     * batch is loaded in one {@code loadAll} call when the window closes, or as soon as it holds
+     * {@code maximumBatchSize} keys. Each waiting get then completes with its own key's value, or
+     * fails if {@code loadAll} throws or leaves its key out.
+     *
+     * <p>A synchronous miss that opens a batch waits for the window on the calling thread; an
+     * asynchronous one waits on the {@link #executor}. The loader should implement
+     * {@code loadAll}; otherwise the keys of a batch are loaded one at a time.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> batchLoads(long window, TimeUnit unit, int maximumBatchSize) {
+        checkState(batchWindowNanos == UNSET_INT, "batchLoads was already set to %s ns", batchWindowNanos);
+        checkArgument(window >= 0, "window cannot be negative: %s %s", window, unit);
+        checkArgument(maximumBatchSize > 0, "maximum batch size must be positive: %s", maximumBatchSize);
+        this.batchWindowNanos = unit.toNanos(window);
+        this.maximumBatchSize = maximumBatchSize;
+        return this;
+    }
+
+    boolean batchesLoads() {
+        return batchWindowNanos != UNSET_INT;
+    }
+
+    long getBatchWindowNanos() {
+        return batchWindowNanos;
+    }
+
+    int getMaximumBatchSize() {
+        return maximumBatchSize;
+    }
+
     public CacheBuilder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
         checkState(
                 expireAfterAccessNanos == UNSET_INT,
                 "expireAfterAccess was already set to %s ns",
                 expireAfterAccessNanos);
+        checkState(expiry == null, "expireAfterAccess can not be combined with expireAfter(Expiry)");
         checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
         this.expireAfterAccessNanos = unit.toNanos(duration);
         return this;
@@ -271,6 +648,95 @@ public class CacheBuilder<K,V> {
                 : expireAfterAccessNanos;
     }
 
+    Expiry<? super K, ? super V> expiry;
+
+    /**
+     * Specifies that each entry should be automatically removed from the cache once the duration
+     * computed by {@code expiry} has elapsed since it was created, updated or read. Use this when
+     * the time to live varies per entry; a single fixed duration is better served by
+     * {@link #expireAfterWrite} or {@link #expireAfterAccess}, which this can not be combined with.
+     *
+     * <p>Expired entries are kept in a hierarchical timing wheel, so they are removed in amortized
+     * constant time each during routine maintenance.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public <K1 extends K, V1 extends V> CacheBuilder<K1, V1> expireAfter(
+            Expiry<? super K1, ? super V1> expiry) {
+        checkState(this.expiry == null, "expiry was already set to %s", this.expiry);
+        checkState(
+                expireAfterWriteNanos == UNSET_INT,
+                "expireAfter(Expiry) can not be combined with expireAfterWrite");
+        checkState(
+                expireAfterAccessNanos == UNSET_INT,
+                "expireAfter(Expiry) can not be combined with expireAfterAccess");
+        // safely limiting the kinds of caches this can produce
+        @SuppressWarnings("unchecked")
+        CacheBuilder<K1, V1> me = (CacheBuilder<K1, V1>) this;
+        me.expiry = checkNotNull(expiry);
+        return me;
+    }
+
+    @SuppressWarnings("unchecked")
+    <K1 extends K, V1 extends V> Expiry<K1, V1> getExpiry() {
+        return (Expiry<K1, V1>) expiry;
+    }
+
+    Executor executor;
+
+    /**
+     * Specifies the executor that runs the cache's maintenance: replaying buffered reads and
+     * writes, draining reference queues, expiring and evicting entries, and delivering removal
+     * notifications. By default the maintenance runs on the threads that read and write the cache,
+     * amortized over their operations.
+     *
+     * <p>With an executor, reads and writes only schedule the maintenance, and each segment runs at
+     * most one maintenance task at a time. Removal listeners are then called on the executor.
+     *
+     * <p>The executor also runs the reloads triggered by {@link #refreshAfterWrite},
+     * {@link #earlyRefresh} and {@link #staleWhileRevalidate}, and those of
+     * {@link LoadingCache#refresh}, which otherwise reloads on the calling thread.
+     *
+     * <p>When {@link CacheLoader#loadAll} is not implemented, a bulk get falls back to loading the
+     * missing keys one by one. With an executor those loads run on it concurrently, so the bulk
+     * get takes about as long as its slowest load. A key that is already loading is waited on
+     * rather than loaded again.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> executor(Executor executor) {
+        checkState(this.executor == null, "executor was already set to %s", this.executor);
+        this.executor = checkNotNull(executor);
+        return this;
+    }
+
+    Executor getExecutor() {
+        return MoreObjects.firstNonNull(executor, directExecutor());
+    }
+
+    ScheduledExecutorService scheduler;
+
+    /**
+     * Specifies a scheduler used to remove expired entries promptly, even from segments that no
+     * longer see any reads or writes. The cache keeps a single wakeup pending, at the earliest
+     * known expiration deadline across its segments, and runs the expiration then. Without a
+     * scheduler, expired entries are only removed when traffic reaches their segment.
+     *
+     * <p>The scheduled task only schedules the maintenance, which then runs on the
+     * {@link #executor}, or on the scheduler's thread by default.
+     *
+     * @return this {@code CacheBuilder} instance (for chaining)
+     */
+    public CacheBuilder<K, V> scheduler(ScheduledExecutorService scheduler) {
+        checkState(this.scheduler == null, "scheduler was already set to %s", this.scheduler);
+        this.scheduler = checkNotNull(scheduler);
+        return this;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
 
 
     long getRefreshNanos() {
@@ -321,10 +787,80 @@ public class CacheBuilder<K,V> {
         return new LocalLoadingCache(this, loader);
     }
 
+    /**
+     * Builds a cache whose values are returned as futures, so callers never block on a load.
+     * Values are loaded with {@link CacheLoader#asyncLoad}, which by default runs
+     * {@link CacheLoader#load} on the {@link #executor}; with the default direct executor the load
+     * runs on the thread that missed, and only concurrent callers of the same key avoid blocking.
+     *
+     * @param loader the cache loader used to obtain new values
+     * @return a cache having the requested features
+     */
+    public <K1 extends K, V1 extends V> AsyncLoadingCache<K1, V1> buildAsync(
+            CacheLoader<? super K1, V1> loader) {
+        return new LocalAsyncLoadingCache<>(this, loader);
+    }
+
     public <K1 extends K, V1 extends V> Cache<K1, V1> build() {
         return new LocalManualCache<>(this);
     }
 
+    /**
+     * Builds a cache keyed by primitive {@code long}s, which stores its keys unboxed and serves
+     * hits without allocating. See {@link LongKeyCache}.
+     *
+     * @throws IllegalStateException if weak keys or a key equivalence were requested
+     */
+    @SuppressWarnings("unchecked")
+    public <V1 extends V> LongKeyCache<V1> buildLongKeys() {
+        checkPrimitiveKeys();
+        return new LocalLongKeyCache<>((CacheBuilder<Long, V1>) this);
+    }
+
+    /**
+     * Builds a loading cache keyed by primitive {@code long}s. See {@link LongKeyLoadingCache}.
+     *
+     * @param loader the cache loader used to obtain new values
+     * @throws IllegalStateException if weak keys or a key equivalence were requested
+     */
+    @SuppressWarnings("unchecked")
+    public <V1 extends V> LongKeyLoadingCache<V1> buildLongKeys(CacheLoader<? super Long, V1> loader) {
+        checkPrimitiveKeys();
+        return new LocalLongKeyLoadingCache<>((CacheBuilder<Long, V1>) this, loader);
+    }
+
+    /**
+     * Builds a cache keyed by primitive {@code int}s, which stores its keys unboxed and serves
+     * hits without allocating. See {@link IntKeyCache}.
+     *
+     * @throws IllegalStateException if weak keys or a key equivalence were requested
+     */
+    @SuppressWarnings("unchecked")
+    public <V1 extends V> IntKeyCache<V1> buildIntKeys() {
+        checkPrimitiveKeys();
+        return new LocalIntKeyCache<>((CacheBuilder<Integer, V1>) this);
+    }
+
+    /**
+     * Builds a loading cache keyed by primitive {@code int}s. See {@link IntKeyLoadingCache}.
+     *
+     * @param loader the cache loader used to obtain new values
+     * @throws IllegalStateException if weak keys or a key equivalence were requested
+     */
+    @SuppressWarnings("unchecked")
+    public <V1 extends V> IntKeyLoadingCache<V1> buildIntKeys(CacheLoader<? super Integer, V1> loader) {
+        checkPrimitiveKeys();
+        return new LocalIntKeyLoadingCache<>((CacheBuilder<Integer, V1>) this, loader);
+    }
+
+    /**
+     * 原始类型的key存在entry中，只能是强引用，按值比较
+     */
+    private void checkPrimitiveKeys() {
+        checkState(getKeyStrength() == Strength.STRONG, "primitive keys cannot be %s", getKeyStrength());
+        checkState(keyEquivalence == null, "primitive keys cannot use a custom key equivalence");
+    }
+
     /**
      * Returns a string representation for this CacheBuilder instance. The exact form of the returned
      * string is not specified.
@@ -335,16 +871,49 @@ public class CacheBuilder<K,V> {
         if (initialCapacity != UNSET_INT) {
             s.add("initialCapacity", initialCapacity);
         }
+        if (concurrencyLevel == AUTOMATIC_CONCURRENCY_LEVEL) {
+            s.add("concurrencyLevel", "automatic");
+        } else if (concurrencyLevel != UNSET_INT) {
+            s.add("concurrencyLevel", concurrencyLevel);
+        }
 
         if (maximumSize != UNSET_INT) {
             s.add("maximumSize", maximumSize);
         }
+        if (maximumWeight != UNSET_INT) {
+            s.add("maximumWeight", maximumWeight);
+        }
+        if (evictionPolicy != null) {
+            s.add("evictionPolicy", evictionPolicy);
+        }
+        if (tableLayout != null) {
+            s.add("tableLayout", tableLayout);
+        }
         if (expireAfterWriteNanos != UNSET_INT) {
             s.add("expireAfterWrite", expireAfterWriteNanos + "ns");
         }
         if (expireAfterAccessNanos != UNSET_INT) {
             s.add("expireAfterAccess", expireAfterAccessNanos + "ns");
         }
+        if (expiry != null) {
+            s.addValue("expiry");
+        }
+        if (staleWhileRevalidateNanos != UNSET_INT) {
+            s.add("staleWhileRevalidate", staleWhileRevalidateNanos + "ns");
+        }
+        if (staleIfErrorNanos != UNSET_INT) {
+            s.add("staleIfError", staleIfErrorNanos + "ns");
+        }
+        if (earlyRefreshBeta != UNSET_INT) {
+            s.add("earlyRefreshBeta", earlyRefreshBeta);
+        }
+        if (loadFailureBackoffNanos != UNSET_INT) {
+            s.add("loadFailureBackoff", loadFailureBackoffNanos + "ns");
+        }
+        if (batchWindowNanos != UNSET_INT) {
+            s.add("batchWindow", batchWindowNanos + "ns");
+            s.add("maximumBatchSize", maximumBatchSize);
+        }
         if (keyStrength != null) {
             s.add("keyStrength", Ascii.toLowerCase(keyStrength.toString()));
         }
@@ -22,6 +22,28 @@ public abstract class CacheLoader<K,V> {
         return Futures.immediateFuture(load(key));
     }
 
+    /**
+     * Computes the value for {@code key} without blocking the caller, for an
+     * {@link AsyncLoadingCache}. The default runs {@link #load} as a task on {@code executor};
+     * loaders backed by a non-blocking client should override this to return the client's future
+     * directly, so no thread is held while the value is being fetched.
+     *
+     * @param executor the executor the cache was built with
+     */
+    public ListenableFuture<V> asyncLoad(final K key, Executor executor) throws Exception {
+        checkNotNull(key);
+        ListenableFutureTask<V> task =
+                ListenableFutureTask.create(
+                        new Callable<V>() {
+                            @Override
+                            public V call() throws Exception {
+                                return load(key);
+                            }
+                        });
+        executor.execute(task);
+        return task;
+    }
+
     public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
         // This will be caught by getAll(), causing it to fall back to multiple calls to
         // LoadingCache.get
@@ -52,6 +74,11 @@ public abstract class CacheLoader<K,V> {
                 return task;
             }
 
+            @Override
+            public ListenableFuture<V> asyncLoad(K key, Executor executor) throws Exception {
+                return loader.asyncLoad(key, executor);
+            }
+
             @Override
             public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
                 return loader.loadAll(keys);
@@ -63,6 +63,165 @@ public enum EntryFactory {
             return newEntry;
         }
     },
+    STRONG_INLINE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new StrongInlineEntry<>(key, hash, next);
+        }
+    },
+    STRONG_ACCESS_INLINE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new StrongAccessInlineEntry<>(key, hash, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyAccessEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    STRONG_WRITE_INLINE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new StrongWriteInlineEntry<>(key, hash, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyWriteEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    STRONG_ACCESS_WRITE_INLINE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new StrongAccessWriteInlineEntry<>(key, hash, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyAccessEntry(original, newEntry);
+            copyWriteEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    LONG {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new LongEntry<>((Long) key, next);
+        }
+    },
+    LONG_ACCESS {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new LongAccessEntry<>((Long) key, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyAccessEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    LONG_WRITE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new LongWriteEntry<>((Long) key, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyWriteEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    LONG_ACCESS_WRITE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new LongAccessWriteEntry<>((Long) key, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyAccessEntry(original, newEntry);
+            copyWriteEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    INT {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new IntEntry<>((Integer) key, hash, next);
+        }
+    },
+    INT_ACCESS {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new IntAccessEntry<>((Integer) key, hash, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyAccessEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    INT_WRITE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new IntWriteEntry<>((Integer) key, hash, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyWriteEntry(original, newEntry);
+            return newEntry;
+        }
+    },
+    INT_ACCESS_WRITE {
+        @Override
+        <K, V> ReferenceEntry<K, V> newEntry(
+                LocalCache.Segment<K, V> segment, K key, int hash, @Nullable ReferenceEntry<K, V> next) {
+            return new IntAccessWriteEntry<>((Integer) key, hash, next);
+        }
+
+        @Override
+        <K, V> ReferenceEntry<K, V> copyEntry(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
+            ReferenceEntry<K, V> newEntry = super.copyEntry(segment, original, newNext);
+            copyAccessEntry(original, newEntry);
+            copyWriteEntry(original, newEntry);
+            return newEntry;
+        }
+    },
     WEAK {
         @Override
         <K, V> ReferenceEntry<K, V> newEntry(
@@ -120,8 +279,12 @@ public enum EntryFactory {
     static final int ACCESS_MASK = 1;
     static final int WRITE_MASK = 2;
     static final int WEAK_MASK = 4;
+    static final int INLINE_MASK = 8;
 
-    /** Look-up table for factories. */
+    /**
+     * Look-up table for factories. Weak entries already extend {@code WeakReference} for their key,
+     * whose {@code get()} clashes with {@code ValueReference.get()}, so they never inline values.
+     */
     static final EntryFactory[] factories = {
             STRONG,
             STRONG_ACCESS,
@@ -131,12 +294,35 @@ public enum EntryFactory {
             WEAK_ACCESS,
             WEAK_WRITE,
             WEAK_ACCESS_WRITE,
+            STRONG_INLINE,
+            STRONG_ACCESS_INLINE,
+            STRONG_WRITE_INLINE,
+            STRONG_ACCESS_WRITE_INLINE,
+            WEAK,
+            WEAK_ACCESS,
+            WEAK_WRITE,
+            WEAK_ACCESS_WRITE,
     };
 
+    /** Look-up table for factories of entries keyed by a primitive. */
+    static final EntryFactory[] longFactories = {LONG, LONG_ACCESS, LONG_WRITE, LONG_ACCESS_WRITE};
+
+    static final EntryFactory[] intFactories = {INT, INT_ACCESS, INT_WRITE, INT_ACCESS_WRITE};
+
+    /**
+     * keyType为long.class或int.class时返回key存在entry里的factory
+     */
+    static EntryFactory getPrimitiveFactory(
+            Class<?> keyType, boolean usesAccessQueue, boolean usesWriteQueue) {
+        int flags = (usesAccessQueue ? ACCESS_MASK : 0) | (usesWriteQueue ? WRITE_MASK : 0);
+        return (keyType == long.class) ? longFactories[flags] : intFactories[flags];
+    }
+
     static EntryFactory getFactory(
-            Strength keyStrength, boolean usesAccessQueue, boolean usesWriteQueue) {
+            Strength keyStrength, boolean inlinesValues, boolean usesAccessQueue, boolean usesWriteQueue) {
         int flags =
                 ((keyStrength == Strength.WEAK) ? WEAK_MASK : 0)
+                        | (inlinesValues ? INLINE_MASK : 0)
                         | (usesAccessQueue ? ACCESS_MASK : 0)
                         | (usesWriteQueue ? WRITE_MASK : 0);
         return factories[flags];
@@ -170,6 +356,7 @@ public enum EntryFactory {
         // TODO(fry): when we link values instead of entries this method can go
         // away, as can connectAccessOrder, nullifyAccessOrder.
         newEntry.setAccessTime(original.getAccessTime());
+        newEntry.setQueueType(original.getQueueType());
 
         connectAccessOrder(original.getPreviousInAccessQueue(), newEntry);
         connectAccessOrder(newEntry, original.getNextInAccessQueue());
@@ -182,6 +369,7 @@ public enum EntryFactory {
         // TODO(fry): when we link values instead of entries this method can go
         // away, as can connectWriteOrder, nullifyWriteOrder.
         newEntry.setWriteTime(original.getWriteTime());
+        newEntry.setVariableTime(original.getVariableTime());
 
         connectWriteOrder(original.getPreviousInWriteQueue(), newEntry);
         connectWriteOrder(newEntry, original.getNextInWriteQueue());
@@ -0,0 +1,21 @@
+package com.bsren.cache;
+
+/**
+ * The policy used by a size-bounded segment to pick the entries it evicts once its total weight
+ * exceeds the segment's share of the maximum weight.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Evicts the least recently accessed entry. A single scan over cold keys can flush the whole
+     * working set.
+     */
+    LRU,
+
+    /**
+     * Window TinyLFU: new entries go into a small LRU admission window, and entries leaving the
+     * window are only admitted into the segmented (probation / protected) main space when they are
+     * accessed more frequently than the main space's eviction victim.
+     */
+    W_TINY_LFU
+}
@@ -0,0 +1,124 @@
+package com.bsren.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A Count-Min sketch of 4-bit counters used to estimate how often an entry has been used.
+ *
+ * <p>Each {@code long} in the table holds sixteen counters. An item selects one group of four
+ * counters per row by its low bits and a row per depth by a seeded hash, so an increment touches
+ * four counters and an estimate is the minimum of them. Counters saturate at 15.
+ *
+ * <p>To keep the history fresh, every counter is halved once the number of recorded increments
+ * reaches a sample period of ten times the table size. Popularity therefore decays and a key that
+ * was hot an hour ago does not keep a newly hot key out forever.
+ *
+ * <p>This class is not thread-safe; the owning segment only touches it while holding its lock.
+ */
+public final class FrequencySketch {
+
+    static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    static final long RESET_MASK = 0x7777777777777777L;
+
+    static final long ONE_MASK = 0x1111111111111111L;
+
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    long[] table;
+
+    int tableMask;
+
+    /**
+     * 两次衰减之间记录的次数
+     */
+    int sampleSize;
+
+    /**
+     * 上次衰减后记录的次数
+     */
+    int size;
+
+    public FrequencySketch(long maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * 按最多要统计的entry个数扩大table，原有的计数会丢失
+     * table只会变大，已经足够大时什么也不做
+     */
+    public void ensureCapacity(long maximumSize) {
+        checkArgument(maximumSize >= 0);
+        int capacity = (int) Math.min(Math.max(maximumSize, 1), MAXIMUM_CAPACITY);
+        if ((table != null) && (table.length >= capacity)) {
+            return;
+        }
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = (int) Math.min(10L * length, Integer.MAX_VALUE);
+        size = 0;
+    }
+
+    /**
+     * 估计hash对应的entry被使用的次数，最大为15
+     */
+    public int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 给hash对应的四个计数器各加一，已经饱和的计数器不再增加
+     */
+    public void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            added |= incrementAt(index, start + i);
+        }
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    /**
+     * 所有计数器减半
+     * 奇数的计数器减半时会丢掉一次记录，size按丢掉的次数修正
+     */
+    void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            count += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (count >>> 2)) >>> 1;
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+}
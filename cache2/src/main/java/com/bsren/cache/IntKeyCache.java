@@ -0,0 +1,28 @@
+package com.bsren.cache;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link Cache} keyed by primitive {@code int}s. Keys are stored unboxed in the entries, and a
+ * lookup through the {@code int} methods compares them without creating an {@link Integer}, so a
+ * hit allocates nothing. A miss or a write boxes the key once and takes the same path as the
+ * {@link Cache} methods, which remain available and see the same mappings.
+ *
+ * <p>Built with {@link CacheBuilder#buildIntKeys()}.
+ */
+public interface IntKeyCache<V> extends Cache<Integer, V> {
+
+    /**
+     * Returns the value associated with {@code key}, or {@code null} if there is none.
+     */
+    V getIfPresent(int key);
+
+    /**
+     * Returns the value associated with {@code key}, obtaining it from {@code loader} if needed.
+     */
+    V get(int key, Callable<V> loader) throws Exception;
+
+    void put(int key, V value);
+
+    void invalidate(int key);
+}
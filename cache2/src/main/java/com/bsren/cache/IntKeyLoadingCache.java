@@ -0,0 +1,17 @@
+package com.bsren.cache;
+
+/**
+ * A {@link LoadingCache} keyed by primitive {@code int}s; see {@link IntKeyCache}. Returning a
+ * value that is already cached allocates nothing; loading boxes the key for the
+ * {@link CacheLoader}.
+ *
+ * <p>Built with {@link CacheBuilder#buildIntKeys(CacheLoader)}.
+ */
+public interface IntKeyLoadingCache<V> extends IntKeyCache<V>, LoadingCache<Integer, V> {
+
+    V get(int key) throws Exception;
+
+    V getUnchecked(int key);
+
+    void refresh(int key);
+}
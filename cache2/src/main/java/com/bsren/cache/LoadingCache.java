@@ -1,6 +1,7 @@
 package com.bsren.cache;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
 
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -12,6 +13,13 @@ public interface LoadingCache<K,V> extends Cache<K,V>, Function<K,V> {
 
     V getUnchecked(K key);
 
+    /**
+     * Returns the values of {@code keys}, in iteration order, loading the missing ones. Keys are
+     * read in one pass per segment; missing keys are loaded with {@link CacheLoader#loadAll} when
+     * the loader implements it, and one by one otherwise.
+     */
+    ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws Exception;
+
     void refresh(K key);
 
     ConcurrentMap<K,V> asMap();
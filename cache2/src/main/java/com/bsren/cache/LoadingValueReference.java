@@ -1,5 +1,7 @@
 package com.bsren.cache;
+import com.bsren.cache.entry.InlineValueEntry;
 import com.bsren.cache.loading.Unset;
+import com.bsren.cache.reference.StrongValueReference;
 import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.Futures;
@@ -9,6 +11,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.lang.ref.ReferenceQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import static com.bsren.cache.loading.Unset.unset;
@@ -28,8 +31,17 @@ public class LoadingValueReference<K,V> implements ValueReference<K,V> {
         this(null);
     }
 
+    /**
+     * 内联的value会在entry上被新值覆盖，这里先取一份快照
+     */
     public LoadingValueReference(ValueReference<K,V> oldValue){
-        this.oldValue = (oldValue==null)? unset():oldValue;
+        if (oldValue == null) {
+            this.oldValue = unset();
+        } else if (oldValue instanceof InlineValueEntry) {
+            this.oldValue = new StrongValueReference<>(oldValue.get());
+        } else {
+            this.oldValue = oldValue;
+        }
     }
 
 
@@ -113,7 +125,7 @@ public class LoadingValueReference<K,V> implements ValueReference<K,V> {
                 }
             },directExecutor());
 
-        }catch (Exception t) {
+        }catch (Throwable t) {
             ListenableFuture<V> result = setException(t) ? futureValue : fullyFailedFuture(t);
             if (t instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -121,6 +133,37 @@ public class LoadingValueReference<K,V> implements ValueReference<K,V> {
             return result;
         }
     }
+    /**
+     * 异步加载，loader.asyncLoad返回的future完成时futureValue才完成，调用者不会被阻塞
+     * 返回的futureValue就是等待这次加载的所有调用者共享的那个future
+     */
+    public ListenableFuture<V> asyncLoadFuture(K key, CacheLoader<? super K, V> loader, Executor executor) {
+        try {
+            stopwatch.start();
+            ListenableFuture<V> newValue = loader.asyncLoad(key, executor);
+            futureValue.setFuture((newValue == null) ? Futures.<V>immediateFuture(null) : newValue);
+        } catch (Exception t) {
+            setException(t);
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return futureValue;
+    }
+
+    /**
+     * 由调用者给出的future作为加载的结果，AsyncLoadingCache.put使用
+     */
+    public ListenableFuture<V> loadFrom(ListenableFuture<V> newValue) {
+        stopwatch.start();
+        futureValue.setFuture(newValue);
+        return futureValue;
+    }
+
+    public ListenableFuture<V> getFuture() {
+        return futureValue;
+    }
+
     public boolean setException(Throwable t) {
         return futureValue.setException(t);
     }
@@ -0,0 +1,89 @@
+package com.bsren.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+public class LocalAsyncLoadingCache<K, V> implements AsyncLoadingCache<K, V> {
+
+    final LocalCache<K, V> localCache;
+
+    public LocalAsyncLoadingCache(
+            CacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> loader) {
+        this.localCache = new LocalCache<>(builder, checkNotNull(loader));
+    }
+
+    @Override
+    public CompletableFuture<V> getIfPresent(Object key) {
+        V value = localCache.getIfPresent(key);
+        return (value == null) ? null : CompletableFuture.completedFuture(value);
+    }
+
+    @Override
+    public CompletableFuture<V> get(K key) {
+        return toCompletableFuture(localCache.getAsync(key, localCache.defaultLoader));
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> getAll(Iterable<? extends K> keys) {
+        Map<K, CompletableFuture<V>> futures = new LinkedHashMap<>();
+        for (K key : keys) {
+            if (!futures.containsKey(key)) {
+                futures.put(key, get(key));
+            }
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    ImmutableMap.Builder<K, V> result = ImmutableMap.builder();
+                    for (Map.Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+                        result.put(entry.getKey(), entry.getValue().join());
+                    }
+                    return result.build();
+                });
+    }
+
+    @Override
+    public void put(K key, CompletableFuture<V> valueFuture) {
+        checkNotNull(valueFuture);
+        SettableFuture<V> future = SettableFuture.create();
+        valueFuture.whenComplete((value, t) -> {
+            if (t == null) {
+                future.set(value);
+            } else {
+                future.setException(t);
+            }
+        });
+        localCache.put(key, future);
+    }
+
+    @Override
+    public LoadingCache<K, V> synchronous() {
+        return new LocalLoadingCache<>(localCache);
+    }
+
+    /**
+     * 每次转换得到一个新的CompletableFuture，调用者取消或者完成它不会影响共享的那次加载
+     */
+    static <V> CompletableFuture<V> toCompletableFuture(ListenableFuture<V> future) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        future.addListener(() -> {
+            try {
+                result.complete(Futures.getDone(future));
+            } catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, directExecutor());
+        return result;
+    }
+}
@@ -1,11 +1,23 @@
 package com.bsren.cache;
 
 
+import com.bsren.cache.entry.ForwardingEntry;
+import com.bsren.cache.entry.LongKeyEntry;
+import com.bsren.cache.offheap.OffHeapValueReference;
+import com.bsren.cache.offheap.Serializer;
+import com.bsren.cache.offheap.SlabAllocator;
+import com.bsren.cache.entry.SortedBin;
+import com.bsren.cache.expiry.Expiry;
 import com.bsren.cache.listeners.RemovalCause;
 import com.bsren.cache.listeners.RemovalListener;
 import com.bsren.cache.listeners.RemovalNotification;
+import com.bsren.cache.loading.BatchingCacheLoader;
+import com.bsren.cache.loading.FailedValueReference;
 import com.bsren.cache.loading.Unset;
 import com.bsren.cache.queue.AccessQueue;
+import com.bsren.cache.queue.ReadBuffer;
+import com.bsren.cache.queue.TimerWheel;
+import com.bsren.cache.queue.WriteBuffer;
 import com.bsren.cache.queue.WriteQueue;
 import com.bsren.cache.weigher.Weigher;
 import com.google.common.base.Equivalence;
@@ -15,8 +27,10 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.math.LongMath;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.errorprone.annotations.concurrent.GuardedBy;
@@ -26,17 +40,27 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.bsren.cache.CacheBuilder.UNSET_INT;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static java.util.Collections.unmodifiableSet;
@@ -49,11 +73,14 @@ import static java.util.Collections.unmodifiableSet;
  * 4.设置读超时和写超时
  * 5.过期回收
  */
-public class LocalCache<K, V> {
+public class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
 
     //最大容量
     static final int MAXIMUM_CAPACITY = 1 << 30;
 
+    //最多的segment个数
+    static final int MAX_SEGMENTS = 1 << 16;
+
     /**
      * 读-清洗的阈值
      */
@@ -61,6 +88,58 @@ public class LocalCache<K, V> {
 
     static final int DRAIN_MAX = 16;
 
+    /**
+     * 增量扩容时每次写操作和每次维护帮忙迁移的bucket个数
+     */
+    static final int TRANSFER_STRIDE = 16;
+
+    /**
+     * W-TinyLFU中entry所在的access队列：准入窗口、main区的probation和protected
+     */
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    /**
+     * 准入窗口占segment最大权重的比例，剩下的是main区
+     */
+    static final double PERCENT_WINDOW = 0.01d;
+
+    /**
+     * protected占main区的比例
+     */
+    static final double PERCENT_MAIN_PROTECTED = 0.80d;
+
+    /**
+     * 频率不低于该值的候选者有小概率被直接准入，防止攻击者用hash碰撞抬高受害者的频率
+     */
+    static final int ADMIT_HASHDOS_THRESHOLD = 6;
+
+    /**
+     * 每个segment写事件缓冲区的容量
+     */
+    static final int WRITE_BUFFER_SIZE = 128;
+
+    /**
+     * 积攒了这么多写事件后做一次维护
+     */
+    static final int WRITE_BUFFER_DRAIN_THRESHOLD = 32;
+
+    /**
+     * 单个entry最长的存活时间，约146年，防止now + duration溢出
+     */
+    static final long MAXIMUM_EXPIRY = (Long.MAX_VALUE >> 1);
+
+    /**
+     * segment维护任务的状态
+     * IDLE：不需要维护；REQUIRED：需要维护但还没提交
+     * PROCESSING_TO_IDLE：已经提交或者正在维护；PROCESSING_TO_REQUIRED：维护期间又有新的请求，结束后还要再做一次
+     */
+    static final int IDLE = 0;
+    static final int REQUIRED = 1;
+    static final int PROCESSING_TO_IDLE = 2;
+    static final int PROCESSING_TO_REQUIRED = 3;
+
 
     //每个segment是一个hashMap
     Segment<K, V>[] segments;
@@ -90,6 +169,52 @@ public class LocalCache<K, V> {
      */
     long expireAfterWriteNanos;
 
+    /**
+     * 每个entry自己的过期时间，不能和上面两个一起用
+     */
+    Expiry<K, V> expiry;
+
+    /**
+     * 过期后直接返回旧值、在后台刷新的时间
+     */
+    long staleWhileRevalidateNanos;
+
+    /**
+     * 过期后加载失败时返回旧值的时间
+     */
+    long staleIfErrorNanos;
+
+    /**
+     * 过期的entry再保留多久才删除，取上面两个的最大值
+     */
+    long staleNanos;
+
+    /**
+     * 加载失败后第一次退避的时间，0表示不记住失败
+     */
+    long loadFailureBackoffNanos;
+
+    /**
+     * 连续失败时退避时间翻倍的上限
+     */
+    long maximumLoadFailureBackoffNanos;
+
+    /**
+     * 执行维护任务，默认在调用线程上执行
+     */
+    Executor executor;
+
+    /**
+     * 返回旧值的同时发起的刷新(staleWhileRevalidate、earlyRefresh)在这里执行
+     * 没有设置executor时用公共的ForkJoinPool，读线程不承担加载的延迟
+     */
+    Executor backgroundExecutor;
+
+    /**
+     * 在最早的过期时间唤醒，没有设置scheduler或者不会过期时为null
+     */
+    Pacer pacer;
+
     /**
      * default cache loader
      */
@@ -120,11 +245,21 @@ public class LocalCache<K, V> {
      */
     long refreshNanos;
 
+    /**
+     * 提前刷新（XFetch）的系数，0表示不提前刷新
+     */
+    double earlyRefreshBeta;
+
     /**
      * 根据key和value来计算entry的权重
      */
     Weigher<K, V> weigher;
 
+    /**
+     * 堆外的value用的序列化器，value不在堆外时为null
+     */
+    Serializer<V> serializer;
+
 
     /**
      * 计时器
@@ -149,26 +284,67 @@ public class LocalCache<K, V> {
 
     long maxWeight;
 
+    /**
+     * 按大小驱逐时选择驱逐对象的策略
+     */
+    EvictionPolicy evictionPolicy;
+
+    /**
+     * segment的table是拉链还是开放寻址
+     */
+    TableLayout tableLayout;
+
     public LocalCache(
             CacheBuilder<? super K, ? super V> builder,
             CacheLoader<? super K, V> loader) {
+        this(builder, loader, Object.class);
+    }
+
+    /**
+     * keyType为long.class或int.class时，K是Long或Integer，key以原始类型存在entry中
+     */
+    LocalCache(
+            CacheBuilder<? super K, ? super V> builder,
+            CacheLoader<? super K, V> loader,
+            Class<?> keyType) {
 
         keyStrength = builder.getKeyStrength();
         valueStrength = builder.getValueStrength();
         keyEquivalence = builder.getKeyEquivalence();
         valueEquivalence = builder.getValueEquivalence();
 
-        defaultLoader = loader;
+        defaultLoader = (loader != null && builder.batchesLoads())
+                ? new BatchingCacheLoader<>(loader, builder.getBatchWindowNanos(), builder.getMaximumBatchSize())
+                : loader;
         this.globalStatsCounter = new AbstractCache.SimpleStatsCounter();
-        ticker = builder.getTicker(recordsTime());
-        entryFactory = EntryFactory.getFactory(keyStrength, usesAccessEntries(), usesWriteEntries());
-
         weigher = builder.getWeigher();
+        serializer = builder.getSerializer();
+        checkState(valueStrength != Strength.OFF_HEAP || weighsValueBytes(),
+                "offHeapValues requires maximumWeight without a weigher, to bound the off-heap memory");
         maxWeight = builder.getMaximumWeight();
+        evictionPolicy = builder.getEvictionPolicy();
+        tableLayout = builder.getTableLayout();
 
         expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
         expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
+        expiry = builder.getExpiry();
+        staleWhileRevalidateNanos = builder.getStaleWhileRevalidateNanos();
+        staleIfErrorNanos = builder.getStaleIfErrorNanos();
+        staleNanos = Math.max(staleWhileRevalidateNanos, staleIfErrorNanos);
+        loadFailureBackoffNanos = builder.getLoadFailureBackoffNanos();
+        maximumLoadFailureBackoffNanos = builder.getMaximumLoadFailureBackoffNanos();
+        executor = builder.getExecutor();
+        backgroundExecutor = usesExecutor() ? executor : ForkJoinPool.commonPool();
         refreshNanos = builder.getRefreshNanos();
+        earlyRefreshBeta = builder.getEarlyRefreshBeta();
+
+        // 依赖上面的配置
+        ticker = builder.getTicker(recordsTime());
+        entryFactory = keyType.isPrimitive()
+                ? EntryFactory.getPrimitiveFactory(keyType, usesAccessEntries(), usesWriteEntries())
+                : EntryFactory.getFactory(keyStrength, inlinesValues(), usesAccessEntries(), usesWriteEntries());
+        pacer = (builder.getScheduler() != null && expires())
+                ? new Pacer(builder.getScheduler(), ticker, this::expireOnSchedule) : null;
 
         removalListener = builder.getRemovalListener();
         removalNotificationQueue = (removalListener == CacheBuilder.NullListener.INSTANCE) ?
@@ -182,9 +358,19 @@ public class LocalCache<K, V> {
 
         int segmentShift = 0;
         int segmentCount = 1;
-        while (segmentCount * 20 <= initialCapacity) {
-            ++segmentShift;
-            segmentCount <<= 1;
+        int concurrencyLevel = builder.getConcurrencyLevel();
+        if (concurrencyLevel == UNSET_INT) {
+            while (segmentCount * 20 <= initialCapacity) {
+                ++segmentShift;
+                segmentCount <<= 1;
+            }
+        } else {
+            // 按并发度分段，和initialCapacity无关；按大小淘汰时限制段数，不让每个segment分到的容量太小
+            concurrencyLevel = Math.min(concurrencyLevel, MAX_SEGMENTS);
+            while (segmentCount < concurrencyLevel && (!evictsBySize() || segmentCount * 20L <= maxWeight)) {
+                ++segmentShift;
+                segmentCount <<= 1;
+            }
         }
         this.segmentShift = 32 - segmentShift;
         segmentMask = segmentCount - 1;
@@ -222,12 +408,23 @@ public class LocalCache<K, V> {
         return maxWeight >= 0;
     }
 
+    boolean evictsByFrequency() {
+        return evictsBySize() && evictionPolicy == EvictionPolicy.W_TINY_LFU;
+    }
+
     boolean customWeigher() {
         return weigher != CacheBuilder.OneWeigher.INSTANCE;
     }
 
+    /**
+     * 权重是value占用的堆外字节数，见CacheBuilder.offHeapValues
+     */
+    boolean weighsValueBytes() {
+        return weigher == CacheBuilder.ValueBytesWeigher.INSTANCE;
+    }
+
     boolean expires() {
-        return expiresAfterAccess() || expiresAfterWrite();
+        return expiresAfterAccess() || expiresAfterWrite() || expiresVariable();
     }
 
     boolean expiresAfterWrite() {
@@ -238,12 +435,57 @@ public class LocalCache<K, V> {
         return expireAfterAccessNanos > 0;
     }
 
+    boolean expiresVariable() {
+        return expiry != null;
+    }
+
+    boolean usesOpenAddressing() {
+        return tableLayout == TableLayout.OPEN_ADDRESSING;
+    }
+
+    /**
+     * 只有强引用、用equals比较的key才能在桶里排序，见SortedBin
+     */
+    boolean sortsBins() {
+        return keyStrength == Strength.STRONG && keyEquivalence == Equivalence.equals();
+    }
+
+    /**
+     * 维护交给单独的executor，读写线程只负责提交
+     */
+    boolean usesExecutor() {
+        return executor != directExecutor();
+    }
+
+    /**
+     * 过期时间限制在[0, MAXIMUM_EXPIRY]之间
+     */
+    static long boundedExpiry(long duration) {
+        return Math.min(Math.max(duration, 0), MAXIMUM_EXPIRY);
+    }
+
     boolean refreshes() {
         return refreshNanos > 0;
     }
 
-    private boolean useAccessQueue() {
-        return expiresAfterAccess();
+    boolean servesStale() {
+        return staleNanos > 0 && expires();
+    }
+
+    boolean cachesLoadFailures() {
+        return loadFailureBackoffNanos > 0;
+    }
+
+    /**
+     * 第failures次连续失败后的退避时间，每次翻倍，不超过上限
+     */
+    long loadFailureBackoff(int failures) {
+        long backoff = LongMath.saturatedMultiply(loadFailureBackoffNanos, 1L << Math.min(failures - 1, 62));
+        return Math.min(backoff, maximumLoadFailureBackoffNanos);
+    }
+
+    boolean refreshesEarly() {
+        return earlyRefreshBeta > 0 && (expiresAfterWrite() || expiresVariable());
     }
 
     private boolean useWriteQueue() {
@@ -259,11 +501,14 @@ public class LocalCache<K, V> {
     }
 
     private boolean recordsTime() {
-        return expiresAfterWrite() || expiresAfterAccess();
+        return recordsWrite() || recordsAccess() || expiresVariable() || cachesLoadFailures();
     }
 
+    /**
+     * 时间轮借用write队列的指针
+     */
     boolean usesWriteEntries() {
-        return usesWriteQueue() || recordsWrite();
+        return usesWriteQueue() || recordsWrite() || expiresVariable();
     }
 
     boolean usesKeyReferences() {
@@ -271,7 +516,14 @@ public class LocalCache<K, V> {
     }
 
     boolean usesValueReferences() {
-        return valueStrength != Strength.STRONG;
+        return valueStrength == Strength.WEAK || valueStrength == Strength.SOFT;
+    }
+
+    /**
+     * 强引用、不带权重的value直接存在entry中，省掉每个value一个StrongValueReference
+     */
+    boolean inlinesValues() {
+        return valueStrength == Strength.STRONG && !customWeigher();
     }
 
 
@@ -288,7 +540,7 @@ public class LocalCache<K, V> {
         return expiresAfterAccess() || evictsBySize();
     }
 
-    static int rehash(int h) {
+    public static int rehash(int h) {
         h += (h << 15) ^ 0xffffcd7d;
         h ^= (h >>> 10);
         h += (h << 3);
@@ -314,9 +566,52 @@ public class LocalCache<K, V> {
     }
 
     Segment<K, V> segmentFor(int hash) {
-        return segments[(hash >>> segmentShift) & segmentMask];
+        return segments[segmentIndex(hash)];
+    }
+
+    int segmentIndex(int hash) {
+        return (hash >>> segmentShift) & segmentMask;
+    }
+
+
+    /**
+     * 不加锁遍历table的第index个bucket，action返回true时停止，返回是否停止
+     * 遇到forwarding时去新table中找：扩容时这个bucket拆到了几个bucket中，缩容时和别的bucket合并了，要按hash过滤
+     */
+    static <K, V> boolean scanBucket(AtomicReferenceArray<ReferenceEntry<K, V>> table, int index,
+                                     Predicate<ReferenceEntry<K, V>> action) {
+        return scanBucket(table, index, table.length() - 1, index, action);
     }
 
+    /**
+     * 只处理hash & mask == bits的entry，也就是最初那个bucket中的entry
+     */
+    private static <K, V> boolean scanBucket(AtomicReferenceArray<ReferenceEntry<K, V>> table, int index,
+                                             int mask, int bits, Predicate<ReferenceEntry<K, V>> action) {
+        ReferenceEntry<K, V> e = table.get(index);
+        if (table instanceof ProbingTable) {
+            // 开放寻址的slot只放一个entry，也不会有forwarding
+            return ProbingTable.isEntry(e) && action.test(e);
+        }
+        if (e instanceof ForwardingEntry) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> nextTable = ((ForwardingEntry<K, V>) e).getNextTable();
+            for (int i = index & (nextTable.length() - 1); i < nextTable.length(); i += table.length()) {
+                if (scanBucket(nextTable, i, mask, bits, action)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (e instanceof SortedBin) {
+            e = ((SortedBin<K, V>) e).getFirst();
+        }
+        for (; e != null; e = e.getNext()) {
+            if ((e.getHash() & mask) == bits && action.test(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     Segment<K, V> createSegment(int initialCapacity, long maxSegmentWeight, AbstractCache.StatsCounter statsCounter) {
         return new Segment<>(this, initialCapacity, maxSegmentWeight, statsCounter);
@@ -331,6 +626,9 @@ public class LocalCache<K, V> {
         if (expiresAfterWrite() && (now - entry.getWriteTime() > expireAfterWriteNanos)) {
             return true;
         }
+        if (expiresVariable() && (now - entry.getVariableTime() >= 0)) {
+            return true;
+        }
         return false;
     }
 
@@ -364,16 +662,90 @@ public class LocalCache<K, V> {
 
         int threshold;
 
+        /**
+         * 增量扩容中的新table，没有在扩容时为null
+         * 迁移从table的高位bucket往低位进行，迁完的bucket放一个指向新table的forwarding，全部迁完后新table替换table
+         */
+        @GuardedBy("this")
+        AtomicReferenceArray<ReferenceEntry<K, V>> nextTable;
+
+        @GuardedBy("this")
+        ForwardingEntry<K, V> forwarding;
+
+        /**
+         * table中还没迁移的bucket个数，[0, transferIndex)还没迁移
+         */
+        @GuardedBy("this")
+        int transferIndex;
+
+        /**
+         * 缩容不会低于初始大小
+         */
+        final int minimumCapacity;
+
         volatile int count;
 
         int modCount;
 
         AbstractCache.StatsCounter statsCounter;
 
-        Queue<ReferenceEntry<K, V>> recencyQueue;
+        /**
+         * 记录无锁的读，加锁后再按顺序重放到access队列中
+         */
+        ReadBuffer<K, V> readBuffer;
+
+        final Consumer<ReferenceEntry<K, V>> readReplay = this::replayRead;
+
+        /**
+         * 写操作只改hash表，对access队列、write队列的调整作为事件放到这里，维护时按顺序一批处理
+         * 事件在锁内记录：删除会复制链表中前面的entry，复制前要能把它们的事件都处理掉
+         */
+        WriteBuffer<K, V> writeBuffer;
+
+        final WriteBuffer.Handler<K, V> writeReplay = new WriteBuffer.Handler<K, V>() {
+            @Override
+            public void onWrite(ReferenceEntry<K, V> e, int weight, int previousWeight) {
+                applyWrite(e, weight, previousWeight);
+            }
+
+            @Override
+            public void onRemoval(ReferenceEntry<K, V> e, int weight) {
+                applyRemoval(e, weight);
+            }
+        };
+
+        /**
+         * 按entry自己的过期时间排序，只有设置了Expiry时才有
+         */
+        TimerWheel<K, V> timerWheel;
 
         AtomicInteger readCount = new AtomicInteger();
 
+        /**
+         * 记住的加载失败，按重试时间排序，退避期过了在维护时从表中删掉
+         * 按大小驱逐时最多记住maxSegmentWeight个，多出来的先忘掉最早该重试的
+         * 已经被覆盖或者重新加载的失败也留在这里，到时间时跳过
+         */
+        @GuardedBy("this")
+        final Queue<FailedValueReference<K, V>> loadFailures;
+
+        /**
+         * 最近加载耗时的指数移动平均，提前刷新按它估计重新加载要多久
+         */
+        volatile long averageLoadNanos;
+
+        /**
+         * 维护任务的状态，保证每个segment同时只有一个维护任务
+         */
+        final AtomicInteger drainStatus = new AtomicInteger(IDLE);
+
+        final Runnable drainTask = this::performCleanUp;
+
+        /**
+         * 下一个已知的过期时间，没有时为Long.MAX_VALUE，只在持有锁时写
+         */
+        volatile long expirationDeadline = Long.MAX_VALUE;
+
         Queue<ReferenceEntry<K, V>> accessQueue;
 
         Queue<ReferenceEntry<K, V>> writeQueue;
@@ -386,6 +758,36 @@ public class LocalCache<K, V> {
         long totalWeight;
         private long maxSegmentWeight;
 
+        /**
+         * 比整个segment还重的entry，驱逐时最先删掉，不要为了它把别的entry都挤出去
+         */
+        @GuardedBy("this")
+        final Queue<ReferenceEntry<K, V>> oversized = new ArrayDeque<>();
+
+        /**
+         * 堆外value的内存，value不在堆外时为null
+         */
+        final SlabAllocator slabs;
+
+        /**
+         * W-TinyLFU: accessQueue作为准入窗口，probation和protected组成main区
+         */
+        AccessQueue<K, V> probationQueue;
+
+        AccessQueue<K, V> protectedQueue;
+
+        @GuardedBy("this")
+        long windowWeight;
+
+        @GuardedBy("this")
+        long protectedWeight;
+
+        long maxWindowWeight;
+
+        long maxProtectedWeight;
+
+        FrequencySketch frequencySketch;
+
         Segment(LocalCache<K, V> map,
                 int initialCapacity,
                 long maxSegmentWeight,
@@ -393,24 +795,51 @@ public class LocalCache<K, V> {
             this.map = map;
             this.maxSegmentWeight = maxSegmentWeight;
             this.statsCounter = statsCounter;
+            this.minimumCapacity = initialCapacity;
 
             initTable(newEntryArray(initialCapacity));
 
-            accessQueue = map.useAccessQueue() ?
+            keyReferenceQueue = map.usesKeyReferences() ? new ReferenceQueue<>() : null;
+            valueReferenceQueue = map.usesValueReferences() ? new ReferenceQueue<>() : null;
+
+            accessQueue = map.usesAccessQueue() ?
                     new AccessQueue<>() : LocalCache.discardingQueue();
 
             writeQueue = map.useWriteQueue() ?
                     new WriteQueue<>() : LocalCache.discardingQueue();
-            recencyQueue = map.useAccessQueue() ? new ConcurrentLinkedDeque<>() : LocalCache.discardingQueue();
+            readBuffer = (map.usesAccessQueue() || map.expiresVariable()) ? new ReadBuffer<>() : null;
+            writeBuffer = (map.usesAccessQueue() || map.usesWriteQueue() || map.expiresVariable())
+                    ? new WriteBuffer<>(WRITE_BUFFER_SIZE) : null;
+            timerWheel = map.expiresVariable() ? new TimerWheel<>(map.ticker.read() - map.staleNanos) : null;
+            loadFailures = map.cachesLoadFailures()
+                    ? new PriorityQueue<>((a, b) -> Long.compare(a.getRetryTime() - b.getRetryTime(), 0))
+                    : LocalCache.discardingQueue();
+            slabs = (map.valueStrength == Strength.OFF_HEAP) ? new SlabAllocator(maxSegmentWeight) : null;
+
+            if (map.evictsByFrequency()) {
+                probationQueue = new AccessQueue<>();
+                protectedQueue = new AccessQueue<>();
+                maxWindowWeight = maxSegmentWeight - (long) ((1.0d - PERCENT_WINDOW) * maxSegmentWeight);
+                maxProtectedWeight = (long) (PERCENT_MAIN_PROTECTED * (maxSegmentWeight - maxWindowWeight));
+                frequencySketch = new FrequencySketch(
+                        map.customWeigher() ? table.length() : maxSegmentWeight);
+            }
         }
 
 
         AtomicReferenceArray<ReferenceEntry<K, V>> newEntryArray(int size) {
-            return new AtomicReferenceArray<>(size);
+            return map.usesOpenAddressing() ? new ProbingTable<>(size) : new AtomicReferenceArray<>(size);
+        }
+
+        /**
+         * 拉链的负载上限是3/4，线性探测在负载高时探测序列会连成一片，上限取2/3
+         */
+        int thresholdFor(int capacity) {
+            return map.usesOpenAddressing() ? capacity * 2 / 3 : capacity * 3 / 4;
         }
 
         private void initTable(AtomicReferenceArray<ReferenceEntry<K, V>> newEntryArray) {
-            this.threshold = newEntryArray.length() * 3 / 4;
+            this.threshold = thresholdFor(newEntryArray.length());
             this.table = newEntryArray;
         }
 
@@ -432,10 +861,14 @@ public class LocalCache<K, V> {
             }
 
             ValueReference<K, V> valueReference = original.getValueReference();
-            V value = valueReference.get();
-            if ((value == null) && valueReference.isActive()) {
-                // value collected
-                return null;
+            V value = null;
+            // 堆外的value不会被回收，复制时不用反序列化
+            if (!(valueReference instanceof OffHeapValueReference)) {
+                value = valueReference.get();
+                if ((value == null) && valueReference.isActive()) {
+                    // value collected
+                    return null;
+                }
             }
 
             ReferenceEntry<K, V> newEntry = map.entryFactory.copyEntry(this, original, newNext);
@@ -451,11 +884,52 @@ public class LocalCache<K, V> {
             ValueReference<K, V> previous = entry.getValueReference();
             int weight = map.weigher.weigh(key, newValue);
             checkState(weight >= 0, "Weights must be non-negative");
+            if (map.expiresVariable()) {
+                // 被覆盖的value已经过期或者被回收时按新建处理
+                V previousValue = previous.get();
+                long duration = (previousValue == null || map.isExpired(entry, now))
+                        ? map.expiry.expireAfterCreate(key, newValue, now)
+                        : map.expiry.expireAfterUpdate(key, newValue, now, entry.getVariableTime() - now);
+                entry.setVariableTime(now + boundedExpiry(duration));
+            }
             ValueReference<K, V> valueReference =
-                    map.valueStrength.referenceValue(this, entry, newValue, 1);
+                    map.valueStrength.referenceValue(this, entry, newValue, weight);
             entry.setValueReference(valueReference);
-            recordWrite(entry, weight, now);
+            // 堆外的value可能按序列化后的大小计权重
+            recordWrite(entry, valueReference.getWeight(), previous.getWeight(), now);
             previous.notifyNewValue(newValue);
+            releaseValue(previous);
+        }
+
+        /**
+         * 不加锁读entry的value。堆外的value被覆盖后chunk马上归还，这时读到的旧引用返回null，
+         * 但entry上已经是新的value，换成新的重读，不能当成value被回收了
+         */
+        V readValue(ReferenceEntry<K, V> entry) {
+            ValueReference<K, V> valueReference = entry.getValueReference();
+            V value = valueReference.get();
+            while (value == null && valueReference instanceof OffHeapValueReference) {
+                ValueReference<K, V> current = entry.getValueReference();
+                if (current == valueReference) {
+                    break;
+                }
+                valueReference = current;
+                value = current.get();
+            }
+            return value;
+        }
+
+        /**
+         * 被覆盖或者删除的value不再被cache引用，堆外的value在这里交出它的内存
+         * 加载中的引用交出它留着的旧value，加载中的entry还留在表中时不能调用
+         */
+        static void releaseValue(ValueReference<?, ?> valueReference) {
+            if (valueReference instanceof LoadingValueReference) {
+                valueReference = ((LoadingValueReference<?, ?>) valueReference).getOldValue();
+            }
+            if (valueReference instanceof OffHeapValueReference) {
+                ((OffHeapValueReference<?, ?>) valueReference).free();
+            }
         }
 
 
@@ -471,10 +945,10 @@ public class LocalCache<K, V> {
                     if (e == null) {
                         return null;
                     }
-                    V value = e.getValueReference().get();
+                    V value = readValue(e);
                     if (value != null) {
                         recordRead(e, now);
-                        return scheduleRefresh(e, e.getKey(), hash, value, now, map.defaultLoader);
+                        return scheduleRefresh(e, hash, value, now, map.defaultLoader);
                     }
                     tryDrainReferenceQueues();
                 }
@@ -484,6 +958,38 @@ public class LocalCache<K, V> {
             }
         }
 
+        /**
+         * getAll的批量读，keys[indexes[from..to)]都属于这个segment
+         * 只读一次ticker，命中的value按下标放进values，读在最后一起记录，返回命中的个数
+         */
+        @SuppressWarnings("unchecked")
+        int getAll(Object[] keys, int[] hashes, int[] indexes, int from, int to, Object[] values) {
+            int size = 0;
+            try {
+                if (count == 0) {
+                    return 0;
+                }
+                long now = map.ticker.read();
+                ReferenceEntry<K, V>[] hits = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[to - from];
+                for (int i = from; i < to; i++) {
+                    int index = indexes[i];
+                    ReferenceEntry<K, V> e = getEntry(keys[index], hashes[index]);
+                    if (e == null) {
+                        continue;
+                    }
+                    V value = getLiveValue(e, now);
+                    if (value != null) {
+                        hits[size++] = e;
+                        values[index] = scheduleRefresh(e, hashes[index], value, now, map.defaultLoader);
+                    }
+                }
+                recordReads(hits, size, now);
+                return size;
+            } finally {
+                postReadCleanup(to - from);
+            }
+        }
+
         V get(K key, int hash, CacheLoader<? super K, V> loader) throws Exception {
             checkNotNull(key);
             checkNotNull(loader);
@@ -497,12 +1003,19 @@ public class LocalCache<K, V> {
                         if (value != null) {
                             recordRead(e, now);
                             statsCounter.recordHits(1);
-                            return scheduleRefresh(e, key, hash, value, now, loader);
+                            return scheduleRefresh(e, hash, value, now, loader);
+                        }
+                        if (map.servesStale()) {
+                            V staleValue = getStaleValue(e, now);
+                            if (staleValue != null) {
+                                return revalidate(e, key, hash, staleValue, now, loader);
+                            }
                         }
                         ValueReference<K, V> valueReference = e.getValueReference();
                         if (valueReference.isLoading()) {
                             return waitForLoadingValue(e, key, valueReference);
                         }
+                        rethrowLoadFailure(valueReference, now);
                     }
                 }
                 // at this point e is either null or expired;
@@ -527,23 +1040,28 @@ public class LocalCache<K, V> {
             ReferenceEntry<K, V> e;
             ValueReference<K, V> valueReference = null;
             LoadingValueReference<K, V> loadingValueReference = null;
+            ValueReference<K, V> previousFailure = null;
             boolean createNewEntry = true;
             lock();
             try {
                 long now = map.ticker.read();
-                preWriteCleanup(now);
+                preWriteCleanup();
 
                 int newCount = this.count - 1;
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
 
-                for (e = first; e != null; e = e.getNext()) {
+                for (e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entryKey = e.getKey();
                     if (e.getHash() == hash && equalsKey(key, entryKey)) {
                         valueReference = e.getValueReference();
                         if (valueReference.isLoading()) {   //正在加载
                             createNewEntry = false;
+                        } else if (valueReference instanceof FailedValueReference) {
+                            rethrowLoadFailure(valueReference, now);
+                            // 退避期过了，重新加载，上一次失败留在新的LoadingValueReference里用来累计失败次数
+                            previousFailure = valueReference;
                         } else {
                             V value = valueReference.get();
                             if (value == null) {              //value的值为空
@@ -556,8 +1074,8 @@ public class LocalCache<K, V> {
                                 return value;
                             }
                             // immediately reuse invalid entries
-                            writeQueue.remove(e);
-                            accessQueue.remove(e);
+                            afterRemoval(e, valueReference.getWeight());
+                            releaseValue(valueReference);
                             this.count = newCount; // write-volatile
                         }
                         break;
@@ -566,12 +1084,12 @@ public class LocalCache<K, V> {
                 //并没有找到cache，value为空，或者正在加载，或者过期了
                 //如果value不是正在加载，则需要设置新的entry，将valueReference设置为loading
                 if (createNewEntry) {
-                    loadingValueReference = new LoadingValueReference<>();
+                    loadingValueReference = new LoadingValueReference<>(previousFailure);
                     //如果在链表的最后也没能找到，则创建一个新的entry
                     if (e == null) {
                         e = newEntry(key, hash, first);
                         e.setValueReference(loadingValueReference);
-                        table.set(index, e);
+                        setFirst(table, index, e);
                     } else {
                         e.setValueReference(loadingValueReference);
                     }
@@ -600,16 +1118,275 @@ public class LocalCache<K, V> {
             }
         }
 
-        private V waitForLoadingValue(ReferenceEntry<K, V> e, K key, ValueReference<K, V> valueReference) throws Exception {
-            if (!valueReference.isLoading()) {
-                throw new AssertionError();
-            }
-            //别的线程正在加载该entry，本线程只需要等待就好
-            checkState(!Thread.holdsLock(e));
+        /**
+         * get的异步版本，不阻塞调用者：命中时返回已经完成的future
+         * 别的调用者正在加载时共享那次加载的future，否则插入LoadingValueReference，在executor上发起加载
+         */
+        ListenableFuture<V> getAsync(K key, int hash, CacheLoader<? super K, V> loader) {
+            checkNotNull(key);
+            checkNotNull(loader);
             try {
-                V value = valueReference.waitForValue();
-                if (value == null) {
-                    throw new Exception("CacheLoader returned null for key " + key + ".");
+                if (count != 0) {
+                    ReferenceEntry<K, V> e = getEntry(key, hash);
+                    if (e != null) {
+                        long now = map.ticker.read();
+                        V value = getLiveValue(e, now);
+                        if (value != null) {
+                            recordRead(e, now);
+                            statsCounter.recordHits(1);
+                            return immediateFuture(scheduleRefresh(e, hash, value, now, loader));
+                        }
+                        if (map.servesStale()) {
+                            V staleValue = getStaleValue(e, now);
+                            if (staleValue != null) {
+                                return revalidateAsync(e, key, hash, staleValue, now, loader);
+                            }
+                        }
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        if (valueReference.isLoading()) {
+                            statsCounter.recordMisses(1);
+                            return loadedValue(key, ((LoadingValueReference<K, V>) valueReference).getFuture());
+                        }
+                        Throwable failure = getLoadFailure(valueReference, now);
+                        if (failure != null) {
+                            statsCounter.recordMisses(1);
+                            return Futures.immediateFailedFuture(failure);
+                        }
+                    }
+                }
+                return lockedGetOrLoadAsync(key, hash, loader);
+            } finally {
+                postReadCleanup();
+            }
+        }
+
+        /**
+         * 和lockedGetOrLoad一样，加锁的只是查找和插入LoadingValueReference的过程，加载在锁外面发起
+         */
+        private ListenableFuture<V> lockedGetOrLoadAsync(K key, int hash, CacheLoader<? super K, V> loader) {
+            ReferenceEntry<K, V> e;
+            LoadingValueReference<K, V> loadingValueReference;
+            ValueReference<K, V> previousFailure = null;
+            lock();
+            try {
+                long now = map.ticker.read();
+                preWriteCleanup();
+
+                int newCount = this.count - 1;
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+
+                for (e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
+                    K entryKey = e.getKey();
+                    if (e.getHash() == hash && equalsKey(key, entryKey)) {
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        if (valueReference.isLoading()) {
+                            statsCounter.recordMisses(1);
+                            return loadedValue(key, ((LoadingValueReference<K, V>) valueReference).getFuture());
+                        }
+                        if (valueReference instanceof FailedValueReference) {
+                            Throwable failure = getLoadFailure(valueReference, now);
+                            if (failure != null) {
+                                statsCounter.recordMisses(1);
+                                return Futures.immediateFailedFuture(failure);
+                            }
+                            previousFailure = valueReference;
+                            break;
+                        }
+                        V value = valueReference.get();
+                        if (value == null) {
+                            enqueueNotification(entryKey, null, valueReference.getWeight(), RemovalCause.COLLECTED);
+                        } else if (map.isExpired(e, now)) {
+                            enqueueNotification(entryKey, value, valueReference.getWeight(), RemovalCause.EXPIRED);
+                        } else {
+                            recordLockedRead(e, now);
+                            statsCounter.recordHits(1);
+                            return immediateFuture(value);
+                        }
+                        afterRemoval(e, valueReference.getWeight());
+                        releaseValue(valueReference);
+                        this.count = newCount; // write-volatile
+                        break;
+                    }
+                }
+                loadingValueReference = new LoadingValueReference<>(previousFailure);
+                if (e == null) {
+                    e = newEntry(key, hash, first);
+                    setFirst(table, index, e);
+                }
+                e.setValueReference(loadingValueReference);
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+            statsCounter.recordMisses(1);
+            ListenableFuture<V> loadingFuture = loadingValueReference.asyncLoadFuture(key, loader, map.executor);
+            return storeWhenLoaded(key, hash, loadingValueReference, loadingFuture);
+        }
+
+        /**
+         * value由调用者给出的future异步提供，future完成之前对这个key的get都共享它
+         * key已经有value时，旧的value在future完成之前仍然可见，和refresh一样
+         * 正在加载的key不能再插入LoadingValueReference，等future完成后直接put覆盖加载的结果
+         */
+        void put(K key, int hash, ListenableFuture<V> valueFuture) {
+            LoadingValueReference<K, V> loadingValueReference = insertLoadingReference(key, hash, false);
+            if (loadingValueReference == null) {
+                valueFuture.addListener(() -> {
+                    try {
+                        V value = Futures.getDone(valueFuture);
+                        if (value != null) {
+                            put(key, hash, value, false);
+                        }
+                    } catch (Throwable ignored) {
+                        // a failed future leaves the entry alone
+                    }
+                }, directExecutor());
+                return;
+            }
+            storeWhenLoaded(key, hash, loadingValueReference, loadingValueReference.loadFrom(valueFuture));
+        }
+
+        /**
+         * 加载完成时存入value，失败或者为null时删掉LoadingValueReference
+         * 返回的future在value存入之后才完成，加载出null时以InvalidCacheLoadException失败
+         */
+        private ListenableFuture<V> storeWhenLoaded(K key, int hash,
+                                                    LoadingValueReference<K, V> loadingValueReference,
+                                                    ListenableFuture<V> loadingFuture) {
+            loadingFuture.addListener(() -> {
+                try {
+                    getAndRecordStats(key, hash, loadingValueReference, loadingFuture);
+                } catch (Throwable t) {
+                    loadingValueReference.setException(t);
+                }
+            }, directExecutor());
+            return loadedValue(key, loadingFuture);
+        }
+
+        private ListenableFuture<V> loadedValue(K key, ListenableFuture<V> loadingFuture) {
+            return transform(loadingFuture, value -> {
+                if (value == null) {
+                    throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+                }
+                return value;
+            }, directExecutor());
+        }
+
+        /**
+         * 过期了但还在宽限期内的value，key或者value被回收了返回null
+         */
+        private V getStaleValue(ReferenceEntry<K, V> e, long now) {
+            if (e.getKey() == null) {
+                return null;
+            }
+            V value = readValue(e);
+            if (value == null || map.isExpired(e, now - map.staleNanos)) {
+                return null;
+            }
+            return value;
+        }
+
+        /**
+         * 宽限期的前一段(staleWhileRevalidate)直接返回旧值，只发起一次刷新
+         * 之后(staleIfError)同步加载，加载失败时返回旧值，同时读这个key的线程共享这次加载
+         * 旧值不算一次读，否则按访问过期的entry会因此又变成不过期
+         */
+        private V revalidate(ReferenceEntry<K, V> e, K key, int hash, V staleValue, long now,
+                             CacheLoader<? super K, V> loader) {
+            if (!map.isExpired(e, now - map.staleWhileRevalidateNanos)) {
+                statsCounter.recordHits(1);
+                refreshInBackground(key, hash, loader, false);
+                return staleValue;
+            }
+            LoadingValueReference<K, V> loadingValueReference = insertLoadingReference(key, hash, false);
+            try {
+                if (loadingValueReference != null) {
+                    try {
+                        return loadSync(key, hash, loadingValueReference, loader);
+                    } finally {
+                        statsCounter.recordMisses(1);
+                    }
+                }
+                ReferenceEntry<K, V> current = getEntry(key, hash);
+                ValueReference<K, V> valueReference = (current == null) ? null : current.getValueReference();
+                if (valueReference != null && valueReference.isLoading()) {
+                    return waitForLoadingValue(current, key, valueReference);
+                }
+                return staleValue;
+            } catch (Exception ex) {
+                return staleValue;
+            }
+        }
+
+        /**
+         * revalidate的异步版本：staleWhileRevalidate时返回旧值的future，staleIfError时发起或者共享一次加载，
+         * 加载失败时future以旧值完成
+         */
+        private ListenableFuture<V> revalidateAsync(ReferenceEntry<K, V> e, K key, int hash, V staleValue, long now,
+                                                    CacheLoader<? super K, V> loader) {
+            if (!map.isExpired(e, now - map.staleWhileRevalidateNanos)) {
+                statsCounter.recordHits(1);
+                refreshInBackground(key, hash, loader, false);
+                return immediateFuture(staleValue);
+            }
+            LoadingValueReference<K, V> loadingValueReference = insertLoadingReference(key, hash, false);
+            ListenableFuture<V> loadingFuture;
+            if (loadingValueReference != null) {
+                statsCounter.recordMisses(1);
+                loadingFuture = storeWhenLoaded(key, hash, loadingValueReference,
+                        loadingValueReference.asyncLoadFuture(key, loader, map.executor));
+            } else {
+                ReferenceEntry<K, V> current = getEntry(key, hash);
+                ValueReference<K, V> valueReference = (current == null) ? null : current.getValueReference();
+                if (valueReference == null || !valueReference.isLoading()) {
+                    return immediateFuture(staleValue);
+                }
+                statsCounter.recordMisses(1);
+                loadingFuture = loadedValue(key, ((LoadingValueReference<K, V>) valueReference).getFuture());
+            }
+            return Futures.catching(loadingFuture, Throwable.class, t -> staleValue, directExecutor());
+        }
+
+        /**
+         * 还在退避期内的加载失败，没有时返回null
+         */
+        private Throwable getLoadFailure(ValueReference<K, V> valueReference, long now) {
+            if (valueReference instanceof FailedValueReference) {
+                FailedValueReference<K, V> failed = (FailedValueReference<K, V>) valueReference;
+                if (failed.getRetryTime() - now > 0) {
+                    return failed.getCause();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 退避期内直接抛出上一次加载的失败，不调用loader
+         */
+        private void rethrowLoadFailure(ValueReference<K, V> valueReference, long now) throws ExecutionException {
+            Throwable failure = getLoadFailure(valueReference, now);
+            if (failure != null) {
+                statsCounter.recordMisses(1);
+                if (failure instanceof CacheLoader.InvalidCacheLoadException) {
+                    // 和第一次加载出null时抛出的一样
+                    throw (CacheLoader.InvalidCacheLoadException) failure;
+                }
+                throw new ExecutionException(failure);
+            }
+        }
+
+        private V waitForLoadingValue(ReferenceEntry<K, V> e, K key, ValueReference<K, V> valueReference) throws Exception {
+            if (!valueReference.isLoading()) {
+                throw new AssertionError();
+            }
+            //别的线程正在加载该entry，本线程只需要等待就好
+            checkState(!Thread.holdsLock(e));
+            try {
+                V value = valueReference.waitForValue();
+                if (value == null) {
+                    throw new Exception("CacheLoader returned null for key " + key + ".");
                 }
                 long now = map.ticker.read();
                 recordRead(e, now);
@@ -655,30 +1432,172 @@ public class LocalCache<K, V> {
                 if (value == null) {
                     throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
                 }
-                statsCounter.recordLoadSuccess(loadingValueReference.elapsedNanos());
+                long loadNanos = loadingValueReference.elapsedNanos();
+                statsCounter.recordLoadSuccess(loadNanos);
+                recordLoadTime(loadNanos);
                 storeLoadedValue(key, hash, loadingValueReference, value);
                 return value;
             } finally {
                 if (value == null) {
                     statsCounter.recordLoadException(loadingValueReference.elapsedNanos());
-                    removeLoadingValue(key, hash, loadingValueReference);
+                    if (!map.cachesLoadFailures()
+                            || !storeLoadFailure(key, hash, loadingValueReference, getFailureCause(key, newValue))) {
+                        removeLoadingValue(key, hash, loadingValueReference);
+                    }
                 }
             }
         }
 
-        private V scheduleRefresh(ReferenceEntry<K, V> entry, K key, int hash, V oldValue, long now, CacheLoader<? super K, V> loader) {
+        /**
+         * 加载失败的原因，加载出null时是InvalidCacheLoadException
+         */
+        private Throwable getFailureCause(K key, ListenableFuture<V> newValue) {
+            try {
+                Futures.getDone(newValue);
+            } catch (ExecutionException e) {
+                return e.getCause();
+            } catch (Throwable t) {
+                return t;
+            }
+            return new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+        }
+
+        /**
+         * 把失败的LoadingValueReference换成FailedValueReference，连续失败的次数加一
+         * 刷新失败时还有旧的value，这时返回false，由removeLoadingValue恢复旧的value
+         */
+        private boolean storeLoadFailure(K key, int hash, LoadingValueReference<K, V> loadingValueReference,
+                                         Throwable cause) {
+            if (loadingValueReference.isActive()) {
+                return false;
+            }
+            lock();
+            try {
+                long now = map.ticker.read();
+                // 失败的entry不计入count，但和有效的entry一样占着链表，table也要为它们扩容
+                if (count + loadFailures.size() + 1 > threshold) {
+                    expand();
+                }
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, firstAt(table, index));
+                     e != null; e = e.getNext()) {
+                    if (e.getValueReference() == loadingValueReference) {
+                        ValueReference<K, V> oldValue = loadingValueReference.getOldValue();
+                        int failures = (oldValue instanceof FailedValueReference)
+                                ? ((FailedValueReference<K, V>) oldValue).getFailures() + 1 : 1;
+                        FailedValueReference<K, V> failed = new FailedValueReference<>(
+                                hash, cause, failures, now + map.loadFailureBackoff(failures));
+                        modCount++;
+                        e.setValueReference(failed);
+                        releaseValue(loadingValueReference);
+                        loadFailures.add(failed);
+                        if (map.evictsBySize()) {
+                            while (loadFailures.size() > maxSegmentWeight) {
+                                removeLoadFailure(loadFailures.poll());
+                            }
+                        }
+                        return true;
+                    }
+                }
+                // 加载期间entry被删除或者覆盖了
+                return true;
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
+
+        /**
+         * 删掉退避期已经过了的加载失败
+         */
+        @GuardedBy("this")
+        private void expireLoadFailures(long now) {
+            FailedValueReference<K, V> failed;
+            while ((failed = loadFailures.peek()) != null && failed.getRetryTime() - now <= 0) {
+                removeLoadFailure(loadFailures.poll());
+            }
+        }
+
+        /**
+         * 把value还是failed的entry从表中删掉，entry已经被覆盖或者重新加载的跳过
+         * 按hash找bucket、按引用比较value，key已经被回收的entry也能找到
+         */
+        @GuardedBy("this")
+        private void removeLoadFailure(FailedValueReference<K, V> failed) {
+            int hash = failed.getHash();
+            AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+            int index = indexOf(table, failed, hash);
+            ReferenceEntry<K, V> first = firstAt(table, index);
+            for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+                if (e.getValueReference() == failed) {
+                    modCount++;
+                    setFirst(table, index, removeEntryFromChain(first, e));
+                    return;
+                }
+            }
+        }
+
+        /**
+         * key只在真正刷新时从entry中取，原始类型key的命中路径不用装箱
+         */
+        private V scheduleRefresh(ReferenceEntry<K, V> entry, int hash, V oldValue, long now, CacheLoader<? super K, V> loader) {
             if (map.refreshes() && (now - entry.getWriteTime() > map.refreshNanos)) {
-                V newValue = refresh(key, hash, loader, true);
-                if (newValue != null) {
-                    return newValue;
+                // 读线程直接返回旧值，不承担加载的延迟
+                K key = entry.getKey();
+                if (key != null) {
+                    refreshInBackground(key, hash, loader, true);
+                }
+            } else if (map.refreshesEarly() && (loader != null) && shouldRefreshEarly(entry, now)) {
+                // 提前刷新时旧值还没过期，照常返回，刷新放到后台
+                K key = entry.getKey();
+                if (key != null) {
+                    refreshInBackground(key, hash, loader, false);
                 }
             }
             return oldValue;
         }
 
         /**
-         * 刷新value，除非另一个线程也在刷新。
-         * 返回刷新后的值，或者空，如果另一个线程也在刷新或者异常发生
+         * XFetch：now - beta * loadTime * ln(random) >= 过期时间时刷新
+         * 离过期越近、加载越慢，刷新的概率越大，同时写入的entry的刷新因此被随机地错开
+         */
+        private boolean shouldRefreshEarly(ReferenceEntry<K, V> entry, long now) {
+            long loadNanos = averageLoadNanos;
+            if (loadNanos == 0) {
+                return false;
+            }
+            long remaining = expirationTime(entry) - now;
+            double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+            return remaining <= -map.earlyRefreshBeta * loadNanos * Math.log(random);
+        }
+
+        /**
+         * entry按写入时间或者自己的过期时间算出的过期时间，访问过期不算在内，因为每次读都会推迟它
+         */
+        private long expirationTime(ReferenceEntry<K, V> entry) {
+            long time = Long.MAX_VALUE;
+            if (map.expiresAfterWrite()) {
+                time = entry.getWriteTime() + map.expireAfterWriteNanos;
+            }
+            if (map.expiresVariable()) {
+                time = Math.min(time, entry.getVariableTime());
+            }
+            return time;
+        }
+
+        /**
+         * 加载线程不持有锁，移动平均的更新可能互相覆盖，对估计来说无所谓
+         */
+        private void recordLoadTime(long loadNanos) {
+            long average = averageLoadNanos;
+            averageLoadNanos = (average == 0) ? loadNanos : average + (loadNanos - average) / 8;
+        }
+
+        /**
+         * LoadingCache.refresh使用：刷新value，除非另一个线程也在刷新
+         * 没有设置executor时在调用线程上加载，reload是同步的就等它完成
+         * 返回刷新后的值，或者空，如果另一个线程也在刷新或者异常发生，或者刷新在executor上异步进行
          */
         private V refresh(K key, int hash, CacheLoader<? super K, V> loader, boolean checkTime) {
             LoadingValueReference<K, V> loadingValueReference =
@@ -686,6 +1605,10 @@ public class LocalCache<K, V> {
             if (loadingValueReference == null) {
                 return null;
             }
+            if (map.usesExecutor()) {
+                submitRefresh(key, hash, loadingValueReference, loader, map.executor);
+                return null;
+            }
             ListenableFuture<V> result = loadAsync(key, hash, loadingValueReference, loader);
             if (result.isDone()) {
                 try {
@@ -697,6 +1620,29 @@ public class LocalCache<K, V> {
         }
 
 
+        /**
+         * 在后台刷新value，除非另一个线程也在刷新，不管有没有设置executor都不在调用线程上加载
+         * refreshAfterWrite、提前刷新和staleWhileRevalidate都走这里
+         */
+        private void refreshInBackground(K key, int hash, CacheLoader<? super K, V> loader, boolean checkTime) {
+            LoadingValueReference<K, V> loadingValueReference =
+                    insertLoadingReference(key, hash, checkTime);
+            if (loadingValueReference != null) {
+                submitRefresh(key, hash, loadingValueReference, loader, map.backgroundExecutor);
+            }
+        }
+
+        private void submitRefresh(K key, int hash, LoadingValueReference<K, V> loadingValueReference,
+                                   CacheLoader<? super K, V> loader, Executor executor) {
+            try {
+                executor.execute(() -> loadAsync(key, hash, loadingValueReference, loader));
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Exception thrown when submitting refresh", t);
+                loadingValueReference.setException(t);
+                removeLoadingValue(key, hash, loadingValueReference);
+            }
+        }
+
         /**
          * 返回一个新的loadingValueReference, 或者null，如果这个reference已经在loading或者刷新间隔太短
          */
@@ -705,11 +1651,11 @@ public class LocalCache<K, V> {
             lock();
             try {
                 long now = map.ticker.read();
-                preWriteCleanup(now);
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
-                for (e = first; e != null; e = e.getNext()) {
+                preWriteCleanup();
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entryKey = e.getKey();
                     if (equalsKey(key, entryKey)) {
                         ValueReference<K, V> valueReference = e.getValueReference();
@@ -727,7 +1673,7 @@ public class LocalCache<K, V> {
                 LoadingValueReference<K, V> loadingValueReference = new LoadingValueReference<>();
                 e = newEntry(key, hash, first);
                 e.setValueReference(loadingValueReference);
-                table.set(index, e);
+                setFirst(table, index, e);
                 return loadingValueReference;
             } finally {
                 unlock();
@@ -736,6 +1682,10 @@ public class LocalCache<K, V> {
         }
 
         private void tryDrainReferenceQueues() {
+            if (map.usesExecutor()) {
+                scheduleMaintenance();
+                return;
+            }
             if (tryLock()) {
                 try {
                     drainReferenceQueues();
@@ -800,25 +1750,82 @@ public class LocalCache<K, V> {
         }
 
 
+        /**
+         * 读不加锁，只记下这次读，在drainReadBuffer时再调整access顺序并记入频率统计
+         * 条带满了就顺手尝试drain一次，抢不到锁的话这次读就丢掉
+         */
         private void recordRead(ReferenceEntry<K, V> entry, long now) {
             if (map.recordsAccess()) {
                 entry.setAccessTime(now);
             }
-            recencyQueue.add(entry);
+            if (map.expiresVariable()) {
+                recordVariableRead(entry, now);
+            }
+            if (readBuffer != null && readBuffer.offer(entry) == ReadBuffer.FULL) {
+                if (map.usesExecutor()) {
+                    scheduleMaintenance();
+                } else {
+                    tryDrainReadBuffer();
+                }
+            }
         }
 
 
+        /**
+         * 批量记录读：能拿到锁时在一次加锁中直接调整access队列，不经过有损的readBuffer
+         * 拿不到锁时和单个读一样放进readBuffer
+         */
+        private void recordReads(ReferenceEntry<K, V>[] entries, int size, long now) {
+            if (readBuffer != null && tryLock()) {
+                try {
+                    for (int i = 0; i < size; i++) {
+                        recordLockedRead(entries[i], now);
+                    }
+                } finally {
+                    unlock();
+                }
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                recordRead(entries[i], now);
+            }
+        }
+
         @GuardedBy("this")
         private void recordLockedRead(ReferenceEntry<K, V> e, long now) {
             if (map.recordsAccess()) {
                 e.setAccessTime(now);
             }
-            accessQueue.add(e);
+            if (map.expiresVariable()) {
+                recordVariableRead(e, now);
+                timerWheel.reschedule(e);
+            }
+            recordFrequency(e);
+            if (accessQueue.contains(e)) {
+                onAccess(e);
+            }
         }
 
+        /**
+         * 按expireAfterRead更新entry的过期时间，不需要加锁，时间轮中的位置在重放这次读时再调整
+         * 这次读被丢掉的话entry会晚一点被清理，但读的时候总是按新的过期时间判断
+         */
+        private void recordVariableRead(ReferenceEntry<K, V> e, long now) {
+            K key = e.getKey();
+            V value = readValue(e);
+            if (key != null && value != null) {
+                long duration = map.expiry.expireAfterRead(key, value, now, e.getVariableTime() - now);
+                e.setVariableTime(now + boundedExpiry(duration));
+            }
+        }
 
-        private void recordWrite(ReferenceEntry<K, V> e, int weight, long now) {
-            drainRecencyQueue();
+
+        /**
+         * 写的时候只更新时间和总权重，access队列和write队列的调整放到writeBuffer里
+         * previousWeight是entry被覆盖前的value的权重
+         */
+        @GuardedBy("this")
+        private void recordWrite(ReferenceEntry<K, V> e, int weight, int previousWeight, long now) {
             totalWeight += weight;
             if (map.recordsAccess()) {
                 e.setAccessTime(now);
@@ -826,26 +1833,252 @@ public class LocalCache<K, V> {
             if (map.recordsWrite()) {
                 e.setWriteTime(now);
             }
-            accessQueue.add(e);
-            writeQueue.add(e);
+            if (map.pacer != null) {
+                long deadline = entryDeadline(e, now);
+                if (deadline < expirationDeadline) {
+                    expirationDeadline = deadline;
+                    map.pacer.schedule(deadline);
+                }
+            }
+            if (writeBuffer != null) {
+                while (!writeBuffer.offerWrite(e, weight, previousWeight)) {
+                    drainWriteBuffer();
+                }
+            }
         }
 
+        /**
+         * 刚写入的entry最早什么时候过期
+         */
+        private long entryDeadline(ReferenceEntry<K, V> e, long now) {
+            long deadline = Long.MAX_VALUE;
+            if (map.expiresAfterWrite()) {
+                deadline = Math.min(deadline, now + map.expireAfterWriteNanos);
+            }
+            if (map.expiresAfterAccess()) {
+                deadline = Math.min(deadline, now + map.expireAfterAccessNanos);
+            }
+            if (map.expiresVariable()) {
+                deadline = Math.min(deadline, e.getVariableTime());
+            }
+            return LongMath.saturatedAdd(deadline, map.staleNanos);
+        }
 
         /**
-         * 首先recency是一个并发的容器，get后数据首先来到这里
-         * accessQueue是一个队列，在put的时候会加入元素，先入先出记录最老的缓存，过期的时候从头遍历进行清理
+         * 维护之后重新计算下一个过期时间，交给pacer安排唤醒
+         * write队列和access队列的队头最早过期，时间轮看下一个非空的bucket
          */
         @GuardedBy("this")
-        private void drainRecencyQueue() {
+        private void updateExpirationDeadline(long now) {
+            long deadline = Long.MAX_VALUE;
             ReferenceEntry<K, V> e;
-            while ((e = recencyQueue.poll()) != null) {
-                if (accessQueue.contains(e)) {
+            if (map.expiresAfterWrite() && (e = writeQueue.peek()) != null) {
+                deadline = Math.min(deadline, e.getWriteTime() + map.expireAfterWriteNanos);
+            }
+            if (map.expiresAfterAccess()) {
+                if ((e = accessQueue.peek()) != null) {
+                    deadline = Math.min(deadline, e.getAccessTime() + map.expireAfterAccessNanos);
+                }
+                if (map.evictsByFrequency()) {
+                    if ((e = probationQueue.peek()) != null) {
+                        deadline = Math.min(deadline, e.getAccessTime() + map.expireAfterAccessNanos);
+                    }
+                    if ((e = protectedQueue.peek()) != null) {
+                        deadline = Math.min(deadline, e.getAccessTime() + map.expireAfterAccessNanos);
+                    }
+                }
+            }
+            deadline = LongMath.saturatedAdd(deadline, map.staleNanos);
+            if (timerWheel != null) {
+                // 时间轮的时间已经减去了staleNanos
+                long delay = timerWheel.getExpirationDelay();
+                if (delay != Long.MAX_VALUE) {
+                    deadline = Math.min(deadline, now + delay);
+                }
+            }
+            expirationDeadline = deadline;
+            if (deadline != Long.MAX_VALUE) {
+                map.pacer.schedule(deadline);
+            }
+        }
+
+        /**
+         * entry被删除，从队列中摘掉的工作放到writeBuffer里
+         * weight是删除时value的权重，和之前的写事件按顺序处理后所在队列的权重正好对上
+         */
+        @GuardedBy("this")
+        private void afterRemoval(ReferenceEntry<K, V> e, int weight) {
+            if (writeBuffer != null) {
+                while (!writeBuffer.offerRemoval(e, weight)) {
+                    drainWriteBuffer();
+                }
+            }
+        }
+
+        /**
+         * 按顺序处理writeBuffer中的写事件
+         */
+        @GuardedBy("this")
+        void drainWriteBuffer() {
+            if (writeBuffer != null) {
+                writeBuffer.drainTo(writeReplay);
+            }
+        }
+
+        /**
+         * entry已经在access队列中时是一次更新，用previousWeight修正所在队列的权重，否则是新加入的entry
+         */
+        @GuardedBy("this")
+        private void applyWrite(ReferenceEntry<K, V> e, int weight, int previousWeight) {
+            recordFrequency(e);
+            if (map.evictsByFrequency() && accessQueue.contains(e)) {
+                if (e.getQueueType() == WINDOW) {
+                    windowWeight += weight - previousWeight;
+                } else if (e.getQueueType() == PROTECTED) {
+                    protectedWeight += weight - previousWeight;
+                }
+                onAccess(e);
+            } else {
+                addToAccessOrder(e, weight);
+            }
+            writeQueue.add(e);
+            if (timerWheel != null) {
+                timerWheel.schedule(e);
+            }
+            if (map.evictsBySize() && e.getValueReference().getWeight() > maxSegmentWeight) {
+                // 写事件可能在还拿着链表头的写操作中被处理，这里不能改链表，留给evictEntries
+                oversized.add(e);
+            }
+        }
+
+        @GuardedBy("this")
+        private void applyRemoval(ReferenceEntry<K, V> e, int weight) {
+            writeQueue.remove(e);
+            removeFromAccessOrder(e, weight);
+            if (timerWheel != null) {
+                timerWheel.deschedule(e);
+            }
+        }
+
+        /**
+         * 把一次读或写记到频率统计里，按rehash后的hash计数
+         * entry被驱逐后它的频率仍然留在sketch中，下次再被写入时可以和受害者比较
+         */
+        @GuardedBy("this")
+        private void recordFrequency(ReferenceEntry<K, V> e) {
+            if (frequencySketch != null) {
+                frequencySketch.increment(e.getHash());
+            }
+        }
+
+        /**
+         * 新的entry进入access顺序，W-TinyLFU下先进入准入窗口
+         */
+        @GuardedBy("this")
+        private void addToAccessOrder(ReferenceEntry<K, V> e, int weight) {
+            if (map.evictsByFrequency()) {
+                e.setQueueType(WINDOW);
+                windowWeight += weight;
+            }
+            accessQueue.add(e);
+        }
+
+        /**
+         * 已经在access顺序中的entry被访问了一次
+         * LRU下移到accessQueue的队尾
+         * W-TinyLFU下窗口和protected中的entry移到各自队尾，probation中的entry晋升到protected
+         */
+        @GuardedBy("this")
+        private void onAccess(ReferenceEntry<K, V> e) {
+            if (!map.evictsByFrequency()) {
+                accessQueue.add(e);
+                return;
+            }
+            switch (e.getQueueType()) {
+                case WINDOW:
                     accessQueue.add(e);
+                    break;
+                case PROBATION:
+                    e.setQueueType(PROTECTED);
+                    protectedQueue.add(e);
+                    protectedWeight += e.getValueReference().getWeight();
+                    demoteFromProtected();
+                    break;
+                default:
+                    protectedQueue.add(e);
+            }
+        }
+
+        /**
+         * protected超出大小时，把最久没被访问的entry降回probation
+         */
+        @GuardedBy("this")
+        private void demoteFromProtected() {
+            ReferenceEntry<K, V> e;
+            while (protectedWeight > maxProtectedWeight && (e = protectedQueue.peek()) != null) {
+                protectedWeight -= e.getValueReference().getWeight();
+                e.setQueueType(PROBATION);
+                probationQueue.add(e);
+            }
+        }
+
+        /**
+         * 将entry从所在的access队列中删除，W-TinyLFU下同时扣掉所在队列的权重
+         */
+        @GuardedBy("this")
+        private void removeFromAccessOrder(ReferenceEntry<K, V> e, int weight) {
+            if (map.evictsByFrequency() && accessQueue.contains(e)) {
+                if (e.getQueueType() == WINDOW) {
+                    windowWeight -= weight;
+                } else if (e.getQueueType() == PROTECTED) {
+                    protectedWeight -= weight;
+                }
+            }
+            accessQueue.remove(e);
+        }
+
+
+        /**
+         * 首先readBuffer是一组有损的环形缓冲区，get后数据首先来到这里
+         * accessQueue是一个队列，在put的时候会加入元素，先入先出记录最老的缓存，过期的时候从头遍历进行清理
+         * 加锁后把readBuffer里的读一批重放到access队列
+         */
+        @GuardedBy("this")
+        private void drainReadBuffer() {
+            if (readBuffer != null) {
+                readBuffer.drainTo(readReplay);
+            }
+        }
+
+        /**
+         * 已经被删除的entry不在access队列中，只记频率
+         */
+        @GuardedBy("this")
+        private void replayRead(ReferenceEntry<K, V> e) {
+            recordFrequency(e);
+            if (accessQueue.contains(e)) {
+                onAccess(e);
+            }
+            if (timerWheel != null) {
+                timerWheel.reschedule(e);
+            }
+        }
+
+        private void tryDrainReadBuffer() {
+            if (tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    unlock();
                 }
             }
         }
 
         private void tryExpireEntries(long now) {
+            if (map.usesExecutor()) {
+                scheduleMaintenance();
+                return;
+            }
             if (tryLock()) {
                 try {
                     expireEntries(now);
@@ -856,26 +2089,73 @@ public class LocalCache<K, V> {
         }
 
         /**
-         * 将recency中的数据添加到access中
+         * 将readBuffer中的读重放到access中
          * 然后将writeQueue和accessQueue的内容过期部分清楚
          * 考虑到所有的缓存是公用一份读超时或者写超时，所以队头的超时时间一定是长的
-         * todo 为每个缓存设计过期时间，为一组缓存设计过期时间
+         * 每个entry自己的过期时间不满足这一点，放在时间轮中处理
          */
         @GuardedBy("this")
         private void expireEntries(long now) {
-            //将recency的缓存追加到queue中,这是一个锁方法
-            drainRecencyQueue();
+            //将readBuffer中的读和writeBuffer中的写重放到queue中,这是一个锁方法
+            drainReadBuffer();
+            drainWriteBuffer();
+            // 宽限期内过期的entry还要用来返回旧值，宽限期过了才删除
+            long expiredBefore = now - map.staleNanos;
             ReferenceEntry<K, V> e;
-            while ((e = writeQueue.peek()) != null && map.isExpired(e, now)) {
+            while ((e = writeQueue.peek()) != null && map.isExpired(e, expiredBefore)) {
                 if (!removeEntry(e, e.getHash(), RemovalCause.EXPIRED)) {
                     throw new AssertionError();
                 }
             }
-            while ((e = accessQueue.peek()) != null && map.isExpired(e, now)) {
+            while ((e = accessQueue.peek()) != null && map.isExpired(e, expiredBefore)) {
                 if (!removeEntry(e, e.getHash(), RemovalCause.EXPIRED)) {
                     throw new AssertionError();
                 }
             }
+            if (map.evictsByFrequency()) {
+                while ((e = probationQueue.peek()) != null && map.isExpired(e, expiredBefore)) {
+                    if (!removeEntry(e, e.getHash(), RemovalCause.EXPIRED)) {
+                        throw new AssertionError();
+                    }
+                }
+                while ((e = protectedQueue.peek()) != null && map.isExpired(e, expiredBefore)) {
+                    if (!removeEntry(e, e.getHash(), RemovalCause.EXPIRED)) {
+                        throw new AssertionError();
+                    }
+                }
+            }
+            if (timerWheel != null) {
+                expireVariableEntries(expiredBefore);
+            }
+            if (map.cachesLoadFailures()) {
+                expireLoadFailures(now);
+            }
+        }
+
+        /**
+         * 推进时间轮，删除到期的entry
+         * 删除会复制链表中排在被删entry前面的entry，复制出的entry不在时间轮中，所以按key找到表中现在的entry再处理
+         * now已经减去了staleNanos
+         */
+        @GuardedBy("this")
+        private void expireVariableEntries(long now) {
+            for (ReferenceEntry<K, V> e : timerWheel.advance(now)) {
+                K key = e.getKey();
+                if (key == null) {
+                    // key被回收了，交给referenceQueue清理
+                    continue;
+                }
+                ReferenceEntry<K, V> live = getEntry(key, e.getHash());
+                if (live == null || (live != e && timerWheel.isScheduled(live))) {
+                    continue;
+                }
+                if (map.isExpired(live, now)) {
+                    removeEntry(live, live.getHash(), RemovalCause.EXPIRED);
+                } else {
+                    // 推进之后又被读过，过期时间变晚了
+                    timerWheel.schedule(live);
+                }
+            }
         }
 
 
@@ -892,35 +2172,136 @@ public class LocalCache<K, V> {
         }
 
         @GuardedBy("this")
-        private void evictEntries(ReferenceEntry<K, V> e) {
-            drainRecencyQueue();
-            if (e.getValueReference().getWeight() > maxSegmentWeight) {
-                if (!removeEntry(e, e.getHash(), RemovalCause.SIZE)) {
+        private void evictEntries() {
+            if (!map.evictsBySize()) {
+                return;
+            }
+            drainReadBuffer();
+            drainWriteBuffer();
+            evictOversized();
+            if (map.evictsByFrequency()) {
+                int candidates = evictFromWindow();
+                evictFromMain(candidates);
+                return;
+            }
+            while (totalWeight > maxSegmentWeight) {
+                ReferenceEntry<K, V> next = getNextEvictable(accessQueue);
+                if (next == null) {
+                    throw new AssertionError();
+                }
+                if (!removeEntry(next, next.getHash(), RemovalCause.SIZE)) {
                     throw new AssertionError();
                 }
             }
+        }
+
+        /**
+         * 记下的entry可能已经被删除、覆盖或者在删除别的entry时被复制，按key重新找到表中的entry再判断
+         */
+        @GuardedBy("this")
+        private void evictOversized() {
+            ReferenceEntry<K, V> e;
+            while ((e = oversized.poll()) != null) {
+                K key = e.getKey();
+                if (key == null) {
+                    continue;
+                }
+                ReferenceEntry<K, V> current = getEntry(key, e.getHash());
+                if (current != null && current.getValueReference().getWeight() > maxSegmentWeight) {
+                    removeEntry(current, current.getHash(), RemovalCause.SIZE);
+                }
+            }
+        }
+
+        /**
+         * 把超出窗口大小的entry从窗口队头移到probation队尾，成为准入main区的候选者
+         * 返回候选者的个数
+         */
+        @GuardedBy("this")
+        private int evictFromWindow() {
+            int candidates = 0;
+            ReferenceEntry<K, V> e;
+            while (windowWeight > maxWindowWeight && (e = accessQueue.peek()) != null) {
+                windowWeight -= e.getValueReference().getWeight();
+                e.setQueueType(PROBATION);
+                probationQueue.add(e);
+                candidates++;
+            }
+            return candidates;
+        }
+
+        /**
+         * 候选者从probation队尾往前取，受害者从probation队头往后取，两两比较频率，输的一方被驱逐
+         * probation为空时依次从protected和窗口中选受害者
+         */
+        @GuardedBy("this")
+        private void evictFromMain(int candidates) {
+            ReferenceEntry<K, V> candidate = (candidates > 0) ? probationQueue.peekLast() : null;
             while (totalWeight > maxSegmentWeight) {
-                ReferenceEntry<K, V> next = getNextEvictable();
-                if (!removeEntry(next, next.getHash(), RemovalCause.SIZE)) {
+                ReferenceEntry<K, V> victim = getNextEvictable(probationQueue);
+                if (victim == null) {
+                    victim = getNextEvictable(protectedQueue);
+                }
+                if (victim == null) {
+                    victim = getNextEvictable(accessQueue);
+                }
+                if (victim == null) {
                     throw new AssertionError();
                 }
+                ReferenceEntry<K, V> evicted = victim;
+                if (candidate != null) {
+                    if (candidate != victim && !admit(candidate, victim)) {
+                        evicted = candidate;
+                    }
+                    candidate = (--candidates > 0) ? probationQueue.previousOf(candidate) : null;
+                }
+                if (!removeEntry(evicted, evicted.getHash(), RemovalCause.SIZE)) {
+                    throw new AssertionError();
+                }
+                if (candidate != null && !accessQueue.contains(candidate)) {
+                    // 删除时复制了链表中排在前面的entry，候选者换成表中复制出的entry
+                    K key = candidate.getKey();
+                    candidate = (key == null) ? null : getEntry(key, candidate.getHash());
+                }
+            }
+        }
+
+        /**
+         * 候选者比受害者用得更频繁时才准入
+         */
+        @GuardedBy("this")
+        private boolean admit(ReferenceEntry<K, V> candidate, ReferenceEntry<K, V> victim) {
+            int victimFreq = frequencySketch.frequency(victim.getHash());
+            int candidateFreq = frequencySketch.frequency(candidate.getHash());
+            if (candidateFreq > victimFreq) {
+                return true;
+            } else if (candidateFreq < ADMIT_HASHDOS_THRESHOLD) {
+                return false;
             }
+            int random = ThreadLocalRandom.current().nextInt();
+            return ((random & 127) == 0);
         }
 
         @GuardedBy("this")
-        private ReferenceEntry<K, V> getNextEvictable() {
-            for (ReferenceEntry<K, V> e : accessQueue) {
+        private ReferenceEntry<K, V> getNextEvictable(Queue<ReferenceEntry<K, V>> queue) {
+            for (ReferenceEntry<K, V> e : queue) {
                 int weight = e.getValueReference().getWeight();
                 if (weight > 0) {
                     return e;
                 }
             }
-            throw new AssertionError();
+            return null;
         }
 
         ReferenceEntry<K, V> getFirst(int hash) {
             AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-            return table.get(hash & (table.length() - 1));
+            ReferenceEntry<K, V> first = table.get(hash & (table.length() - 1));
+            // 这个bucket已经迁到新table了，新table也可能又在扩容
+            while (first instanceof ForwardingEntry) {
+                table = ((ForwardingEntry<K, V>) first).getNextTable();
+                first = table.get(hash & (table.length() - 1));
+            }
+            return first;
         }
 
 
@@ -928,7 +2309,15 @@ public class LocalCache<K, V> {
          * 根据key和hash到map中获取entry
          */
         ReferenceEntry<K, V> getEntry(Object key, int hash) {
-            for (ReferenceEntry<K, V> e = getFirst(hash); e != null; e = e.getNext()) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+            if (table instanceof ProbingTable) {
+                return ((ProbingTable<K, V>) table).find(key, hash, map.keyEquivalence);
+            }
+            ReferenceEntry<K, V> first = getFirst(hash);
+            if (first instanceof SortedBin) {
+                return ((SortedBin<K, V>) first).find(key, hash);
+            }
+            for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
                 if (e.getHash() != hash) {
                     continue;
                 }
@@ -944,6 +2333,56 @@ public class LocalCache<K, V> {
             return null;
         }
 
+        /**
+         * 按原始类型的key查找，只用于key存在entry中的map，比较key不装箱
+         * SortedBin按装箱后的key排序，这里直接遍历它的链表
+         */
+        ReferenceEntry<K, V> getEntry(long key, int hash) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+            if (table instanceof ProbingTable) {
+                return ((ProbingTable<K, V>) table).find(key, hash);
+            }
+            ReferenceEntry<K, V> first = getFirst(hash);
+            if (first instanceof SortedBin) {
+                first = ((SortedBin<K, V>) first).getFirst();
+            }
+            for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+                if (((LongKeyEntry<K, V>) e).getLongKey() == key) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 原始类型key的命中路径，和get(key, hash, loader)的命中分支相同，全程不分配对象
+         * 没命中、value不可用或者过期时返回null，由调用方装箱后走完整的路径
+         */
+        V getLive(long key, int hash, CacheLoader<? super K, V> loader) {
+            try {
+                if (count != 0) {
+                    long now = map.ticker.read();
+                    ReferenceEntry<K, V> e = getEntry(key, hash);
+                    if (e == null) {
+                        return null;
+                    }
+                    if (map.isExpired(e, now)) {
+                        tryExpireEntries(now);
+                        return null;
+                    }
+                    V value = readValue(e);
+                    if (value != null) {
+                        recordRead(e, now);
+                        return scheduleRefresh(e, hash, value, now, loader);
+                    }
+                    tryDrainReferenceQueues();
+                }
+                return null;
+            } finally {
+                postReadCleanup();
+            }
+        }
+
         private ReferenceEntry<K, V> getLiveEntry(Object key, int hash, long now) {
             ReferenceEntry<K, V> entry = getEntry(key, hash);
             if (entry == null) {
@@ -963,7 +2402,7 @@ public class LocalCache<K, V> {
                 return null;
             }
             //如果valueReference中的value被清理掉，则清理引用
-            V value = entry.getValueReference().get();
+            V value = readValue(entry);
             if (value == null) {
                 tryDrainReferenceQueues();
                 return null;
@@ -987,7 +2426,7 @@ public class LocalCache<K, V> {
                 if (entry == null) {
                     return false;
                 }
-                return entry.getValueReference().get() != null;
+                return readValue(entry) != null;
 
             } finally {
                 postReadCleanup();
@@ -998,20 +2437,67 @@ public class LocalCache<K, V> {
         public V put(K key, int hash, V value, boolean onlyIfAbsent) {
             lock();
             try {
-
                 long now = map.ticker.read();
-                preWriteCleanup(now);
-                int newCount = this.count + 1;
-                if (newCount > this.threshold) {
+                preWriteCleanup();
+                if (this.count + 1 > this.threshold) {
                     expand();
-                    newCount = this.count + 1;
                 }
+                return putLocked(key, hash, value, onlyIfAbsent, now);
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
 
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
+        /**
+         * 批量写入，整个segment只加一次锁：按写入的个数一次扩容到位，通知在写完之后统一发出
+         * 超过最大权重时每写一个就驱逐，不会在锁内攒下一整批该驱逐的entry
+         * keys[indexes[from..to)]都属于这个segment
+         */
+        @SuppressWarnings("unchecked")
+        void putAll(Object[] keys, int[] hashes, Object[] values, int[] indexes, int from, int to) {
+            lock();
+            try {
+                long now = map.ticker.read();
+                preWriteCleanup();
+                long expected = (long) this.count + (to - from);
+                if (map.evictsBySize() && !map.customWeigher()) {
+                    // 按个数驱逐时最多留下maxSegmentWeight个，不为会被挤掉的entry扩容
+                    expected = Math.min(expected, maxSegmentWeight);
+                }
+                if (expected > this.threshold) {
+                    int capacity = capacity();
+                    while (capacity < MAXIMUM_CAPACITY && thresholdFor(capacity) < expected) {
+                        capacity <<= 1;
+                    }
+                    resize(capacity);
+                }
+                for (int i = from; i < to; i++) {
+                    int index = indexes[i];
+                    if (this.count + 1 > this.threshold) {
+                        expand();
+                    }
+                    makeRoomForInsert();
+                    putLocked((K) keys[index], hashes[index], (V) values[index], false, now);
+                    if (map.evictsBySize() && totalWeight > maxSegmentWeight) {
+                        evictEntries();
+                    }
+                    transfer(TRANSFER_STRIDE);
+                }
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
 
-                for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+        @GuardedBy("this")
+        private V putLocked(K key, int hash, V value, boolean onlyIfAbsent, long now) {
+                int newCount;
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entryKey = e.getKey();
                     //find an existing value
                     if (e.getHash() == hash && equalsKey(key, entryKey)) {
@@ -1028,7 +2514,12 @@ public class LocalCache<K, V> {
                                 newCount = this.count + 1;
                             }
                             this.count = newCount;
-                            evictEntries(e);
+                            return null;
+                        } else if (map.isExpired(e, now)) {
+                            // 过期了但还没被维护清理掉，按不存在处理
+                            modCount++;
+                            enqueueNotification(key, entryValue, valueReference.getWeight(), RemovalCause.EXPIRED);
+                            setValue(e, key, value, now);
                             return null;
                         } else if (onlyIfAbsent) {
                             recordLockedRead(e, now);
@@ -1037,7 +2528,6 @@ public class LocalCache<K, V> {
                             modCount++;
                             enqueueNotification(key, entryValue, valueReference.getWeight(), RemovalCause.REPLACED);
                             setValue(e, key, value, now);
-                            evictEntries(e);
                             return entryValue;
                         }
                     }
@@ -1045,31 +2535,267 @@ public class LocalCache<K, V> {
                 modCount++;
                 ReferenceEntry<K, V> newEntry = newEntry(key, hash, first);
                 setValue(newEntry, key, value, now);
-                table.set(index, newEntry);
+                setFirst(table, index, newEntry);
                 newCount = this.count + 1;
                 this.count = newCount;
-                evictEntries(newEntry);
                 return null;
+        }
+
+        @GuardedBy("this")
+        void expand() {
+            resize(capacity() << 1);
+        }
+
+        /**
+         * 负载降到1/16以下时缩容，缩完负载约3/8，和扩容的3/4之间留出足够的余量，不会来回扩缩
+         * 返回是否开始了缩容
+         */
+        @GuardedBy("this")
+        boolean shrinkIfSparse() {
+            int capacity = capacity();
+            int occupied = count + loadFailures.size();
+            if (capacity <= minimumCapacity || occupied >= (capacity >>> 4)) {
+                return false;
+            }
+            int newCapacity = minimumCapacity;
+            while (newCapacity < capacity && (long) newCapacity * 3 < (long) occupied * 8) {
+                newCapacity <<= 1;
+            }
+            resize(newCapacity);
+            return true;
+        }
+
+        /**
+         * 把table缩到刚好放得下现有entry的大小，不低于初始大小，在调用线程上一次迁完
+         * 不像shrinkIfSparse那样等负载降到1/16，只要有更小的table能放下就缩
+         */
+        void trimToSize() {
+            lock();
+            try {
+                preWriteCleanup();
+                finishTransfer();
+                int occupied = count + loadFailures.size();
+                int newCapacity = minimumCapacity;
+                while (newCapacity < MAXIMUM_CAPACITY && thresholdFor(newCapacity) < occupied) {
+                    newCapacity <<= 1;
+                }
+                if (newCapacity < capacity()) {
+                    resize(newCapacity);
+                    finishTransfer();
+                }
             } finally {
                 unlock();
                 postWriteCleanup();
             }
         }
 
+        /**
+         * 正在填充的table的大小，扩容中是新table的大小
+         */
+        @GuardedBy("this")
+        int capacity() {
+            AtomicReferenceArray<ReferenceEntry<K, V>> nextTable = this.nextTable;
+            return (nextTable != null) ? nextTable.length() : table.length();
+        }
+
+        /**
+         * 扩容或缩容到newCapacity（2的幂），批量写入时一次扩到位，不用一次次翻倍
+         * 只分配新table并发布迁移状态，bucket由之后的写操作和维护每次迁移TRANSFER_STRIDE个，不会一次停顿太久
+         * 上一次还没迁完时先迁完
+         */
         @GuardedBy("this")
-        void expand() {
+        void resize(int newCapacity) {
+            finishTransfer();
             AtomicReferenceArray<ReferenceEntry<K, V>> oldTable = this.table;
             int oldCapacity = oldTable.length();
-            if (oldCapacity >= MAXIMUM_CAPACITY) {
+            newCapacity = Math.min(newCapacity, MAXIMUM_CAPACITY);
+            if (newCapacity == oldCapacity) {
+                return;
+            }
+            if (frequencySketch != null && map.customWeigher()) {
+                frequencySketch.ensureCapacity(newCapacity);
+            }
+            if (oldTable instanceof ProbingTable) {
+                rehash(newCapacity);
+                return;
+            }
+            AtomicReferenceArray<ReferenceEntry<K, V>> newTable = newEntryArray(newCapacity);
+            threshold = thresholdFor(newTable.length());
+            nextTable = newTable;
+            forwarding = new ForwardingEntry<>(newTable);
+            transferIndex = oldCapacity;
+            transfer(TRANSFER_STRIDE);
+        }
+
+        /**
+         * 开放寻址的table一次重建完：探测序列跨越bucket，没法一个bucket一个bucket地迁移
+         * entry的next总是null，直接放进新table，不用复制，读线程在旧table上仍能读到它们；墓碑在这里清掉
+         */
+        @GuardedBy("this")
+        void rehash(int newCapacity) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> oldTable = this.table;
+            ProbingTable<K, V> newTable = new ProbingTable<>(newCapacity);
+            for (int i = 0; i < oldTable.length(); i++) {
+                ReferenceEntry<K, V> e = oldTable.get(i);
+                if (ProbingTable.isEntry(e)) {
+                    newTable.add(e);
+                }
+            }
+            initTable(newTable);
+        }
+
+        /**
+         * 开放寻址的table至少要留一个空slot，探测才会停下：每次加锁写之前保证再插入一个entry也不超过threshold
+         * 墓碑占了大半时原大小重建就够了，否则扩容
+         */
+        @GuardedBy("this")
+        void makeRoomForInsert() {
+            AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+            if (!(table instanceof ProbingTable) || ((ProbingTable<K, V>) table).used < threshold) {
+                return;
+            }
+            int capacity = table.length();
+            if (count >= threshold / 2 && capacity < MAXIMUM_CAPACITY) {
+                capacity <<= 1;
+            }
+            rehash(capacity);
+        }
+
+        @GuardedBy("this")
+        void finishTransfer() {
+            transfer(Integer.MAX_VALUE);
+        }
+
+        /**
+         * 锁内写操作用：key所在的bucket还没迁移时返回旧table，否则返回新table
+         */
+        @GuardedBy("this")
+        AtomicReferenceArray<ReferenceEntry<K, V>> tableFor(int hash) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
+            if (nextTable != null && table.get(hash & (table.length() - 1)) == forwarding) {
+                return nextTable;
+            }
+            return table;
+        }
+
+        /**
+         * 桶里的链表头，SortedBin要先拆开
+         */
+        ReferenceEntry<K, V> firstAt(AtomicReferenceArray<ReferenceEntry<K, V>> table, int index) {
+            ReferenceEntry<K, V> head = table.get(index);
+            if (head instanceof SortedBin) {
+                return ((SortedBin<K, V>) head).getFirst();
+            }
+            return ProbingTable.isEntry(head) ? head : null;
+        }
+
+        /**
+         * 锁内key所在的bucket；开放寻址时是key所在的slot，key不存在时是可以插入它的slot
+         */
+        @GuardedBy("this")
+        int indexFor(AtomicReferenceArray<ReferenceEntry<K, V>> table, Object key, int hash) {
+            if (table instanceof ProbingTable) {
+                return ((ProbingTable<K, V>) table).indexFor(key, hash, map.keyEquivalence);
+            }
+            return hash & (table.length() - 1);
+        }
+
+        /**
+         * 锁内entry所在的bucket，按引用找，key已经被回收的entry也适用
+         */
+        @GuardedBy("this")
+        int indexOf(AtomicReferenceArray<ReferenceEntry<K, V>> table, ReferenceEntry<K, V> entry, int hash) {
+            if (table instanceof ProbingTable) {
+                return ((ProbingTable<K, V>) table).indexOf(entry, hash);
+            }
+            return hash & (table.length() - 1);
+        }
+
+        /**
+         * 锁内value所在的bucket，按引用找，不需要key
+         */
+        @GuardedBy("this")
+        int indexOf(AtomicReferenceArray<ReferenceEntry<K, V>> table, ValueReference<K, V> valueReference, int hash) {
+            if (table instanceof ProbingTable) {
+                return ((ProbingTable<K, V>) table).indexOf(valueReference, hash);
+            }
+            return hash & (table.length() - 1);
+        }
+
+        /**
+         * 锁内按key找entry时遍历的起点：普通链表从头开始，SortedBin直接二分查到这个key的entry，没有时返回null
+         * key已经被回收时只能从头遍历
+         */
+        @GuardedBy("this")
+        ReferenceEntry<K, V> lookupStart(AtomicReferenceArray<ReferenceEntry<K, V>> table, int index,
+                                         Object key, int hash, ReferenceEntry<K, V> first) {
+            ReferenceEntry<K, V> head = table.get(index);
+            if (key != null && head instanceof SortedBin) {
+                return ((SortedBin<K, V>) head).find(key, hash);
+            }
+            return first;
+        }
+
+        /**
+         * 换上新的链表，链表太长时建SortedBin，已经是bin的更新bin
+         */
+        @GuardedBy("this")
+        void setFirst(AtomicReferenceArray<ReferenceEntry<K, V>> table, int index, ReferenceEntry<K, V> newFirst) {
+            if (table instanceof ProbingTable) {
+                ((ProbingTable<K, V>) table).setSlot(index, newFirst);
                 return;
             }
+            ReferenceEntry<K, V> head = table.get(index);
+            if (head instanceof SortedBin) {
+                table.set(index, ((SortedBin<K, V>) head).withChain(newFirst));
+            } else if (map.sortsBins() && SortedBin.isLong(newFirst)) {
+                table.set(index, SortedBin.of(newFirst));
+            } else {
+                table.set(index, newFirst);
+            }
+        }
+
+        /**
+         * 从高往低迁移最多buckets个非空bucket
+         * 扩容时旧bucket i中的entry只会落到新table的i + k * oldCapacity中，这些新bucket在迁移前没有写入，是空的
+         * 缩容时旧bucket整条链都落到新table的同一个bucket，那里为空就直接挂上去，否则复制到它前面
+         * 旧bucket保持不变，迁完后放上forwarding，已经读到旧链表的读线程仍能看到完整的快照
+         */
+        @GuardedBy("this")
+        private void transfer(int buckets) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> newTable = nextTable;
+            if (newTable == null) {
+                return;
+            }
+            // 迁移会复制entry，复制前先把写事件处理掉
+            drainWriteBuffer();
+            AtomicReferenceArray<ReferenceEntry<K, V>> oldTable = this.table;
             int newCount = count;
-            AtomicReferenceArray<ReferenceEntry<K, V>> newTable = newEntryArray(oldCapacity << 1);
-            threshold = newTable.length() * 3 / 4;
             int newMask = newTable.length() - 1;
-            for (int oldIndex = 0; oldIndex < oldCapacity; ++oldIndex) {
-                ReferenceEntry<K, V> head = oldTable.get(oldIndex);
-                if (head != null) {
+            // 空bucket只需要放上forwarding，按1/16个bucket计，缩容时大片空的table也能很快迁完
+            long budget = (long) buckets << 4;
+            while (budget > 0 && transferIndex > 0) {
+                int oldIndex = --transferIndex;
+                ReferenceEntry<K, V> head = firstAt(oldTable, oldIndex);
+                budget -= (head == null) ? 1 : 16;
+                if (head != null && newTable.length() < oldTable.length()) {
+                    int newIndex = oldIndex & newMask;
+                    ReferenceEntry<K, V> newFirst = firstAt(newTable, newIndex);
+                    if (newFirst == null) {
+                        setFirst(newTable, newIndex, head);
+                    } else {
+                        for (ReferenceEntry<K, V> e = head; e != null; e = e.getNext()) {
+                            ReferenceEntry<K, V> copied = copyEntry(e, newFirst);
+                            if (copied != null) {
+                                newFirst = copied;
+                            } else {
+                                removeCollectedEntry(e);
+                                newCount--;
+                            }
+                        }
+                        setFirst(newTable, newIndex, newFirst);
+                    }
+                } else if (head != null) {
                     ReferenceEntry<K, V> next = head.getNext();
                     int headIndex = head.getHash() & newMask;
                     if (next == null) {
@@ -1091,25 +2817,38 @@ public class LocalCache<K, V> {
                             int newIndex = e.getHash() & newMask;
                             ReferenceEntry<K, V> newNext = newTable.get(newIndex);
                             ReferenceEntry<K, V> newFirst = copyEntry(e, newNext);
-                            newTable.set(newIndex, newFirst);
+                            if (newFirst != null) {
+                                newTable.set(newIndex, newFirst);
+                            } else {
+                                removeCollectedEntry(e);
+                                newCount--;
+                            }
                         }
                     }
+                    // 拆开后还很长的链表重新建bin
+                    for (int i = oldIndex; i < newTable.length(); i += oldTable.length()) {
+                        setFirst(newTable, i, newTable.get(i));
+                    }
                 }
+                oldTable.set(oldIndex, forwarding);
             }
-            table = newTable;
             this.count = newCount;
+            if (transferIndex == 0) {
+                table = newTable;
+                nextTable = null;
+                forwarding = null;
+            }
         }
 
-
         public V replace(K key, int hash, V newValue) {
             lock();
             try {
                 long now = map.ticker.read();
-                preWriteCleanup(now);
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
-                for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+                preWriteCleanup();
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entryKey = e.getKey();
                     if (equalsKey(key, entryKey)) {
                         ValueReference<K, V> valueReference = e.getValueReference();
@@ -1120,25 +2859,160 @@ public class LocalCache<K, V> {
                             ReferenceEntry<K, V> newFirst = removeValueFromChain(first, e, entryKey, null, valueReference
                                     , RemovalCause.COLLECTED);
                             newCount = this.count - 1;
-                            table.set(index, newFirst);
+                            setFirst(table, index, newFirst);
                             this.count = newCount;
                             return null;
+                        } else if (map.isExpired(e, now)) {
+                            // 过期了但还没被维护清理掉，按不存在处理
+                            return null;
                         } else {
                             modCount++;
                             enqueueNotification(key, entryValue, valueReference.getWeight(), RemovalCause.REPLACED);
                             setValue(e, key, newValue, now);
-                            evictEntries(e);
                             return entryValue;
                         }
                     }
                 }
                 return null;
             } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
+
+
+        public boolean replace(K key, int hash, V oldValue, V newValue) {
+            lock();
+            try {
+                long now = map.ticker.read();
+                preWriteCleanup();
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
+                    K entryKey = e.getKey();
+                    if (e.getHash() == hash && equalsKey(key, entryKey)) {
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        V entryValue = valueReference.get();
+                        // 被回收或过期的留给维护清理，按不存在处理
+                        if (entryValue == null || map.isExpired(e, now)
+                                || !map.valueEquivalence.equivalent(oldValue, entryValue)) {
+                            return false;
+                        }
+                        modCount++;
+                        enqueueNotification(key, entryValue, valueReference.getWeight(), RemovalCause.REPLACED);
+                        setValue(e, key, newValue, now);
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                unlock();
                 postWriteCleanup();
+            }
+        }
+
+        public boolean remove(Object key, int hash, Object value) {
+            lock();
+            try {
+                long now = map.ticker.read();
+                preWriteCleanup();
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
+                    K entryKey = e.getKey();
+                    if (e.getHash() == hash && equalsKey(key, entryKey)) {
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        V entryValue = valueReference.get();
+                        if (entryValue == null || map.isExpired(e, now)
+                                || !map.valueEquivalence.equivalent(value, entryValue)) {
+                            return false;
+                        }
+                        modCount++;
+                        ReferenceEntry<K, V> newFirst = removeValueFromChain(first, e, entryKey, entryValue, valueReference,
+                                RemovalCause.EXPLICIT);
+                        int newCount = this.count - 1;
+                        setFirst(table, index, newFirst);
+                        this.count = newCount;
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
                 unlock();
+                postWriteCleanup();
             }
         }
 
+        /**
+         * 在锁内读旧值、算新值、写回，只查一次链表
+         * 被回收、过期、正在加载（没有旧值）或者记着加载失败的entry，旧值按null处理
+         * 新值为null时删除entry，新值和旧值是同一个对象时什么也不写，只记一次读
+         * function在锁内执行，不能再修改这个cache
+         */
+        V compute(K key, int hash, BiFunction<? super K, ? super V, ? extends V> function) {
+            lock();
+            try {
+                long now = map.ticker.read();
+                preWriteCleanup();
+                if (this.count + 1 > this.threshold) {
+                    expand();
+                }
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
+                    K entryKey = e.getKey();
+                    if (e.getHash() == hash && equalsKey(key, entryKey)) {
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        V entryValue = valueReference.get();
+                        boolean expired = entryValue != null && map.isExpired(e, now);
+                        V oldValue = expired ? null : entryValue;
+                        V newValue = function.apply(key, oldValue);
+                        if (newValue == oldValue) {
+                            if (oldValue != null) {
+                                recordLockedRead(e, now);
+                            }
+                            return oldValue;
+                        }
+                        modCount++;
+                        if (newValue == null) {
+                            ReferenceEntry<K, V> newFirst = removeValueFromChain(first, e, entryKey, entryValue,
+                                    valueReference, RemovalCause.EXPLICIT);
+                            int newCount = this.count - 1;
+                            setFirst(table, index, newFirst);
+                            this.count = newCount;
+                            return null;
+                        }
+                        if (entryValue != null) {
+                            enqueueNotification(key, entryValue, valueReference.getWeight(),
+                                    expired ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+                        } else if (valueReference.isActive()) {
+                            enqueueNotification(key, null, valueReference.getWeight(), RemovalCause.COLLECTED);
+                        } else {
+                            // 正在加载或者记着加载失败的entry不计数
+                            this.count++;
+                        }
+                        setValue(e, key, newValue, now);
+                        return newValue;
+                    }
+                }
+                V newValue = function.apply(key, null);
+                if (newValue == null) {
+                    return null;
+                }
+                modCount++;
+                ReferenceEntry<K, V> newEntry = newEntry(key, hash, first);
+                setValue(newEntry, key, newValue, now);
+                setFirst(table, index, newEntry);
+                this.count++;
+                return newValue;
+            } finally {
+                unlock();
+                postWriteCleanup();
+            }
+        }
 
         /**
          * 首先找到这个entry
@@ -1152,16 +3026,14 @@ public class LocalCache<K, V> {
         public V remove(Object key, int hash) {
             lock();
             try {
-
-                long now = map.ticker.read();
-                preWriteCleanup(now);
+                preWriteCleanup();
 
                 int newCount = this.count - 1;
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
 
-                for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entryKey = e.getKey();
                     if (e.getHash() == hash && equalsKey(key, entryKey)) {
                         ValueReference<K, V> valueReference = e.getValueReference();
@@ -1171,6 +3043,11 @@ public class LocalCache<K, V> {
                             cause = RemovalCause.EXPLICIT;
                         } else if (valueReference.isActive()) {  //entryValue==null
                             cause = RemovalCause.COLLECTED;
+                        } else if (valueReference instanceof FailedValueReference) {
+                            // 忘掉记住的加载失败，下次读重新加载
+                            modCount++;
+                            setFirst(table, index, removeEntryFromChain(first, e));
+                            return null;
                         } else {
                             //current loading
                             return null;
@@ -1178,7 +3055,7 @@ public class LocalCache<K, V> {
                         modCount++;
                         ReferenceEntry<K, V> newFirst = removeValueFromChain(first, e, entryKey, entryValue, valueReference, cause);
                         newCount = this.count - 1;
-                        table.set(index, newFirst);
+                        setFirst(table, index, newFirst);
                         this.count = newCount;
                         return entryValue;
                     }
@@ -1197,16 +3074,16 @@ public class LocalCache<K, V> {
             lock();
             try {
                 long now = map.ticker.read();
-                preWriteCleanup(now);
+                preWriteCleanup();
                 int newCount = this.count + 1;
                 if (newCount > this.threshold) {
                     expand();
                     newCount = this.count + 1;
                 }
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
-                for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entryKey = e.getKey();
                     if (e.getHash() == hash && equalsKey(key, entryKey)) {
                         ValueReference<K, V> valueReference = e.getValueReference();
@@ -1222,7 +3099,6 @@ public class LocalCache<K, V> {
                             }
                             setValue(e, key, newValue, now);
                             this.count = newCount;
-                            evictEntries(e);
                             return true;
                         }
                         // the loaded value was already clobbered
@@ -1234,9 +3110,8 @@ public class LocalCache<K, V> {
                 modCount++;
                 ReferenceEntry<K, V> newEntry = newEntry(key, hash, first);
                 setValue(newEntry, key, newValue, now);
-                table.set(index, newEntry);
+                setFirst(table, index, newEntry);
                 this.count = newCount;
-                evictEntries(newEntry);
                 return true;
             } finally {
                 unlock();
@@ -1246,28 +3121,48 @@ public class LocalCache<K, V> {
 
 
         public void clear() {
-            if (count == 0) {
+            // 失败的entry不算在count中，只有失败的entry时也要清掉
+            if (count == 0 && loadFailures.isEmpty()) {
                 return;
             }
             lock();
             try {
-                long now = map.ticker.read();
-                preWriteCleanup(now);
+                preWriteCleanup();
                 AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
                 for (int i = 0; i < table.length(); i++) {
-                    for (ReferenceEntry<K, V> e = table.get(i); e != null; e = e.getNext()) {
-                        K key = e.getKey();
-                        V value = e.getValueReference().get();
-                        RemovalCause cause = (key == null || value == null) ? RemovalCause.COLLECTED : RemovalCause.EXPLICIT;
-                        enqueueNotification(key, value, e.getValueReference().getWeight(), cause);
-                    }
-                }
-                for (int i = 0; i < table.length(); i++) {
-                    table.set(i, null);
+                    scanBucket(table, i, e -> {
+                        ValueReference<K, V> valueReference = e.getValueReference();
+                        // 加载中和失败的entry没有value，不发通知
+                        if (valueReference.isActive()) {
+                            K key = e.getKey();
+                            V value = valueReference.get();
+                            RemovalCause cause = (key == null || value == null) ? RemovalCause.COLLECTED : RemovalCause.EXPLICIT;
+                            enqueueNotification(key, value, valueReference.getWeight(), cause);
+                        }
+                        releaseValue(valueReference);
+                        return false;
+                    });
                 }
+                // 直接换成初始大小的空table，扩容中没迁完的一起丢掉
+                nextTable = null;
+                forwarding = null;
+                transferIndex = 0;
+                initTable(newEntryArray(minimumCapacity));
                 clearReferenceQueues();
+                drainWriteBuffer();
                 writeQueue.clear();
                 accessQueue.clear();
+                if (timerWheel != null) {
+                    timerWheel.clear();
+                }
+                loadFailures.clear();
+                oversized.clear();
+                if (map.evictsByFrequency()) {
+                    probationQueue.clear();
+                    protectedQueue.clear();
+                    windowWeight = 0;
+                    protectedWeight = 0;
+                }
                 readCount.set(0);
                 modCount++;
                 count = 0;
@@ -1292,12 +3187,12 @@ public class LocalCache<K, V> {
                 ValueReference<K, V> valueReference,
                 RemovalCause cause) {
             enqueueNotification(key, value, valueReference.getWeight(), cause);
-            writeQueue.remove(entry);
-            accessQueue.remove(entry);
+            afterRemoval(entry, valueReference.getWeight());
             if (valueReference.isLoading()) {
                 valueReference.notifyNewValue(null);
                 return first;
             } else {
+                releaseValue(valueReference);
                 return removeEntryFromChain(first, entry);
             }
         }
@@ -1309,13 +3204,18 @@ public class LocalCache<K, V> {
          */
         private ReferenceEntry<K, V> removeEntryFromChain(ReferenceEntry<K, V> first,
                                                           ReferenceEntry<K, V> entry) {
+            if (first != entry) {
+                // entry前面的节点会被复制，复制前先把它们的写事件处理掉，事件里记的还是旧的entry
+                drainWriteBuffer();
+            }
             int newCount = count;
             ReferenceEntry<K, V> newFirst = entry.getNext();
             for (ReferenceEntry<K, V> e = first; e != entry; e = e.getNext()) {
                 ReferenceEntry<K, V> next = copyEntry(e, newFirst);
                 if (next != null) {
                     newFirst = next;
-                } else {
+                } else if (!(e.getValueReference() instanceof FailedValueReference)) {
+                    // 记住的加载失败不计入count，key被回收时直接丢掉
                     removeCollectedEntry(e);
                     newCount--;
                 }
@@ -1328,11 +3228,11 @@ public class LocalCache<K, V> {
         private boolean removeLoadingValue(K key, int hash, LoadingValueReference<K, V> loadingValueReference) {
             lock();
             try {
-                AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-                int index = hash & (table.length() - 1);
-                ReferenceEntry<K, V> first = table.get(index);
+                AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
 
-                for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+                for (ReferenceEntry<K, V> e = lookupStart(table, index, key, hash, first); e != null; e = e.getNext()) {
                     K entry = e.getKey();
                     if (equalsKey(key, entry)) {
                         ValueReference<K, V> v = e.getValueReference();
@@ -1340,8 +3240,9 @@ public class LocalCache<K, V> {
                             if (loadingValueReference.isActive()) {
                                 e.setValueReference(loadingValueReference.oldValue);
                             } else {
+                                releaseValue(loadingValueReference);
                                 ReferenceEntry<K, V> newFirst = removeEntryFromChain(first, e);
-                                table.set(index, newFirst);
+                                setFirst(table, index, newFirst);
                             }
                             return true;
                         } else {
@@ -1366,10 +3267,10 @@ public class LocalCache<K, V> {
         @GuardedBy("this")
         private boolean removeEntry(ReferenceEntry<K, V> entry, int hash, RemovalCause cause) {
             int newCount;
-            AtomicReferenceArray<ReferenceEntry<K, V>> table = this.table;
-            int index = hash & (table.length() - 1);
-            ReferenceEntry<K, V> first = table.get(index);
-            for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+            AtomicReferenceArray<ReferenceEntry<K, V>> table = tableFor(hash);
+            int index = indexOf(table, entry, hash);
+            ReferenceEntry<K, V> first = firstAt(table, index);
+            for (ReferenceEntry<K, V> e = lookupStart(table, index, entry.getKey(), hash, first); e != null; e = e.getNext()) {
                 if (e == entry) {
                     modCount++;
                     ReferenceEntry<K, V> newFirst = removeValueFromChain(
@@ -1381,8 +3282,10 @@ public class LocalCache<K, V> {
                             cause
                     );
                     newCount = this.count - 1;
-                    table.set(index, newFirst);
+                    setFirst(table, index, newFirst);
                     this.count = newCount;
+                    // 过期和驱逐时接下来还要看队头，要立刻从队列中摘掉
+                    drainWriteBuffer();
                     return true;
                 }
             }
@@ -1396,8 +3299,8 @@ public class LocalCache<K, V> {
         @GuardedBy("this")
         private void removeCollectedEntry(ReferenceEntry<K, V> e) {
             enqueueNotification(e.getKey(), e.getValueReference().get(), e.getValueReference().getWeight(), RemovalCause.COLLECTED);
-            writeQueue.remove(e);
-            accessQueue.remove(e);
+            afterRemoval(e, e.getValueReference().getWeight());
+            releaseValue(e.getValueReference());
         }
 
 
@@ -1407,46 +3310,121 @@ public class LocalCache<K, V> {
          * 在读次数达到阈值的时候cleanUp
          */
         private void postReadCleanup() {
-            if ((readCount.incrementAndGet() & map.DRAIN_THRESHOLD) == 0) {
-                cleanUp();
+            postReadCleanup(1);
+        }
+
+        /**
+         * 一次记下多个读，readCount越过DRAIN_THRESHOLD的整数倍时做一次维护
+         */
+        private void postReadCleanup(int reads) {
+            int current = readCount.addAndGet(reads);
+            if (((current & ~map.DRAIN_THRESHOLD) != ((current - reads) & ~map.DRAIN_THRESHOLD))
+                    || (drainStatus.get() == REQUIRED)) {
+                scheduleMaintenance();
+            }
+        }
+
+        /**
+         * 非锁方法，写事件攒够一批或者需要驱逐时做一次维护，然后处理一下listeners
+         */
+        private void postWriteCleanup() {
+            if (!isHeldByCurrentThread() && requiresMaintenance()) {
+                scheduleMaintenance();
+            } else {
+                runUnlockedCleanup();
+            }
+        }
+
+        /**
+         * totalWeight不加锁读，只是一个估计
+         */
+        private boolean requiresMaintenance() {
+            return (drainStatus.get() == REQUIRED)
+                    || (writeBuffer != null && writeBuffer.size() >= WRITE_BUFFER_DRAIN_THRESHOLD)
+                    || (map.evictsBySize() && totalWeight > maxSegmentWeight);
+        }
+
+        /**
+         * 把维护任务提交给executor，已经提交或者正在维护时只标记一下，结束后再做一次
+         * 默认的executor直接在当前线程上维护
+         */
+        void scheduleMaintenance() {
+            for (;;) {
+                int status = drainStatus.get();
+                if (status == IDLE || status == REQUIRED) {
+                    if (drainStatus.compareAndSet(status, PROCESSING_TO_IDLE)) {
+                        try {
+                            map.executor.execute(drainTask);
+                        } catch (Throwable t) {
+                            logger.log(Level.WARNING, "Exception thrown when submitting maintenance task", t);
+                            performCleanUp();
+                        }
+                        return;
+                    }
+                } else if (status == PROCESSING_TO_IDLE) {
+                    if (drainStatus.compareAndSet(PROCESSING_TO_IDLE, PROCESSING_TO_REQUIRED)) {
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 维护任务：抢不到锁说明有写操作正在进行，标记为REQUIRED，由之后的读写重新提交
+         * 维护期间又有新的请求时，用单独的executor的话马上再提交一次
+         */
+        void performCleanUp() {
+            boolean rerun = false;
+            if (tryLock()) {
+                try {
+                    drainStatus.set(PROCESSING_TO_IDLE);
+                    runMaintenance(map.ticker.read());
+                } finally {
+                    if (!drainStatus.compareAndSet(PROCESSING_TO_IDLE, IDLE)) {
+                        drainStatus.set(REQUIRED);
+                        rerun = true;
+                    }
+                    unlock();
+                }
+            } else {
+                drainStatus.set(REQUIRED);
+            }
+            if (!isHeldByCurrentThread()) {
+                map.processPendingNotifications();
+            }
+            if (rerun && map.usesExecutor()) {
+                scheduleMaintenance();
             }
         }
 
         /**
-         * 非锁方法，处理一下listeners
-         */
-        private void postWriteCleanup() {
-            runUnlockedCleanup();
-        }
-
-        /**
-         * 锁方法，过期entry, 清理referenceQueue，重设readCount
+         * 锁方法，只清理referenceQueue，过期和驱逐留给维护
          */
         @GuardedBy("this")
-        private void preWriteCleanup(long now) {
-            runLockedCleanup(now);
+        private void preWriteCleanup() {
+            drainReferenceQueues();
+            transfer(TRANSFER_STRIDE);
+            makeRoomForInsert();
         }
 
 
         /**
-         * 锁方法：过期entry, 清理referenceQueue，重设readCount
-         * 非锁方法：处理一下清理后的监听
+         * 在调用线程上做一次维护并处理监听，Cache.cleanUp使用
          */
         private void cleanUp() {
             long now = map.ticker.read();
             runLockedCleanup(now);
-            runUnlockedCleanup();
+            if (!isHeldByCurrentThread()) {
+                map.processPendingNotifications();
+            }
         }
 
-        /**
-         * 过期entry, 清理referenceQueue，重设readCount
-         */
         private void runLockedCleanup(long now) {
             if (tryLock()) {
                 try {
-                    drainReferenceQueues();
-                    expireEntries(now);
-                    readCount.set(0);
+                    runMaintenance(now);
                 } finally {
                     unlock();
                 }
@@ -1454,11 +3432,34 @@ public class LocalCache<K, V> {
         }
 
         /**
-         * 非锁方法：处理一下清理后的监听
+         * 维护：清理referenceQueue，重放读写事件，过期entry，驱逐超出大小的entry，重设readCount
+         */
+        @GuardedBy("this")
+        private void runMaintenance(long now) {
+            drainReferenceQueues();
+            transfer(TRANSFER_STRIDE);
+            expireEntries(now);
+            evictEntries();
+            if (nextTable == null) {
+                shrinkIfSparse();
+            }
+            readCount.set(0);
+            if (map.pacer != null) {
+                updateExpirationDeadline(now);
+            }
+        }
+
+        /**
+         * 非锁方法：处理一下清理后的监听，用单独的executor时交给维护任务处理
          */
         void runUnlockedCleanup() {
-            if (!isHeldByCurrentThread()) {
+            if (isHeldByCurrentThread()) {
+                return;
+            }
+            if (!map.usesExecutor()) {
                 map.processPendingNotifications();
+            } else if (!map.removalNotificationQueue.isEmpty()) {
+                scheduleMaintenance();
             }
         }
 
@@ -1472,13 +3473,18 @@ public class LocalCache<K, V> {
             lock();
             try {
                 int newCount = count-1;
-                AtomicReferenceArray<ReferenceEntry<K,V>> table = this.table;
-                int index = hash & (table.length()-1);
-                ReferenceEntry<K,V> first = table.get(index);
+                AtomicReferenceArray<ReferenceEntry<K,V>> table = tableFor(hash);
+                int index = indexOf(table, entry, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
 
-                for (ReferenceEntry<K,V> e = first;e!=null;e = e.getNext()){
+                for (ReferenceEntry<K,V> e = lookupStart(table, index, entry.getKey(), hash, first);e!=null;e = e.getNext()){
                     if(e==entry){
                         modCount++;
+                        if (e.getValueReference() instanceof FailedValueReference) {
+                            // 记住的加载失败不计入count，也不用通知
+                            setFirst(table, index, removeEntryFromChain(first, e));
+                            return true;
+                        }
                         ReferenceEntry<K,V> newFirst = removeValueFromChain(
                                 first,
                                 e,
@@ -1488,7 +3494,7 @@ public class LocalCache<K, V> {
                                 RemovalCause.COLLECTED
                         );
                         newCount = this.count-1;
-                        table.set(index,newFirst);
+                        setFirst(table, index, newFirst);
                         this.count = newCount;
                         return true;
                     }
@@ -1504,10 +3510,10 @@ public class LocalCache<K, V> {
             lock();
             try {
                 int newCount = this.count-1;
-                AtomicReferenceArray<ReferenceEntry<K,V>> table = this.table;
-                int index = hash & (table.length()-1);
-                ReferenceEntry<K,V> first = table.get(index);
-                for (ReferenceEntry<K,V> e = first;e!=null;e = e.getNext()){
+                AtomicReferenceArray<ReferenceEntry<K,V>> table = tableFor(hash);
+                int index = indexFor(table, key, hash);
+                ReferenceEntry<K, V> first = firstAt(table, index);
+                for (ReferenceEntry<K,V> e = lookupStart(table, index, key, hash, first);e!=null;e = e.getNext()){
                     K entryKey = e.getKey();
                     if(e.getHash()==hash && equalsKey(key,entryKey)){
                         ValueReference<K,V> v = e.getValueReference();
@@ -1522,7 +3528,7 @@ public class LocalCache<K, V> {
                                     RemovalCause.COLLECTED
                             );
                             newCount = this.count-1;
-                            table.set(index,newFirst);
+                            setFirst(table, index, newFirst);
                             this.count = newCount;
                             return true;
                         }
@@ -1540,18 +3546,48 @@ public class LocalCache<K, V> {
     }
 
 
+    /**
+     * 把每个segment的table缩到和当前entry数相称的大小
+     */
+    public void trimToSize() {
+        for (Segment<K, V> segment : segments) {
+            segment.trimToSize();
+        }
+    }
+
     public void cleanUp() {
         for (Segment<K, V> segment : segments) {
             segment.cleanUp();
         }
     }
 
+    /**
+     * pacer唤醒时，给已经到了过期时间的segment安排一次维护，维护后会重新计算过期时间
+     * 这次没能维护的segment（比如锁被占用）过一会儿再试
+     */
+    void expireOnSchedule() {
+        long now = ticker.read();
+        for (Segment<K, V> segment : segments) {
+            if (segment.expirationDeadline - now <= 0) {
+                segment.scheduleMaintenance();
+            }
+        }
+        long next = Long.MAX_VALUE;
+        for (Segment<K, V> segment : segments) {
+            next = Math.min(next, segment.expirationDeadline);
+        }
+        if (next != Long.MAX_VALUE) {
+            pacer.schedule(next);
+        }
+    }
+
     /**
      * double check
      *
      * @return
      */
-    boolean isEmpty() {
+    @Override
+    public boolean isEmpty() {
         long sum = 0;
         Segment<K, V>[] segments = this.segments;
         for (Segment<K, V> segment : segments) {
@@ -1600,6 +3636,17 @@ public class LocalCache<K, V> {
         return segmentFor(hash).get(key, hash, cacheLoader);
     }
 
+    ListenableFuture<V> getAsync(K key, CacheLoader<? super K, V> cacheLoader) {
+        int hash = hash(checkNotNull(key));
+        return segmentFor(hash).getAsync(key, hash, cacheLoader);
+    }
+
+    void put(K key, ListenableFuture<V> valueFuture) {
+        checkNotNull(valueFuture);
+        int hash = hash(checkNotNull(key));
+        segmentFor(hash).put(key, hash, valueFuture);
+    }
+
     public V getIfPresent(Object key) {
         int hash = hash(checkNotNull(key));
         V value = segmentFor(hash).get(key, hash);
@@ -1616,6 +3663,42 @@ public class LocalCache<K, V> {
         return get(key, defaultLoader);
     }
 
+    /**
+     * 原始类型key的hash，和装箱后的key按hash(Object)算出的相同
+     */
+    static int hash(long key) {
+        return rehash(Long.hashCode(key));
+    }
+
+    static int hash(int key) {
+        return rehash(key);
+    }
+
+    /**
+     * 原始类型key的getIfPresent，命中时不分配对象
+     */
+    V getIfPresent(long key, int hash) {
+        V value = segmentFor(hash).getLive(key, hash, defaultLoader);
+        if (value == null) {
+            globalStatsCounter.recordMisses(1);
+        } else {
+            globalStatsCounter.recordHits(1);
+        }
+        return value;
+    }
+
+    /**
+     * 原始类型key的命中路径，命中时记一次hit；返回null时调用方装箱走get(key, loader)，miss在那里记
+     */
+    V getLive(long key, int hash) {
+        Segment<K, V> segment = segmentFor(hash);
+        V value = segment.getLive(key, hash, defaultLoader);
+        if (value != null) {
+            segment.statsCounter.recordHits(1);
+        }
+        return value;
+    }
+
 
     ReferenceEntry<K, V> getEntry(Object key) {
         if (key == null) {
@@ -1646,13 +3729,14 @@ public class LocalCache<K, V> {
         long now = ticker.read();
         final Segment<K, V>[] segments = this.segments;
         for (Segment<K, V> segment : segments) {
+            Predicate<ReferenceEntry<K, V>> matches = e -> {
+                V v = segment.getLiveValue(e, now);
+                return v != null && valueEquivalence.equivalent(value, v);
+            };
             AtomicReferenceArray<ReferenceEntry<K, V>> table = segment.table;
             for (int j = 0; j < table.length(); j++) {
-                for (ReferenceEntry<K, V> e = table.get(j); e != null; e = e.getNext()) {
-                    V v = segment.getLiveValue(e, now);
-                    if (v != null && valueEquivalence.equivalent(value, v)) {
-                        return true;
-                    }
+                if (scanBucket(table, j, matches)) {
+                    return true;
                 }
             }
         }
@@ -1689,33 +3773,391 @@ public class LocalCache<K, V> {
         return segmentFor(hash).replace(key, hash, value);
     }
 
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        checkNotNull(key);
+        checkNotNull(newValue);
+        if (oldValue == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, oldValue, newValue);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (key == null || value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkNotNull(key);
+        checkNotNull(remappingFunction);
+        int hash = hash(key);
+        return segmentFor(hash).compute(key, hash, remappingFunction);
+    }
+
+    /**
+     * 命中时不加锁，不命中才在锁内再查一次并计算
+     */
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        checkNotNull(key);
+        checkNotNull(mappingFunction);
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        V value = segment.get(key, hash);
+        if (value != null) {
+            return value;
+        }
+        return segment.compute(key, hash, (k, oldValue) -> (oldValue != null) ? oldValue : mappingFunction.apply(k));
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkNotNull(key);
+        checkNotNull(remappingFunction);
+        int hash = hash(key);
+        return segmentFor(hash).compute(key, hash,
+                (k, oldValue) -> (oldValue == null) ? null : remappingFunction.apply(k, oldValue));
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        checkNotNull(key);
+        checkNotNull(value);
+        checkNotNull(remappingFunction);
+        int hash = hash(key);
+        return segmentFor(hash).compute(key, hash,
+                (k, oldValue) -> (oldValue == null) ? value : remappingFunction.apply(oldValue, value));
+    }
+
     public void clear() {
         for (Segment<K, V> segment : segments) {
             segment.clear();
         }
     }
 
+    Set<K> keySet;
 
-    boolean equalsValue(Object v1, V v2) {
-        return true;
+    Collection<V> values;
+
+    Set<Entry<K, V>> entrySet;
+
+    @Override
+    public Set<K> keySet() {
+        Set<K> ks = keySet;
+        return (ks != null) ? ks : (keySet = new KeySet());
+    }
+
+    @Override
+    public Collection<V> values() {
+        Collection<V> vs = values;
+        return (vs != null) ? vs : (values = new Values());
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> es = entrySet;
+        return (es != null) ? es : (entrySet = new EntrySet());
+    }
+
+    /**
+     * 弱一致的迭代器：从后往前遍历每个segment的table，不加锁，只返回遍历到时还活着的entry
+     * 遍历过程中的修改可能看得到也可能看不到，不会抛ConcurrentModificationException
+     * 一次取出一个bucket中的entry，扩容中的bucket跟着forwarding去新table中取，每个entry最多返回一次
+     */
+    abstract class HashIterator<T> implements Iterator<T> {
+
+        int nextSegmentIndex;
+
+        int nextTableIndex;
+
+        Segment<K, V> currentSegment;
+
+        AtomicReferenceArray<ReferenceEntry<K, V>> currentTable;
+
+        final Deque<WriteThroughEntry> pending = new ArrayDeque<>();
+
+        WriteThroughEntry lastReturned;
+
+        HashIterator() {
+            nextSegmentIndex = segments.length - 1;
+            nextTableIndex = -1;
+            advance();
+        }
+
+        final void advance() {
+            while (pending.isEmpty()) {
+                if (nextTableIndex >= 0) {
+                    long now = ticker.read();
+                    try {
+                        scanBucket(currentTable, nextTableIndex--, e -> {
+                            K key = e.getKey();
+                            V value = currentSegment.getLiveValue(e, now);
+                            if (value != null) {
+                                pending.add(new WriteThroughEntry(key, value));
+                            }
+                            return false;
+                        });
+                    } finally {
+                        currentSegment.postReadCleanup();
+                    }
+                } else if (nextSegmentIndex >= 0) {
+                    currentSegment = segments[nextSegmentIndex--];
+                    if (currentSegment.count != 0) {
+                        currentTable = currentSegment.table;
+                        nextTableIndex = currentTable.length() - 1;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !pending.isEmpty();
+        }
+
+        WriteThroughEntry nextEntry() {
+            if (pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = pending.poll();
+            advance();
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            checkState(lastReturned != null);
+            LocalCache.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+    }
+
+    final class KeyIterator extends HashIterator<K> {
+
+        @Override
+        public K next() {
+            return nextEntry().getKey();
+        }
+    }
+
+    final class ValueIterator extends HashIterator<V> {
+
+        @Override
+        public V next() {
+            return nextEntry().getValue();
+        }
+    }
+
+    final class EntryIterator extends HashIterator<Entry<K, V>> {
+
+        @Override
+        public Entry<K, V> next() {
+            return nextEntry();
+        }
+    }
+
+    /**
+     * setValue写回cache
+     */
+    final class WriteThroughEntry extends SimpleEntry<K, V> {
+
+        private static final long serialVersionUID = 0;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V newValue) {
+            put(getKey(), newValue);
+            return super.setValue(newValue);
+        }
+    }
+
+    final class KeySet extends AbstractSet<K> {
+
+        @Override
+        public Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        @Override
+        public int size() {
+            return LocalCache.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return LocalCache.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return LocalCache.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            LocalCache.this.clear();
+        }
+    }
+
+    final class Values extends AbstractCollection<V> {
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        @Override
+        public int size() {
+            return LocalCache.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return LocalCache.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            LocalCache.this.clear();
+        }
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return LocalCache.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return LocalCache.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object key = e.getKey();
+            if (key == null) {
+                return false;
+            }
+            V v = LocalCache.this.get(key);
+            return v != null && valueEquivalence.equivalent(e.getValue(), v);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return LocalCache.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void clear() {
+            LocalCache.this.clear();
+        }
+    }
+
+    /**
+     * 按所在的segment给下标做计数排序，segment s的下标是indexes[starts[s]..starts[s+1])，返回starts
+     */
+    int[] groupBySegment(int[] hashes, int[] indexes) {
+        int[] starts = new int[segments.length + 1];
+        for (int hash : hashes) {
+            starts[segmentIndex(hash) + 1]++;
+        }
+        for (int s = 0; s < segments.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] next = Arrays.copyOf(starts, segments.length);
+        for (int i = 0; i < hashes.length; i++) {
+            indexes[next[segmentIndex(hashes[i])]++] = i;
+        }
+        return starts;
+    }
+
+    /**
+     * 按segment分组写入，每个segment只加一次锁
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        int size = m.size();
+        Object[] keys = new Object[size];
+        Object[] values = new Object[size];
+        int[] hashes = new int[size];
+        int i = 0;
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            keys[i] = checkNotNull(entry.getKey());
+            values[i] = checkNotNull(entry.getValue());
+            hashes[i] = hash(keys[i]);
+            i++;
+        }
+        int[] indexes = new int[size];
+        int[] starts = groupBySegment(hashes, indexes);
+        for (int s = 0; s < segments.length; s++) {
+            if (starts[s] < starts[s + 1]) {
+                segments[s].putAll(keys, hashes, values, indexes, starts[s], starts[s + 1]);
+            }
+        }
     }
 
+    @SuppressWarnings("unchecked")
     ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws Exception {
+        // 去重，每个key只算一次hash，再按segment排好序，每个segment读一次
+        Object[] keyArray = Sets.newLinkedHashSet(keys).toArray();
+        int[] hashes = new int[keyArray.length];
+        for (int i = 0; i < keyArray.length; i++) {
+            hashes[i] = hash(checkNotNull(keyArray[i]));
+        }
+        int[] indexes = new int[keyArray.length];
+        int[] starts = groupBySegment(hashes, indexes);
+        Object[] values = new Object[keyArray.length];
         int hits = 0;
-        int misses = 0;
+        for (int s = 0; s < segments.length; s++) {
+            if (starts[s] < starts[s + 1]) {
+                hits += segments[s].getAll(keyArray, hashes, indexes, starts[s], starts[s + 1], values);
+            }
+        }
+        int misses = keyArray.length - hits;
 
         Map<K, V> result = Maps.newLinkedHashMap();
         Set<K> keysToLoad = Sets.newLinkedHashSet();
-        for (K key : keys) {
-            V value = get(key);
-            if (!result.containsKey(key)) {
-                result.put(key, value);
-                if (value == null) {
-                    misses++;
-                    keysToLoad.add(key);
-                } else {
-                    hits++;
-                }
+        for (int i = 0; i < keyArray.length; i++) {
+            K key = (K) keyArray[i];
+            result.put(key, (V) values[i]);
+            if (values[i] == null) {
+                keysToLoad.add(key);
             }
         }
 
@@ -1732,9 +4174,14 @@ public class LocalCache<K, V> {
                     }
                 } catch (Exception e) {
                     // loadAll not implemented, fallback to load
-                    for (K key : keysToLoad) {
-                        misses--; // get will count this miss
-                        result.put(key, get(key, defaultLoader));
+                    if (usesExecutor()) {
+                        misses -= keysToLoad.size(); // getAsync will count these misses
+                        loadInParallel(keysToLoad, result);
+                    } else {
+                        for (K key : keysToLoad) {
+                            misses--; // get will count this miss
+                            result.put(key, get(key, defaultLoader));
+                        }
                     }
                 }
             }
@@ -1745,6 +4192,33 @@ public class LocalCache<K, V> {
         }
     }
 
+    /**
+     * 先把所有key的加载都提交到executor上，再逐个等待，耗时接近最慢的那一个而不是所有加载之和
+     * 走getAsync，正在加载的key只会等待已有的加载，不会重复加载
+     */
+    private void loadInParallel(Set<K> keys, Map<K, V> result) throws ExecutionException {
+        Map<K, ListenableFuture<V>> futures = Maps.newLinkedHashMap();
+        for (K key : keys) {
+            futures.put(key, getAsync(key, defaultLoader));
+        }
+        for (Map.Entry<K, ListenableFuture<V>> entry : futures.entrySet()) {
+            try {
+                result.put(entry.getKey(), getUninterruptibly(entry.getValue()));
+            } catch (ExecutionException e) {
+                // 和逐个同步加载时抛出的异常一样
+                Throwable cause = e.getCause();
+                if (cause instanceof CacheLoader.InvalidCacheLoadException) {
+                    throw (CacheLoader.InvalidCacheLoadException) cause;
+                } else if (cause instanceof Error) {
+                    throw new ExecutionError((Error) cause);
+                } else if (cause instanceof RuntimeException) {
+                    throw new UncheckedExecutionException(cause);
+                }
+                throw e;
+            }
+        }
+    }
+
     Map<K,V> loadAll(Set<? extends K> keys,CacheLoader<? super K,V> loader) throws Exception{
         checkNotNull(loader);
         checkNotNull(keys);
@@ -1772,36 +4246,16 @@ public class LocalCache<K, V> {
         }
         stopwatch.stop();
         boolean nullsPresent = false;
-        //todo batch by segment
-//        for (Map.Entry<K, V> entry : result.entrySet()) {
-//            K key = entry.getKey();
-//            V value = entry.getValue();
-//            if(key==null || value==null){
-//                nullsPresent = true;
-//            }else {
-//                put(key,value);
-//            }
-//        }
-        Map<Segment<K,V>,List<Map.Entry<K,V>>> indexMap = new HashMap<>();
         for (Map.Entry<K, V> entry : result.entrySet()) {
-            if(entry.getKey()==null || entry.getValue()==null){
+            if (entry.getKey() == null || entry.getValue() == null) {
                 nullsPresent = true;
-            }else {
-                Segment<K, V> segment = segmentFor(hash(entry.getKey()));
-                List<Map.Entry<K, V>> entryList = indexMap.get(segment);
-                if(entryList==null){
-                    entryList = new ArrayList<>();
-                }
-                entryList.add(entry);
-            }
-        }
-        for (Map.Entry<Segment<K, V>, List<Map.Entry<K, V>>> segmentListEntry : indexMap.entrySet()) {
-            Segment<K, V> segment = segmentListEntry.getKey();
-            List<Map.Entry<K, V>> entries = segmentListEntry.getValue();
-            for (Map.Entry<K, V> entry : entries) {
-                segment.put(entry.getKey(),hash(entry.getKey()),entry.getValue(),false);
+                break;
             }
         }
+        // 按segment分组，每个segment加一次锁写入，有null时只写入非null的部分
+        putAll(nullsPresent
+                ? Maps.filterEntries(result, entry -> entry.getKey() != null && entry.getValue() != null)
+                : result);
 
         if(nullsPresent){
             globalStatsCounter.recordLoadException(stopwatch.elapsed(TimeUnit.NANOSECONDS));
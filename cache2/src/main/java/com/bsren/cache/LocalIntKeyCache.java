@@ -0,0 +1,43 @@
+package com.bsren.cache;
+
+import java.util.concurrent.Callable;
+
+/**
+ * int类型key的手动cache，entry由EntryFactory.getPrimitiveFactory创建，key不装箱存在entry中
+ * 命中走LocalCache.getLive，不命中时装箱，走和Cache相同的路径
+ */
+public class LocalIntKeyCache<V> extends LocalManualCache<Integer, V> implements IntKeyCache<V> {
+
+    LocalIntKeyCache(CacheBuilder<? super Integer, ? super V> builder) {
+        super(new LocalCache<Integer, V>(builder, null, int.class));
+    }
+
+    @Override
+    public V getIfPresent(int key) {
+        return localCache.getIfPresent(key, LocalCache.hash(key));
+    }
+
+    @Override
+    public V get(int key, Callable<V> loader) throws Exception {
+        // 读会触发刷新时（refreshAfterWrite或者earlyRefresh），刷新要用传进来的loader，只能走装箱的路径
+        if (!localCache.refreshes() && !localCache.refreshesEarly()) {
+            V value = localCache.getLive(key, LocalCache.hash(key));
+            if (value != null) {
+                return value;
+            }
+        }
+        return get(Integer.valueOf(key), loader);
+    }
+
+    @Override
+    public void put(int key, V value) {
+        put(Integer.valueOf(key), value);
+    }
+
+    @Override
+    public void invalidate(int key) {
+        invalidate(Integer.valueOf(key));
+    }
+
+    private static final long serialVersionUID = 1;
+}
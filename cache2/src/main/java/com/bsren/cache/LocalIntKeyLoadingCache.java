@@ -0,0 +1,64 @@
+package com.bsren.cache;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.Callable;
+
+/**
+ * int类型key的LoadingCache，见LocalIntKeyCache
+ */
+public class LocalIntKeyLoadingCache<V> extends LocalLoadingCache<Integer, V> implements IntKeyLoadingCache<V> {
+
+    LocalIntKeyLoadingCache(CacheBuilder<? super Integer, ? super V> builder, CacheLoader<? super Integer, V> loader) {
+        super(new LocalCache<Integer, V>(builder, loader, int.class));
+    }
+
+    @Override
+    public V getIfPresent(int key) {
+        return localCache.getIfPresent(key, LocalCache.hash(key));
+    }
+
+    @Override
+    public V get(int key, Callable<V> loader) throws Exception {
+        // 读会触发刷新时（refreshAfterWrite或者earlyRefresh），刷新要用传进来的loader，只能走装箱的路径
+        if (!localCache.refreshes() && !localCache.refreshesEarly()) {
+            V value = localCache.getLive(key, LocalCache.hash(key));
+            if (value != null) {
+                return value;
+            }
+        }
+        return get(Integer.valueOf(key), loader);
+    }
+
+    @Override
+    public V get(int key) throws Exception {
+        V value = localCache.getLive(key, LocalCache.hash(key));
+        return (value != null) ? value : get(Integer.valueOf(key));
+    }
+
+    @Override
+    public V getUnchecked(int key) {
+        try {
+            return get(key);
+        } catch (Exception e) {
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    @Override
+    public void put(int key, V value) {
+        put(Integer.valueOf(key), value);
+    }
+
+    @Override
+    public void invalidate(int key) {
+        invalidate(Integer.valueOf(key));
+    }
+
+    @Override
+    public void refresh(int key) {
+        refresh(Integer.valueOf(key));
+    }
+
+    private static final long serialVersionUID = 1;
+}
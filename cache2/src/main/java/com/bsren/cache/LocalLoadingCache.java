@@ -1,5 +1,6 @@
 package com.bsren.cache;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 
@@ -11,6 +12,10 @@ public class LocalLoadingCache<K,V>
             CacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> loader) {
         super(new LocalCache<K, V>(builder, loader));
     }
+
+    LocalLoadingCache(LocalCache<K, V> localCache) {
+        super(localCache);
+    }
     @Override
     public V get(K key) throws Exception {
         return localCache.getOrLoad(key);
@@ -26,6 +31,11 @@ public class LocalLoadingCache<K,V>
     }
 
 
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws Exception {
+        return localCache.getAll(keys);
+    }
+
     @Override
     public void refresh(K key) {
         localCache.refresh(key);
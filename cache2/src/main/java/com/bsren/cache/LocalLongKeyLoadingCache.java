@@ -0,0 +1,64 @@
+package com.bsren.cache;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.Callable;
+
+/**
+ * long类型key的LoadingCache，见LocalLongKeyCache
+ */
+public class LocalLongKeyLoadingCache<V> extends LocalLoadingCache<Long, V> implements LongKeyLoadingCache<V> {
+
+    LocalLongKeyLoadingCache(CacheBuilder<? super Long, ? super V> builder, CacheLoader<? super Long, V> loader) {
+        super(new LocalCache<Long, V>(builder, loader, long.class));
+    }
+
+    @Override
+    public V getIfPresent(long key) {
+        return localCache.getIfPresent(key, LocalCache.hash(key));
+    }
+
+    @Override
+    public V get(long key, Callable<V> loader) throws Exception {
+        // 读会触发刷新时（refreshAfterWrite或者earlyRefresh），刷新要用传进来的loader，只能走装箱的路径
+        if (!localCache.refreshes() && !localCache.refreshesEarly()) {
+            V value = localCache.getLive(key, LocalCache.hash(key));
+            if (value != null) {
+                return value;
+            }
+        }
+        return get(Long.valueOf(key), loader);
+    }
+
+    @Override
+    public V get(long key) throws Exception {
+        V value = localCache.getLive(key, LocalCache.hash(key));
+        return (value != null) ? value : get(Long.valueOf(key));
+    }
+
+    @Override
+    public V getUnchecked(long key) {
+        try {
+            return get(key);
+        } catch (Exception e) {
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    @Override
+    public void put(long key, V value) {
+        put(Long.valueOf(key), value);
+    }
+
+    @Override
+    public void invalidate(long key) {
+        invalidate(Long.valueOf(key));
+    }
+
+    @Override
+    public void refresh(long key) {
+        refresh(Long.valueOf(key));
+    }
+
+    private static final long serialVersionUID = 1;
+}
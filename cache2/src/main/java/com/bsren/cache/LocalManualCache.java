@@ -3,6 +3,7 @@ package com.bsren.cache;
 
 
 import java.io.Serializable;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 
@@ -44,6 +45,11 @@ public class LocalManualCache<K, V> implements Cache<K, V>, Serializable {
         localCache.put(key,value);
     }
 
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        localCache.putAll(m);
+    }
+
     @Override
     public void invalidate(Object key) {
         checkNotNull(key);
@@ -70,10 +76,14 @@ public class LocalManualCache<K, V> implements Cache<K, V>, Serializable {
         localCache.cleanUp();
     }
 
+    @Override
+    public void trimToSize() {
+        localCache.trimToSize();
+    }
+
     @Override
     public ConcurrentMap<K, V> asMap() {
-        //todo
-        return null;
+        return localCache;
     }
 
 
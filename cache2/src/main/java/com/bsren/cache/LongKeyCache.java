@@ -0,0 +1,28 @@
+package com.bsren.cache;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link Cache} keyed by primitive {@code long}s. Keys are stored unboxed in the entries, and a
+ * lookup through the {@code long} methods compares them without creating a {@link Long}, so a hit
+ * allocates nothing. A miss or a write boxes the key once and takes the same path as the
+ * {@link Cache} methods, which remain available and see the same mappings.
+ *
+ * <p>Built with {@link CacheBuilder#buildLongKeys()}.
+ */
+public interface LongKeyCache<V> extends Cache<Long, V> {
+
+    /**
+     * Returns the value associated with {@code key}, or {@code null} if there is none.
+     */
+    V getIfPresent(long key);
+
+    /**
+     * Returns the value associated with {@code key}, obtaining it from {@code loader} if needed.
+     */
+    V get(long key, Callable<V> loader) throws Exception;
+
+    void put(long key, V value);
+
+    void invalidate(long key);
+}
@@ -0,0 +1,17 @@
+package com.bsren.cache;
+
+/**
+ * A {@link LoadingCache} keyed by primitive {@code long}s; see {@link LongKeyCache}. Returning a
+ * value that is already cached allocates nothing; loading boxes the key for the
+ * {@link CacheLoader}.
+ *
+ * <p>Built with {@link CacheBuilder#buildLongKeys(CacheLoader)}.
+ */
+public interface LongKeyLoadingCache<V> extends LongKeyCache<V>, LoadingCache<Long, V> {
+
+    V get(long key) throws Exception;
+
+    V getUnchecked(long key);
+
+    void refresh(long key);
+}
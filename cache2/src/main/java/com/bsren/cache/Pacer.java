@@ -0,0 +1,74 @@
+package com.bsren.cache;
+
+import com.google.common.base.Ticker;
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps at most one pending wakeup on the cache's scheduler, armed for the earliest known
+ * expiration deadline across the segments.
+ *
+ * <p>A deadline that is not meaningfully earlier than the pending wakeup leaves it alone, and a
+ * wakeup never fires sooner than {@link #TOLERANCE} from now, so dense deadlines do not turn
+ * into a storm of tiny tasks.
+ */
+final class Pacer {
+
+    /**
+     * 两次唤醒之间的最小间隔，约1.07秒
+     */
+    static final long TOLERANCE = 1L << 30;
+
+    final ScheduledExecutorService scheduler;
+
+    final Ticker ticker;
+
+    final Runnable task;
+
+    @GuardedBy("this")
+    long nextFireTime;
+
+    @GuardedBy("this")
+    Future<?> future;
+
+    Pacer(ScheduledExecutorService scheduler, Ticker ticker, Runnable task) {
+        this.scheduler = scheduler;
+        this.ticker = ticker;
+        this.task = task;
+    }
+
+    /**
+     * 唤醒后先清掉future，task中安排的下一次唤醒才不会被这次当成还没执行的唤醒
+     */
+    void run() {
+        synchronized (this) {
+            future = null;
+        }
+        task.run();
+    }
+
+    /**
+     * 已经有一个不晚于deadline + TOLERANCE的唤醒时什么也不做，否则取消它，按deadline重新安排
+     */
+    synchronized void schedule(long deadline) {
+        if ((future != null) && !future.isDone()) {
+            if (nextFireTime - deadline <= TOLERANCE) {
+                return;
+            }
+            future.cancel(false);
+        }
+        long now = ticker.read();
+        long delay = Math.max(deadline - now, TOLERANCE);
+        nextFireTime = now + delay;
+        try {
+            future = scheduler.schedule(this::run, delay, TimeUnit.NANOSECONDS);
+        } catch (Throwable t) {
+            future = null;
+            LocalCache.logger.log(Level.WARNING, "Exception thrown when scheduling expiration", t);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.bsren.cache;
+
+import com.bsren.cache.entry.LongKeyEntry;
+import com.google.common.base.Equivalence;
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An open-addressing segment table, used with {@link TableLayout#OPEN_ADDRESSING}. Every slot
+ * holds at most one entry, whose {@code next} is always null; a key that collides is stored in the
+ * next free slot, probing linearly. The hash of each slot is kept in {@link #hashes}, so a lookup
+ * compares hashes in a contiguous array and only loads the entries whose hash matches.
+ *
+ * <p>A removed entry leaves a {@link #TOMBSTONE} behind, so that probes for the keys stored
+ * after it keep going; tombstones are reused by later inserts and dropped when the segment
+ * rehashes. No key is ever stored further than {@link #maxProbe} slots from its home slot, which
+ * bounds unsuccessful lookups without reading the entries.
+ *
+ * <p>Like the chained table, readers go without locking: a slot's hash is written before its
+ * entry is published, and readers check the entry they load, so a racing update is at worst
+ * missed.
+ */
+final class ProbingTable<K, V> extends AtomicReferenceArray<ReferenceEntry<K, V>> {
+
+    private static final long serialVersionUID = 0;
+
+    static final ReferenceEntry<Object, Object> TOMBSTONE = new AbstractReferenceEntry<Object, Object>() {};
+
+    final int[] hashes;
+
+    /**
+     * 已经用过的slot个数，包括墓碑，只有重建table时才会减少
+     */
+    @GuardedBy("Segment.this")
+    int used;
+
+    /**
+     * 所有entry离自己的home slot最远的距离
+     */
+    volatile int maxProbe;
+
+    ProbingTable(int capacity) {
+        super(capacity);
+        this.hashes = new int[capacity];
+    }
+
+    static boolean isEntry(ReferenceEntry<?, ?> e) {
+        return e != null && e != TOMBSTONE;
+    }
+
+    /**
+     * 不加锁的查找：只比较hashes，hash相等时才读entry和key，最多看maxProbe + 1个slot
+     */
+    ReferenceEntry<K, V> find(Object key, int hash, Equivalence<Object> keyEquivalence) {
+        int[] hashes = this.hashes;
+        int mask = hashes.length - 1;
+        int maxProbe = this.maxProbe;
+        for (int i = hash & mask, probe = 0; probe <= maxProbe; i = (i + 1) & mask, probe++) {
+            if (hashes[i] != hash) {
+                continue;
+            }
+            ReferenceEntry<K, V> e = get(i);
+            if (isEntry(e) && e.getHash() == hash) {
+                K entryKey = e.getKey();
+                if (entryKey != null && keyEquivalence.equivalent(key, entryKey)) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 原始类型key的不加锁查找，见LongKeyEntry
+     */
+    ReferenceEntry<K, V> find(long key, int hash) {
+        int[] hashes = this.hashes;
+        int mask = hashes.length - 1;
+        int maxProbe = this.maxProbe;
+        for (int i = hash & mask, probe = 0; probe <= maxProbe; i = (i + 1) & mask, probe++) {
+            if (hashes[i] != hash) {
+                continue;
+            }
+            ReferenceEntry<K, V> e = get(i);
+            if (isEntry(e) && ((LongKeyEntry<K, V>) e).getLongKey() == key) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 锁内查找key所在的slot，key不存在时返回可以插入它的slot：探测路上第一个墓碑，没有墓碑时是第一个空slot
+     * 删除只留墓碑，所以探测遇到空slot就说明key不在后面
+     */
+    @GuardedBy("Segment.this")
+    int indexFor(Object key, int hash, Equivalence<Object> keyEquivalence) {
+        int mask = length() - 1;
+        int free = -1;
+        for (int i = hash & mask, probe = 0; ; i = (i + 1) & mask, probe++) {
+            ReferenceEntry<K, V> e = get(i);
+            if (e == null) {
+                return (free >= 0) ? free : i;
+            }
+            if (e == TOMBSTONE) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (hashes[i] == hash && keyEquivalence.equivalent(key, e.getKey())) {
+                return i;
+            }
+            if (probe >= maxProbe && free >= 0) {
+                return free;
+            }
+        }
+    }
+
+    /**
+     * 按引用查找entry所在的slot，key已经被回收的entry也能找到；找不到时返回home slot，那里不会是这个entry
+     */
+    @GuardedBy("Segment.this")
+    int indexOf(ReferenceEntry<K, V> entry, int hash) {
+        int mask = length() - 1;
+        int maxProbe = this.maxProbe;
+        for (int i = hash & mask, probe = 0; probe <= maxProbe; i = (i + 1) & mask, probe++) {
+            if (get(i) == entry) {
+                return i;
+            }
+        }
+        return hash & mask;
+    }
+
+    /**
+     * 按value的引用查找entry所在的slot，不需要key；找不到时返回home slot，那里的entry不会是这个value
+     */
+    @GuardedBy("Segment.this")
+    int indexOf(ValueReference<K, V> valueReference, int hash) {
+        int mask = length() - 1;
+        int maxProbe = this.maxProbe;
+        for (int i = hash & mask, probe = 0; probe <= maxProbe; i = (i + 1) & mask, probe++) {
+            ReferenceEntry<K, V> e = get(i);
+            if (isEntry(e) && e.getValueReference() == valueReference) {
+                return i;
+            }
+        }
+        return hash & mask;
+    }
+
+    /**
+     * 锁内写slot：null留下墓碑，否则先写hash和maxProbe，再发布entry
+     */
+    @GuardedBy("Segment.this")
+    @SuppressWarnings("unchecked")
+    void setSlot(int index, ReferenceEntry<K, V> e) {
+        ReferenceEntry<K, V> old = get(index);
+        if (e == null) {
+            if (isEntry(old)) {
+                set(index, (ReferenceEntry<K, V>) (ReferenceEntry<?, ?>) TOMBSTONE);
+            }
+            return;
+        }
+        if (old == null) {
+            used++;
+        }
+        int hash = e.getHash();
+        hashes[index] = hash;
+        int probe = (index - hash) & (length() - 1);
+        if (probe > maxProbe) {
+            maxProbe = probe;
+        }
+        set(index, e);
+    }
+
+    /**
+     * 重建table时往还没发布的新table中放entry
+     */
+    void add(ReferenceEntry<K, V> e) {
+        int mask = length() - 1;
+        int i = e.getHash() & mask;
+        while (get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        setSlot(i, e);
+    }
+}
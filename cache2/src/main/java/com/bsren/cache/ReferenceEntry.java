@@ -42,5 +42,17 @@ public interface ReferenceEntry<K,V> {
     /** Sets the previous entry in the write queue. */
     void setPreviousInWriteQueue(ReferenceEntry<K, V> previous);
 
+    /** Returns which access-ordered queue of the segment holds this entry. */
+    int getQueueType();
+
+    /** Sets which access-ordered queue of the segment holds this entry. */
+    void setQueueType(int queueType);
+
+    /** Returns the time that this entry expires at when expiration varies per entry. */
+    long getVariableTime();
+
+    /** Sets the time that this entry expires at when expiration varies per entry. */
+    void setVariableTime(long time);
+
 
 }
@@ -2,9 +2,15 @@ package com.bsren.cache;
 
 
 
+import com.bsren.cache.entry.InlineValueEntry;
+import com.bsren.cache.offheap.OffHeapValueReference;
+import com.bsren.cache.offheap.SlabAllocator;
 import com.bsren.cache.reference.SoftValueReference;
 import com.bsren.cache.reference.StrongValueReference;
 import com.bsren.cache.reference.WeakValueReference;
+import com.bsren.cache.reference.WeightedSoftValueReference;
+import com.bsren.cache.reference.WeightedStrongValueReference;
+import com.bsren.cache.reference.WeightedWeakValueReference;
 import com.google.common.base.Equivalence;
 
 public enum Strength {
@@ -12,7 +18,12 @@ public enum Strength {
         @Override
         <K, V> ValueReference<K, V> referenceValue(
                 LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> entry, V value, int weight) {
-            return new StrongValueReference<K, V>(value);
+            if (weight == 1 && entry instanceof InlineValueEntry) {
+                return ((InlineValueEntry<K, V>) entry).inline(value);
+            }
+            return (weight == 1)
+                    ? new StrongValueReference<K, V>(value)
+                    : new WeightedStrongValueReference<K, V>(value, weight);
         }
 
         @Override
@@ -24,7 +35,9 @@ public enum Strength {
         @Override
         <K, V> ValueReference<K, V> referenceValue(
                 LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> entry, V value, int weight) {
-            return new SoftValueReference<K, V>(segment.valueReferenceQueue, value, entry);
+            return (weight == 1)
+                    ? new SoftValueReference<K, V>(segment.valueReferenceQueue, value, entry)
+                    : new WeightedSoftValueReference<K, V>(segment.valueReferenceQueue, value, entry, weight);
         }
 
         @Override
@@ -36,13 +49,39 @@ public enum Strength {
         @Override
         <K, V> ValueReference<K, V> referenceValue(
                 LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> entry, V value, int weight) {
-            return new WeakValueReference<K, V>(segment.valueReferenceQueue, value, entry);
+            return (weight == 1)
+                    ? new WeakValueReference<K, V>(segment.valueReferenceQueue, value, entry)
+                    : new WeightedWeakValueReference<K, V>(segment.valueReferenceQueue, value, entry, weight);
         }
 
         @Override
         Equivalence<Object> defaultEquivalence() {
             return Equivalence.identity();
         }
+    },
+    /**
+     * 只用于value：序列化后存在segment的SlabAllocator中
+     */
+    OFF_HEAP {
+        @Override
+        <K, V> ValueReference<K, V> referenceValue(
+                LocalCache.Segment<K, V> segment, ReferenceEntry<K, V> entry, V value, int weight) {
+            LocalCache<K, V> map = segment.map;
+            byte[] bytes = map.serializer.serialize(value);
+            long address = segment.slabs.allocate(bytes.length);
+            if (address == SlabAllocator.NO_ADDRESS) {
+                // 比一个slab大，或者堆外内存用完了，只能留在堆上，驱逐腾出空间后新的value还是放到堆外
+                return new WeightedStrongValueReference<K, V>(value, map.weighsValueBytes() ? bytes.length : weight);
+            }
+            segment.slabs.write(address, bytes);
+            return new OffHeapValueReference<K, V>(segment.slabs, map.serializer, address, bytes.length,
+                    map.weighsValueBytes() ? segment.slabs.chunkSize(address) : weight);
+        }
+
+        @Override
+        Equivalence<Object> defaultEquivalence() {
+            return Equivalence.equals();
+        }
     };
 
     abstract <K, V> ValueReference<K, V> referenceValue(
@@ -0,0 +1,22 @@
+package com.bsren.cache;
+
+/**
+ * How a segment lays out its hash table.
+ */
+public enum TableLayout {
+
+    /**
+     * Each bucket holds a linked chain of entries; a lookup follows the chain, loading every entry
+     * on the way. Tables grow and shrink incrementally, a few buckets per write, so no single write
+     * pays for a whole resize.
+     */
+    CHAINED,
+
+    /**
+     * Entries live directly in the table and collisions probe the following slots. The hash of
+     * each slot is kept in a parallel {@code int[]}, so a lookup compares hashes in one contiguous
+     * array and loads only the entries whose hash matches. Lookups touch fewer cache lines, at the
+     * cost of rehashing a whole segment table under its lock when it grows or shrinks.
+     */
+    OPEN_ADDRESSING
+}
@@ -0,0 +1,27 @@
+package com.bsren.cache.entry;
+
+import com.bsren.cache.AbstractReferenceEntry;
+import com.bsren.cache.ReferenceEntry;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Marks a bucket of a segment table whose entries were already moved to the next, larger table
+ * during an incremental resize. A lookup that finds this marker continues in
+ * {@link #getNextTable()} with the same hash.
+ *
+ * <p>One instance is shared by all the moved buckets of a resize. It is never linked into a
+ * chain, so it only ever appears as the head of a bucket.
+ */
+public final class ForwardingEntry<K, V> extends AbstractReferenceEntry<K, V> {
+
+    final AtomicReferenceArray<ReferenceEntry<K, V>> nextTable;
+
+    public ForwardingEntry(AtomicReferenceArray<ReferenceEntry<K, V>> nextTable) {
+        this.nextTable = nextTable;
+    }
+
+    public AtomicReferenceArray<ReferenceEntry<K, V>> getNextTable() {
+        return nextTable;
+    }
+}
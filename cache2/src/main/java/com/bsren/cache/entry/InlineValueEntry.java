@@ -0,0 +1,65 @@
+package com.bsren.cache.entry;
+
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.ValueReference;
+import com.bsren.cache.reference.StrongValueReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+
+/**
+ * An entry that stores a strong, unweighted value in its own field and serves as that value's
+ * {@link ValueReference}, so no separate reference object is allocated per value. While a value is
+ * inlined, the entry's value reference is the entry itself; loading and failed values are still
+ * held as separate references.
+ *
+ * <p>The value reference methods are implemented here once, so each entry layout only adds the
+ * value field.
+ */
+public interface InlineValueEntry<K, V> extends ReferenceEntry<K, V>, ValueReference<K, V> {
+
+    /**
+     * 把value存到entry自己的字段中，返回entry自己作为value reference
+     * 调用方随后用setValueReference(this)发布，value字段要先于它写入
+     */
+    ValueReference<K, V> inline(V value);
+
+    @Override
+    default ReferenceEntry<K, V> getEntry() {
+        return this;
+    }
+
+    /**
+     * 复制entry时value跟着内联到新entry中
+     */
+    @Override
+    default ValueReference<K, V> copyFor(ReferenceQueue<V> queue, V value, ReferenceEntry<K, V> entry) {
+        return (entry instanceof InlineValueEntry)
+                ? ((InlineValueEntry<K, V>) entry).inline(value)
+                : new StrongValueReference<>(value);
+    }
+
+    @Override
+    default boolean isLoading() {
+        return false;
+    }
+
+    @Override
+    default boolean isActive() {
+        return true;
+    }
+
+    @Override
+    default V waitForValue() {
+        return get();
+    }
+
+    @Override
+    default int getWeight() {
+        return 1;
+    }
+
+    @Override
+    default void notifyNewValue(@Nullable V newValue) {
+    }
+}
@@ -0,0 +1,69 @@
+package com.bsren.cache.entry;
+
+
+import com.bsren.cache.AbstractReferenceEntry;
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.ValueReference;
+
+import static com.bsren.cache.loading.Unset.unset;
+
+public class IntEntry<K, V> extends AbstractReferenceEntry<K, V> implements LongKeyEntry<K, V> {
+
+    final int key;
+
+    final int hash;
+
+    final ReferenceEntry<K, V> next;
+
+    volatile ValueReference<K, V> valueReference = unset();
+
+    volatile V value;
+
+    public IntEntry(int key, int hash, ReferenceEntry<K, V> next) {
+        this.key = key;
+        this.hash = hash;
+        this.next = next;
+    }
+
+    @Override
+    public long getLongKey() {
+        return key;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public K getKey() {
+        return (K) Integer.valueOf(key);
+    }
+
+    @Override
+    public int getHash() {
+        return hash;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getNext() {
+        return next;
+    }
+
+    @Override
+    public ValueReference<K, V> getValueReference() {
+        return valueReference;
+    }
+
+    @Override
+    public void setValueReference(ValueReference<K, V> valueReference) {
+        this.valueReference = valueReference;
+    }
+
+    @Override
+    public V get() {
+        return value;
+    }
+
+    @Override
+    public ValueReference<K, V> inline(V value) {
+        this.value = value;
+        return this;
+    }
+}
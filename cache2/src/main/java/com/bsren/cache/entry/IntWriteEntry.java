@@ -0,0 +1,66 @@
+package com.bsren.cache.entry;
+
+
+import com.bsren.cache.ReferenceEntry;
+import com.google.j2objc.annotations.Weak;
+
+import static com.bsren.cache.entry.NullEntry.nullEntry;
+
+public class IntWriteEntry<K, V> extends IntEntry<K, V> {
+    public IntWriteEntry(int key, int hash, ReferenceEntry<K, V> next) {
+        super(key, hash, next);
+    }
+
+    // The code below is exactly the same for each write entry type.
+
+    volatile long writeTime = Long.MAX_VALUE;
+
+    @Override
+    public long getWriteTime() {
+        return writeTime;
+    }
+
+    @Override
+    public void setWriteTime(long time) {
+        this.writeTime = time;
+    }
+
+    volatile long variableTime = Long.MAX_VALUE;
+
+    @Override
+    public long getVariableTime() {
+        return variableTime;
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        this.variableTime = time;
+    }
+
+    // Guarded By Segment.this
+    @Weak
+    ReferenceEntry<K, V> nextWrite = nullEntry();
+
+    @Override
+    public ReferenceEntry<K, V> getNextInWriteQueue() {
+        return nextWrite;
+    }
+
+    @Override
+    public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
+        this.nextWrite = next;
+    }
+
+    // Guarded By Segment.this
+    @Weak ReferenceEntry<K, V> previousWrite = nullEntry();
+
+    @Override
+    public ReferenceEntry<K, V> getPreviousInWriteQueue() {
+        return previousWrite;
+    }
+
+    @Override
+    public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
+        this.previousWrite = previous;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.bsren.cache.entry;
+
+
+import com.bsren.cache.ReferenceEntry;
+
+import com.google.j2objc.annotations.Weak;
+
+import static com.bsren.cache.entry.NullEntry.nullEntry;
+
+
+public class LongAccessEntry<K, V> extends LongEntry<K, V> {
+    public LongAccessEntry(long key, ReferenceEntry<K, V> next) {
+        super(key, next);
+    }
+
+    // The code below is exactly the same for each access entry type.
+
+    volatile long accessTime = Long.MAX_VALUE;
+
+    @Override
+    public long getAccessTime() {
+        return accessTime;
+    }
+
+    @Override
+    public void setAccessTime(long time) {
+        this.accessTime = time;
+    }
+
+    // Guarded By Segment.this
+    @Weak
+    ReferenceEntry<K, V> nextAccess = nullEntry();
+
+    @Override
+    public ReferenceEntry<K, V> getNextInAccessQueue() {
+        return nextAccess;
+    }
+
+    @Override
+    public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+        this.nextAccess = next;
+    }
+
+    // Guarded By Segment.this
+    @Weak ReferenceEntry<K, V> previousAccess = nullEntry();
+
+    @Override
+    public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+        return previousAccess;
+    }
+
+    @Override
+    public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+        this.previousAccess = previous;
+    }
+
+    // Guarded By Segment.this
+    int queueType;
+
+    @Override
+    public int getQueueType() {
+        return queueType;
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        this.queueType = queueType;
+    }
+}
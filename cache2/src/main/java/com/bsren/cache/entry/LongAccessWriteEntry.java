@@ -0,0 +1,120 @@
+package com.bsren.cache.entry;
+
+
+import com.bsren.cache.ReferenceEntry;
+import com.google.j2objc.annotations.Weak;
+
+import static com.bsren.cache.entry.NullEntry.nullEntry;
+
+
+public class LongAccessWriteEntry<K, V> extends LongEntry<K, V> {
+
+    volatile long writeTime = Long.MAX_VALUE;
+
+    volatile long accessTime = Long.MAX_VALUE;
+
+    // Guarded By Segment.this
+    @Weak
+    ReferenceEntry<K, V> nextAccess = nullEntry();
+
+    // Guarded By Segment.this
+    @Weak ReferenceEntry<K, V> nextWrite = nullEntry();
+
+    // Guarded By Segment.this
+    @Weak ReferenceEntry<K, V> previousWrite = nullEntry();
+
+    // Guarded By Segment.this
+    @Weak ReferenceEntry<K, V> previousAccess = nullEntry();
+
+
+    public LongAccessWriteEntry(long key, ReferenceEntry<K, V> next) {
+        super(key, next);
+    }
+
+    @Override
+    public long getAccessTime() {
+        return accessTime;
+    }
+
+    @Override
+    public void setAccessTime(long time) {
+        this.accessTime = time;
+    }
+
+
+    @Override
+    public ReferenceEntry<K, V> getNextInAccessQueue() {
+        return nextAccess;
+    }
+
+    @Override
+    public void setNextInAccessQueue(ReferenceEntry<K, V> next) {
+        this.nextAccess = next;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getPreviousInAccessQueue() {
+        return previousAccess;
+    }
+
+    @Override
+    public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
+        this.previousAccess = previous;
+    }
+
+    // Guarded By Segment.this
+    int queueType;
+
+    @Override
+    public int getQueueType() {
+        return queueType;
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        this.queueType = queueType;
+    }
+
+    @Override
+    public long getWriteTime() {
+        return writeTime;
+    }
+
+    @Override
+    public void setWriteTime(long time) {
+        this.writeTime = time;
+    }
+
+    volatile long variableTime = Long.MAX_VALUE;
+
+    @Override
+    public long getVariableTime() {
+        return variableTime;
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        this.variableTime = time;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getNextInWriteQueue() {
+        return nextWrite;
+    }
+
+    @Override
+    public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
+        this.nextWrite = next;
+    }
+
+
+    @Override
+    public ReferenceEntry<K, V> getPreviousInWriteQueue() {
+        return previousWrite;
+    }
+
+    @Override
+    public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
+        this.previousWrite = previous;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.bsren.cache.entry;
+
+
+import com.bsren.cache.AbstractReferenceEntry;
+import com.bsren.cache.LocalCache;
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.ValueReference;
+
+import static com.bsren.cache.loading.Unset.unset;
+
+/**
+ * 不存hash，每次按key算：对象头加上这几个字段正好32字节，多一个int hash会因为对齐变成40字节
+ */
+public class LongEntry<K, V> extends AbstractReferenceEntry<K, V> implements LongKeyEntry<K, V> {
+
+    final long key;
+
+    final ReferenceEntry<K, V> next;
+
+    volatile ValueReference<K, V> valueReference = unset();
+
+    volatile V value;
+
+    public LongEntry(long key, ReferenceEntry<K, V> next) {
+        this.key = key;
+        this.next = next;
+    }
+
+    @Override
+    public long getLongKey() {
+        return key;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public K getKey() {
+        return (K) Long.valueOf(key);
+    }
+
+    @Override
+    public int getHash() {
+        return LocalCache.rehash(Long.hashCode(key));
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getNext() {
+        return next;
+    }
+
+    @Override
+    public ValueReference<K, V> getValueReference() {
+        return valueReference;
+    }
+
+    @Override
+    public void setValueReference(ValueReference<K, V> valueReference) {
+        this.valueReference = valueReference;
+    }
+
+    @Override
+    public V get() {
+        return value;
+    }
+
+    @Override
+    public ValueReference<K, V> inline(V value) {
+        this.value = value;
+        return this;
+    }
+}
@@ -0,0 +1,17 @@
+package com.bsren.cache.entry;
+
+/**
+ * An entry whose key is a primitive {@code long} or {@code int} stored in the entry itself, so the
+ * cache holds no boxed key per entry and a lookup by primitive key compares it without boxing.
+ * {@link #getKey()} boxes on every call and is meant for the paths that already allocate, such as
+ * writes, iteration and removal notifications.
+ *
+ * <p>Such entries always inline strong values.
+ */
+public interface LongKeyEntry<K, V> extends InlineValueEntry<K, V> {
+
+    /**
+     * int key的entry返回扩展成long的key
+     */
+    long getLongKey();
+}
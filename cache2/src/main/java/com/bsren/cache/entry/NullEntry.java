@@ -85,6 +85,22 @@ public enum NullEntry implements ReferenceEntry<Object,Object> {
     @Override
     public void setPreviousInAccessQueue(ReferenceEntry<Object, Object> previous) {}
 
+    @Override
+    public int getQueueType() {
+        return 0;
+    }
+
+    @Override
+    public void setQueueType(int queueType) {}
+
+    @Override
+    public long getVariableTime() {
+        return 0;
+    }
+
+    @Override
+    public void setVariableTime(long time) {}
+
     public static <K, V> ReferenceEntry<K, V> nullEntry() {
         return (ReferenceEntry<K, V>) INSTANCE;
     }
@@ -0,0 +1,288 @@
+package com.bsren.cache.entry;
+
+import com.bsren.cache.AbstractReferenceEntry;
+import com.bsren.cache.ReferenceEntry;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Heads a bucket whose chain grew past {@link #TREEIFY_THRESHOLD} entries, typically because many
+ * keys share a hash code. Besides the chain itself, the bin keeps its entries in an array sorted by
+ * hash, then by key class, then by {@link Comparable#compareTo} when the keys are comparable to
+ * their own class, so a lookup is a binary search instead of a walk down the whole chain. Keys that
+ * collide on the hash and are not comparable are still found, by scanning just their run. Since keys
+ * of different classes may be equal, a key that the search misses is also looked for among the
+ * entries of other classes with the same hash, as {@link java.util.HashMap} does in its tree bins.
+ *
+ * <p>Like the chain, a bin is immutable: a segment publishes a new bin for every structural change,
+ * so readers may search it without locking. Adding an entry in front of the chain inserts it into
+ * the sorted array and removing one deletes it from the array; any other change rebuilds the
+ * array. Once the chain shrinks below {@link #UNTREEIFY_THRESHOLD} entries, the bucket goes back
+ * to a plain chain.
+ *
+ * <p>The ordering relies on {@code equals}, so a segment only builds bins for strong keys compared
+ * with {@code equals}.
+ */
+public final class SortedBin<K, V> extends AbstractReferenceEntry<K, V> {
+
+    public static final int TREEIFY_THRESHOLD = 8;
+
+    public static final int UNTREEIFY_THRESHOLD = 6;
+
+    static final Comparator<ReferenceEntry<?, ?>> ORDER = (a, b) -> {
+        int c = compare(a, b.getHash(), b.getKey());
+        return (c != 0) ? c : Integer.compare(System.identityHashCode(a.getKey()), System.identityHashCode(b.getKey()));
+    };
+
+    /**
+     * key的类是否实现了Comparable<自己>，和HashMap.comparableClassFor的判断一样，按类缓存
+     */
+    static final ClassValue<Boolean> SELF_COMPARABLE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> c) {
+            if (!Comparable.class.isAssignableFrom(c)) {
+                return false;
+            }
+            if (c == String.class) {
+                return true;
+            }
+            for (Type t : c.getGenericInterfaces()) {
+                if (t instanceof ParameterizedType) {
+                    ParameterizedType p = (ParameterizedType) t;
+                    Type[] args = p.getActualTypeArguments();
+                    if (p.getRawType() == Comparable.class && args.length == 1 && args[0] == c) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    };
+
+    final ReferenceEntry<K, V> first;
+
+    final ReferenceEntry<K, V>[] entries;
+
+    SortedBin(ReferenceEntry<K, V> first, ReferenceEntry<K, V>[] entries) {
+        this.first = first;
+        this.entries = entries;
+    }
+
+    /**
+     * 链表长度到了TREEIFY_THRESHOLD才值得建bin，只数到阈值为止
+     */
+    public static boolean isLong(ReferenceEntry<?, ?> first) {
+        int length = 0;
+        for (ReferenceEntry<?, ?> e = first; e != null; e = e.getNext()) {
+            if (++length >= TREEIFY_THRESHOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static <K, V> SortedBin<K, V> of(ReferenceEntry<K, V> first) {
+        int length = 0;
+        for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+            length++;
+        }
+        @SuppressWarnings("unchecked")
+        ReferenceEntry<K, V>[] entries = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[length];
+        int i = 0;
+        for (ReferenceEntry<K, V> e = first; e != null; e = e.getNext()) {
+            entries[i++] = e;
+        }
+        Arrays.sort(entries, ORDER);
+        return new SortedBin<>(first, entries);
+    }
+
+    public ReferenceEntry<K, V> getFirst() {
+        return first;
+    }
+
+    /**
+     * 返回换成newFirst这条链之后的桶头：新的bin，或者链变短时直接返回链表
+     * 在链表头插入了一个entry时把它插到有序数组中，删除了一个entry时把它从数组中删掉，其他情况重建
+     */
+    public ReferenceEntry<K, V> withChain(ReferenceEntry<K, V> newFirst) {
+        if (newFirst == first) {
+            return this;
+        }
+        if (newFirst != null && newFirst.getNext() == first) {
+            int index = Arrays.binarySearch(entries, newFirst, ORDER);
+            int insertAt = (index >= 0) ? index : -(index + 1);
+            @SuppressWarnings("unchecked")
+            ReferenceEntry<K, V>[] newEntries = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, insertAt);
+            newEntries[insertAt] = newFirst;
+            System.arraycopy(entries, insertAt, newEntries, insertAt + 1, entries.length - insertAt);
+            return new SortedBin<>(newFirst, newEntries);
+        }
+        int length = 0;
+        for (ReferenceEntry<K, V> e = newFirst; e != null; e = e.getNext()) {
+            length++;
+        }
+        if (length < UNTREEIFY_THRESHOLD) {
+            return newFirst;
+        }
+        if (length == entries.length - 1) {
+            SortedBin<K, V> bin = withoutOne(newFirst);
+            if (bin != null) {
+                return bin;
+            }
+        }
+        return of(newFirst);
+    }
+
+    /**
+     * 删除一个entry之后的bin：segment删除时复制链表中排在被删entry前面的entry，后面的entry原样保留
+     * 所以新链表开头不在数组中的entry都是复制出来的，第一个还在数组中的entry在旧链表中的前一个就是被删的
+     * 被删的entry用一次删除从数组中去掉，复制出来的entry按key换掉数组中原来的entry，顺序不变
+     * 链表不是这种形状时返回null，由调用方重建
+     */
+    private SortedBin<K, V> withoutOne(ReferenceEntry<K, V> newFirst) {
+        ReferenceEntry<K, V>[] entries = this.entries;
+        int copies = 0;
+        ReferenceEntry<K, V> tail = newFirst;
+        for (; tail != null; tail = tail.getNext(), copies++) {
+            int index = indexOf(tail);
+            if (index >= 0 && entries[index] == tail) {
+                break;
+            }
+        }
+        ReferenceEntry<K, V> removed = first;
+        for (int i = 0; i < copies && removed != null; i++) {
+            removed = removed.getNext();
+        }
+        if (removed == null || removed.getNext() != tail) {
+            return null;
+        }
+        int removedIndex = indexOf(removed);
+        if (removedIndex < 0 || entries[removedIndex] != removed) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        ReferenceEntry<K, V>[] newEntries = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[entries.length - 1];
+        System.arraycopy(entries, 0, newEntries, 0, removedIndex);
+        System.arraycopy(entries, removedIndex + 1, newEntries, removedIndex, entries.length - removedIndex - 1);
+        for (ReferenceEntry<K, V> e = newFirst; e != tail; e = e.getNext()) {
+            int index = indexOf(e);
+            if (index < 0 || index == removedIndex) {
+                return null;
+            }
+            newEntries[(index < removedIndex) ? index : index - 1] = e;
+        }
+        return new SortedBin<>(newFirst, newEntries);
+    }
+
+    /**
+     * 数组中和e的key是同一个对象的entry的下标，e可以是复制出来的entry，没有时返回-1
+     */
+    private int indexOf(ReferenceEntry<K, V> e) {
+        ReferenceEntry<K, V>[] entries = this.entries;
+        int index = Arrays.binarySearch(entries, e, ORDER);
+        if (index < 0) {
+            return -1;
+        }
+        Object key = e.getKey();
+        for (int i = index; i >= 0 && ORDER.compare(entries[i], e) == 0; i--) {
+            if (entries[i].getKey() == key) {
+                return i;
+            }
+        }
+        for (int i = index + 1; i < entries.length && ORDER.compare(entries[i], e) == 0; i++) {
+            if (entries[i].getKey() == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 二分找到第一个不小于(hash, key)的entry，再往后找hash、类和compareTo都相同的那一段中equals的
+     * key不可比较时这一段就是hash和类都相同的全部entry；找不到时再看hash相同的别的类的entry
+     */
+    public ReferenceEntry<K, V> find(Object key, int hash) {
+        ReferenceEntry<K, V>[] entries = this.entries;
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(entries[mid], hash, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < entries.length && compare(entries[i], hash, key) == 0; i++) {
+            ReferenceEntry<K, V> e = entries[i];
+            if (key.equals(e.getKey())) {
+                return e;
+            }
+        }
+        return findOtherClass(key, hash);
+    }
+
+    /**
+     * 不同类的key也可能equals，比如内容相同的ArrayList和LinkedList，类分不出来时只能把hash相同的这一段都看一遍
+     * 这一段中同一个类的entry连在一起，首尾都是key的类时没有别的类，不用看
+     */
+    private ReferenceEntry<K, V> findOtherClass(Object key, int hash) {
+        ReferenceEntry<K, V>[] entries = this.entries;
+        int start = hashBound(hash, false);
+        int end = hashBound(hash, true);
+        if (start == end) {
+            return null;
+        }
+        Class<?> keyClass = key.getClass();
+        if (entries[start].getKey().getClass() == keyClass && entries[end - 1].getKey().getClass() == keyClass) {
+            return null;
+        }
+        for (int i = start; i < end; i++) {
+            ReferenceEntry<K, V> e = entries[i];
+            Object entryKey = e.getKey();
+            if (entryKey.getClass() != keyClass && key.equals(entryKey)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 第一个hash不小于（after为true时大于）hash的entry的下标
+     */
+    private int hashBound(int hash, boolean after) {
+        ReferenceEntry<K, V>[] entries = this.entries;
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int c = Integer.compare(entries[mid].getHash(), hash);
+            if (c < 0 || (after && c == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compare(ReferenceEntry<?, ?> e, int hash, Object key) {
+        int c = Integer.compare(e.getHash(), hash);
+        if (c != 0) {
+            return c;
+        }
+        Object entryKey = e.getKey();
+        Class<?> entryClass = entryKey.getClass();
+        Class<?> keyClass = key.getClass();
+        if (entryClass != keyClass) {
+            c = entryClass.getName().compareTo(keyClass.getName());
+            return (c != 0) ? c : Integer.compare(System.identityHashCode(entryClass), System.identityHashCode(keyClass));
+        }
+        return SELF_COMPARABLE.get(keyClass) ? ((Comparable<Object>) entryKey).compareTo(key) : 0;
+    }
+}
@@ -53,4 +53,17 @@ public class StrongAccessEntry<K, V> extends StrongEntry<K, V> {
     public void setPreviousInAccessQueue(ReferenceEntry<K, V> previous) {
         this.previousAccess = previous;
     }
+
+    // Guarded By Segment.this
+    int queueType;
+
+    @Override
+    public int getQueueType() {
+        return queueType;
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        this.queueType = queueType;
+    }
 }
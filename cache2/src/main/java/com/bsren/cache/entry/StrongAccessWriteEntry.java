@@ -62,6 +62,19 @@ public class StrongAccessWriteEntry<K, V> extends StrongEntry<K, V> {
         this.previousAccess = previous;
     }
 
+    // Guarded By Segment.this
+    int queueType;
+
+    @Override
+    public int getQueueType() {
+        return queueType;
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        this.queueType = queueType;
+    }
+
     @Override
     public long getWriteTime() {
         return writeTime;
@@ -72,6 +85,18 @@ public class StrongAccessWriteEntry<K, V> extends StrongEntry<K, V> {
         this.writeTime = time;
     }
 
+    volatile long variableTime = Long.MAX_VALUE;
+
+    @Override
+    public long getVariableTime() {
+        return variableTime;
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        this.variableTime = time;
+    }
+
     @Override
     public ReferenceEntry<K, V> getNextInWriteQueue() {
         return nextWrite;
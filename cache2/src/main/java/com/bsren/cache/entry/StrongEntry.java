@@ -14,16 +14,12 @@ public  class StrongEntry<K,V> extends AbstractReferenceEntry<K,V> {
 
     final K key;
 
-    int hash;
+    final int hash;
 
-    ReferenceEntry<K,V> next;
+    final ReferenceEntry<K,V> next;
 
     volatile ValueReference<K,V> valueReference = unset();
 
-    volatile long accessTime = Long.MAX_VALUE;
-
-    volatile long writeTime = Long.MAX_VALUE;
-
     public StrongEntry(K key, int hash, ReferenceEntry<K,V> next){
         this.key = key;
         this.hash = hash;
@@ -55,26 +51,6 @@ public  class StrongEntry<K,V> extends AbstractReferenceEntry<K,V> {
         return key;
     }
 
-    @Override
-    public long getAccessTime() {
-        return accessTime;
-    }
-
-    @Override
-    public void setAccessTime(long time) {
-        this.accessTime = time;
-    }
-
-    @Override
-    public long getWriteTime() {
-        return writeTime;
-    }
-
-    @Override
-    public void setWriteTime(long time) {
-        this.writeTime = time;
-    }
-
 
     @Override
     public boolean equals(Object o) {
@@ -86,6 +62,6 @@ public  class StrongEntry<K,V> extends AbstractReferenceEntry<K,V> {
 
     @Override
     public int hashCode() {
-        return Objects.hash(key, hash, next, valueReference, accessTime, writeTime);
+        return Objects.hash(key, hash);
     }
 }
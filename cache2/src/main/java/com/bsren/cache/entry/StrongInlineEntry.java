@@ -0,0 +1,26 @@
+package com.bsren.cache.entry;
+
+
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.ValueReference;
+
+
+public class StrongInlineEntry<K, V> extends StrongEntry<K, V> implements InlineValueEntry<K, V> {
+
+    volatile V value;
+
+    public StrongInlineEntry(K key, int hash, ReferenceEntry<K, V> next) {
+        super(key, hash, next);
+    }
+
+    @Override
+    public V get() {
+        return value;
+    }
+
+    @Override
+    public ValueReference<K, V> inline(V value) {
+        this.value = value;
+        return this;
+    }
+}
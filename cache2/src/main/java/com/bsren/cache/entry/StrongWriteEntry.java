@@ -25,6 +25,18 @@ public class StrongWriteEntry<K, V> extends StrongEntry<K, V> {
         this.writeTime = time;
     }
 
+    volatile long variableTime = Long.MAX_VALUE;
+
+    @Override
+    public long getVariableTime() {
+        return variableTime;
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        this.variableTime = time;
+    }
+
     // Guarded By Segment.this
     @Weak
     ReferenceEntry<K, V> nextWrite = nullEntry();
@@ -68,6 +68,19 @@ public class WeakAccessWriteEntry<K, V> extends WeakEntry<K, V> {
         this.previousAccess = previous;
     }
 
+    // Guarded By Segment.this
+    int queueType;
+
+    @Override
+    public int getQueueType() {
+        return queueType;
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        this.queueType = queueType;
+    }
+
     // The code below is exactly the same for each write entry type.
 
     volatile long writeTime = Long.MAX_VALUE;
@@ -82,6 +95,18 @@ public class WeakAccessWriteEntry<K, V> extends WeakEntry<K, V> {
         this.writeTime = time;
     }
 
+    volatile long variableTime = Long.MAX_VALUE;
+
+    @Override
+    public long getVariableTime() {
+        return variableTime;
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        this.variableTime = time;
+    }
+
     @Override
     public ReferenceEntry<K, V> getNextInWriteQueue() {
         return nextWrite;
@@ -114,5 +114,25 @@ public class WeakEntry<K, V> extends WeakReference<K> implements ReferenceEntry<
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public int getQueueType() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setQueueType(int queueType) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getVariableTime() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        throw new UnsupportedOperationException();
+    }
+
 
 }
\ No newline at end of file
@@ -35,6 +35,18 @@ public class WeakWriteEntry<K, V> extends WeakEntry<K, V> {
         this.writeTime = time;
     }
 
+    volatile long variableTime = Long.MAX_VALUE;
+
+    @Override
+    public long getVariableTime() {
+        return variableTime;
+    }
+
+    @Override
+    public void setVariableTime(long time) {
+        this.variableTime = time;
+    }
+
     @Override
     public ReferenceEntry<K, V> getNextInWriteQueue() {
         return nextWrite;
@@ -0,0 +1,29 @@
+package com.bsren.cache.expiry;
+
+/**
+ * Calculates when each cache entry expires. All durations and times are in nanoseconds, as read
+ * from the cache's ticker.
+ *
+ * <p>Each method returns how long from {@code currentTime} the entry should live. Returning
+ * {@code currentDuration} keeps the current expiration time. Returning zero or a negative
+ * duration expires the entry right away.
+ */
+public interface Expiry<K, V> {
+
+    /**
+     * Returns how long the entry lives after it is created, either by a put or by a load.
+     */
+    long expireAfterCreate(K key, V value, long currentTime);
+
+    /**
+     * Returns how long the entry lives after its value is replaced, either by a put or by a
+     * refresh. {@code currentDuration} is the time remaining before the update.
+     */
+    long expireAfterUpdate(K key, V value, long currentTime, long currentDuration);
+
+    /**
+     * Returns how long the entry lives after it is read. {@code currentDuration} is the time
+     * remaining before the read.
+     */
+    long expireAfterRead(K key, V value, long currentTime, long currentDuration);
+}
@@ -0,0 +1,162 @@
+package com.bsren.cache.loading;
+
+import com.bsren.cache.CacheLoader;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+/**
+ * A loader that coalesces single-key loads into {@link CacheLoader#loadAll} calls of the loader
+ * it wraps. The first load of a batch opens it; loads that arrive within the window join it, and
+ * the batch is loaded when the window closes or when it reaches the maximum size, whichever comes
+ * first. Each load then completes with its own key's value, or with the batch's failure.
+ *
+ * <p>The wrapped loader should implement {@code loadAll}; otherwise the batch falls back to
+ * loading its keys one at a time.
+ */
+public final class BatchingCacheLoader<K, V> extends CacheLoader<K, V> {
+
+    final CacheLoader<? super K, V> loader;
+
+    final long windowNanos;
+
+    final int maximumBatchSize;
+
+    /**
+     * 正在收集key的batch，没有时为null
+     */
+    @GuardedBy("this")
+    Map<K, SettableFuture<V>> pending;
+
+    public BatchingCacheLoader(CacheLoader<? super K, V> loader, long windowNanos, int maximumBatchSize) {
+        this.loader = checkNotNull(loader);
+        this.windowNanos = windowNanos;
+        this.maximumBatchSize = maximumBatchSize;
+    }
+
+    /**
+     * 阻塞到key所在的batch加载完，开启batch的线程在窗口结束时发起加载
+     */
+    @Override
+    public V load(K key) throws Exception {
+        try {
+            return getUninterruptibly(submit(key, directExecutor()));
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        }
+    }
+
+    /**
+     * 不阻塞调用者，等待窗口结束和加载都在executor上进行
+     */
+    @Override
+    public ListenableFuture<V> asyncLoad(K key, Executor executor) {
+        return submit(key, executor);
+    }
+
+    @Override
+    public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<K, V> result = (Map<K, V>) loader.loadAll(keys);
+        return result;
+    }
+
+    /**
+     * 把key加入正在收集的batch，没有时开启一个新的
+     * batch满了就摘下来立刻加载，否则由开启它的一方等到窗口结束
+     */
+    private SettableFuture<V> submit(K key, Executor executor) {
+        checkNotNull(key);
+        Map<K, SettableFuture<V>> batch;
+        SettableFuture<V> future;
+        boolean opened;
+        boolean full;
+        synchronized (this) {
+            opened = (pending == null);
+            if (opened) {
+                pending = new LinkedHashMap<>();
+            }
+            batch = pending;
+            future = batch.get(key);
+            if (future == null) {
+                future = SettableFuture.create();
+                batch.put(key, future);
+            }
+            full = (batch.size() >= maximumBatchSize);
+            if (full) {
+                pending = null;
+            }
+        }
+        if (full) {
+            executor.execute(() -> dispatch(batch));
+        } else if (opened) {
+            SettableFuture<V> first = future;
+            executor.execute(() -> awaitWindow(batch, first));
+        }
+        return future;
+    }
+
+    /**
+     * 等待窗口结束，batch在这之前满了被摘走时，first会提前完成
+     */
+    private void awaitWindow(Map<K, SettableFuture<V>> batch, SettableFuture<V> first) {
+        try {
+            getUninterruptibly(first, windowNanos, TimeUnit.NANOSECONDS);
+            return;
+        } catch (TimeoutException e) {
+            // 窗口结束，batch还没满
+        } catch (ExecutionException e) {
+            return;
+        }
+        synchronized (this) {
+            if (pending != batch) {
+                // 已经因为满了被别的线程摘走
+                return;
+            }
+            pending = null;
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(Map<K, SettableFuture<V>> batch) {
+        Map<? super K, V> values;
+        try {
+            values = loader.loadAll(batch.keySet());
+        } catch (UnsupportedLoadingOperationException e) {
+            loadEach(batch);
+            return;
+        } catch (Throwable t) {
+            for (SettableFuture<V> future : batch.values()) {
+                future.setException(t);
+            }
+            return;
+        }
+        for (Map.Entry<K, SettableFuture<V>> entry : batch.entrySet()) {
+            // 缺少的key得到null，由cache当作加载失败处理
+            entry.getValue().set(values.get(entry.getKey()));
+        }
+    }
+
+    private void loadEach(Map<K, SettableFuture<V>> batch) {
+        for (Map.Entry<K, SettableFuture<V>> entry : batch.entrySet()) {
+            try {
+                entry.getValue().set(loader.load(entry.getKey()));
+            } catch (Throwable t) {
+                entry.getValue().setException(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.bsren.cache.loading;
+
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.ValueReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 记住一次失败的加载（抛出异常或者加载出null），退避期内再读这个key直接得到这个失败，不再调用loader
+ * 和加载中的value一样不是有效的value，不计入count和权重
+ * 退避期过后按hash找到bucket、按引用比较value把entry从表中删掉，不持有key，弱引用的key照样能被回收
+ */
+public class FailedValueReference<K, V> implements ValueReference<K, V> {
+
+    final int hash;
+
+    final Throwable cause;
+
+    /**
+     * 连续失败的次数，决定退避的时间
+     */
+    final int failures;
+
+    /**
+     * 到这个时间之后才重新加载
+     */
+    final long retryTime;
+
+    public FailedValueReference(int hash, Throwable cause, int failures, long retryTime) {
+        this.hash = hash;
+        this.cause = cause;
+        this.failures = failures;
+        this.retryTime = retryTime;
+    }
+
+    public int getHash() {
+        return hash;
+    }
+
+    public Throwable getCause() {
+        return cause;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public long getRetryTime() {
+        return retryTime;
+    }
+
+    @Override
+    public V get() {
+        return null;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getEntry() {
+        return null;
+    }
+
+    @Override
+    public ValueReference<K, V> copyFor(ReferenceQueue<V> queue, @Nullable V value, ReferenceEntry<K, V> entry) {
+        return this;
+    }
+
+    @Override
+    public boolean isLoading() {
+        return false;
+    }
+
+    @Override
+    public boolean isActive() {
+        return false;
+    }
+
+    @Override
+    public V waitForValue() throws ExecutionException {
+        throw new ExecutionException(cause);
+    }
+
+    @Override
+    public int getWeight() {
+        return 0;
+    }
+
+    @Override
+    public void notifyNewValue(@Nullable V newValue) {}
+}
@@ -49,6 +49,9 @@ public class Unset {
                     return 0;
                 }
 
+                @Override
+                public void notifyNewValue(@Nullable Object newValue) {}
+
             };
 
     public static <K, V> ValueReference<K, V> unset() {
@@ -0,0 +1,132 @@
+package com.bsren.cache.offheap;
+
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.ValueReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 序列化后存在SlabAllocator分配的chunk中的value，每次get都反序列化一份
+ * 引用计数保护chunk：cache持有一个计数，删除或者覆盖时由segment调用free交出；不加锁的读在读之前加一个计数，
+ * 最后一个计数释放时才归还chunk，所以读线程不会读到已经分给别的value的内存
+ */
+public class OffHeapValueReference<K, V> implements ValueReference<K, V> {
+
+    static final AtomicIntegerFieldUpdater<OffHeapValueReference<?, ?>> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(updatedClass(), "references");
+
+    static final AtomicIntegerFieldUpdater<OffHeapValueReference<?, ?>> FREED =
+            AtomicIntegerFieldUpdater.newUpdater(updatedClass(), "freed");
+
+    final SlabAllocator slabs;
+
+    final Serializer<V> serializer;
+
+    final long address;
+
+    final int length;
+
+    final int weight;
+
+    volatile int references = 1;
+
+    volatile int freed;
+
+    /**
+     * 泛型类没有带参数的Class对象，只能转一下
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<OffHeapValueReference<?, ?>> updatedClass() {
+        return (Class<OffHeapValueReference<?, ?>>) (Class<?>) OffHeapValueReference.class;
+    }
+
+    public OffHeapValueReference(SlabAllocator slabs, Serializer<V> serializer, long address, int length, int weight) {
+        this.slabs = slabs;
+        this.serializer = serializer;
+        this.address = address;
+        this.length = length;
+        this.weight = weight;
+    }
+
+    /**
+     * chunk已经归还时返回null，和被回收的value一样处理
+     */
+    @Override
+    public V get() {
+        if (!retain()) {
+            return null;
+        }
+        try {
+            return serializer.deserialize(slabs.read(address, length));
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * cache不再引用这个value，交出cache持有的计数，可以重复调用
+     */
+    public void free() {
+        if (FREED.compareAndSet(this, 0, 1)) {
+            release();
+        }
+    }
+
+    private boolean retain() {
+        for (;;) {
+            int references = this.references;
+            if (references == 0) {
+                return false;
+            }
+            if (REFERENCES.compareAndSet(this, references, references + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release() {
+        if (REFERENCES.decrementAndGet(this) == 0) {
+            slabs.free(address);
+        }
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getEntry() {
+        return null;
+    }
+
+    /**
+     * 不依赖entry，复制entry时共用同一个引用和计数
+     */
+    @Override
+    public ValueReference<K, V> copyFor(ReferenceQueue<V> queue, V value, ReferenceEntry<K, V> entry) {
+        return this;
+    }
+
+    @Override
+    public boolean isLoading() {
+        return false;
+    }
+
+    @Override
+    public boolean isActive() {
+        return true;
+    }
+
+    @Override
+    public V waitForValue() {
+        return get();
+    }
+
+    @Override
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public void notifyNewValue(@Nullable V newValue) {
+
+    }
+}
@@ -0,0 +1,26 @@
+package com.bsren.cache.offheap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts values to and from the bytes a cache keeps off heap, see
+ * {@link com.bsren.cache.CacheBuilder#offHeapValues}. A value is serialized once when it is
+ * written, and deserialized on every read, so {@code get} returns a new copy each time and values
+ * are compared with {@code equals}.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface Serializer<T> {
+
+    /**
+     * Returns the serialized form of {@code value}.
+     */
+    byte[] serialize(T value);
+
+    /**
+     * Reads back a value from {@code source}, whose position is at its first byte and whose limit
+     * is right after its last byte. The buffer is read-only and only valid during the call, so the
+     * returned value must not keep a reference to it.
+     */
+    T deserialize(ByteBuffer source);
+}
@@ -0,0 +1,129 @@
+package com.bsren.cache.offheap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Common {@link Serializer} implementations.
+ */
+public class Serializers {
+
+    private Serializers() {}
+
+    /**
+     * Returns a serializer that stores strings as UTF-8.
+     */
+    public static Serializer<String> utf8() {
+        return Utf8Serializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer that stores byte arrays as they are.
+     */
+    public static Serializer<byte[]> bytes() {
+        return BytesSerializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer that uses Java serialization. It works for any {@link Serializable}
+     * value but is slow and verbose; a dedicated serializer is usually a better fit.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> Serializer<T> java() {
+        return (Serializer<T>) JavaSerializer.INSTANCE;
+    }
+
+    enum Utf8Serializer implements Serializer<String> {
+        INSTANCE;
+
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(ByteBuffer source) {
+            return StandardCharsets.UTF_8.decode(source).toString();
+        }
+    }
+
+    enum BytesSerializer implements Serializer<byte[]> {
+        INSTANCE;
+
+        @Override
+        public byte[] serialize(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] deserialize(ByteBuffer source) {
+            byte[] bytes = new byte[source.remaining()];
+            source.get(bytes);
+            return bytes;
+        }
+    }
+
+    enum JavaSerializer implements Serializer<Serializable> {
+        INSTANCE;
+
+        @Override
+        public byte[] serialize(Serializable value) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Serializable deserialize(ByteBuffer source) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(source))) {
+                return (Serializable) in.readObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static final class ByteBufferInputStream extends InputStream {
+        final ByteBuffer source;
+
+        ByteBufferInputStream(ByteBuffer source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() {
+            return source.hasRemaining() ? (source.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, source.remaining());
+            source.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return source.remaining();
+        }
+    }
+}
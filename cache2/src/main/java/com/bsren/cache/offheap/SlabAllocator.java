@@ -0,0 +1,289 @@
+package com.bsren.cache.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hands out chunks of direct memory for off-heap values. Memory is reserved in slabs of
+ * {@link #SLAB_SIZE} bytes, each carved into chunks of a single power-of-two size class, from
+ * {@link #MIN_CHUNK_SIZE} bytes up to a whole slab; a request is served from the smallest class
+ * it fits in. Freed chunks are linked through their own first bytes, so the allocator keeps no
+ * per-chunk state on the heap, and a slab whose chunks are all freed goes back to a pool from
+ * which any size class may take it.
+ *
+ * <p>Each segment owns an allocator, so allocation normally happens under the segment lock; the
+ * methods still synchronize, because the last reader of a removed value frees its chunk from
+ * its own thread. Slabs are never returned to the operating system: the reserved memory is the
+ * high-water mark of the memory in use, and is released only when the cache is collected.
+ *
+ * <p>The allocator never reserves more than its bound, rounded up to a whole slab. Since a slab
+ * serves one size class at a time, a request may fail before the bound is reached in use; the
+ * caller then keeps the value on heap. A slab that the JVM cannot reserve fails the request the
+ * same way.
+ */
+public final class SlabAllocator {
+
+    public static final int SLAB_SHIFT = 20;
+
+    public static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+
+    static final int MIN_CHUNK_SHIFT = 6;
+
+    public static final int MIN_CHUNK_SIZE = 1 << MIN_CHUNK_SHIFT;
+
+    static final int SIZE_CLASSES = SLAB_SHIFT - MIN_CHUNK_SHIFT + 1;
+
+    /**
+     * 分配失败时返回的地址
+     */
+    public static final long NO_ADDRESS = -1;
+
+    /**
+     * 最多能有的slab个数
+     */
+    final int maxSlabs;
+
+    /**
+     * 下标是slab的index，只会变长，旧数组中已有的slab不变
+     */
+    volatile Slab[] slabs = new Slab[4];
+
+    int slabCount;
+
+    /**
+     * 每个size class中还有空闲chunk的slab组成的双向链表
+     */
+    final Slab[] available = new Slab[SIZE_CLASSES];
+
+    /**
+     * 没有在用的chunk的slab，通过next连起来，可以分给任意size class
+     */
+    Slab empty;
+
+    long usedBytes;
+
+    /**
+     * @param maxBytes the most memory the allocator may reserve, rounded up to a whole slab
+     */
+    public SlabAllocator(long maxBytes) {
+        long maxSlabs = (maxBytes >>> SLAB_SHIFT) + ((maxBytes & (SLAB_SIZE - 1)) == 0 ? 0 : 1);
+        this.maxSlabs = (int) Math.min(maxSlabs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 能放下size个字节的最小的size class
+     */
+    static int sizeClass(int size) {
+        int shift = (size <= MIN_CHUNK_SIZE) ? MIN_CHUNK_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_CHUNK_SHIFT;
+    }
+
+    /**
+     * 分配一个能放下size个字节的chunk，返回它的地址：高32位是slab的下标，低32位是slab中的偏移
+     * 超过一个slab或者内存用完了时返回NO_ADDRESS
+     */
+    public synchronized long allocate(int size) {
+        if (size > SLAB_SIZE) {
+            return NO_ADDRESS;
+        }
+        int sizeClass = sizeClass(size);
+        Slab slab = available[sizeClass];
+        if (slab == null) {
+            slab = takeEmptySlab();
+            if (slab == null) {
+                return NO_ADDRESS;
+            }
+            slab.assign(sizeClass);
+            link(slab);
+        }
+        int offset = slab.take();
+        if (slab.isFull()) {
+            unlink(slab);
+        }
+        usedBytes += slab.chunkSize;
+        return ((long) slab.index << 32) | offset;
+    }
+
+    /**
+     * 归还address处的chunk，slab变空时放回空slab池
+     */
+    public synchronized void free(long address) {
+        Slab slab = slabs(address);
+        boolean wasFull = slab.isFull();
+        slab.put((int) address);
+        usedBytes -= slab.chunkSize;
+        if (slab.used == 0) {
+            if (!wasFull) {
+                unlink(slab);
+            }
+            slab.next = empty;
+            empty = slab;
+        } else if (wasFull) {
+            link(slab);
+        }
+    }
+
+    /**
+     * address处的chunk的大小，也就是value实际占用的堆外内存
+     */
+    public int chunkSize(long address) {
+        return slabs(address).chunkSize;
+    }
+
+    /**
+     * 把bytes写到刚分配的chunk中，写完后通过volatile发布引用它的对象
+     */
+    public void write(long address, byte[] bytes) {
+        ByteBuffer buffer = slabs(address).buffer.duplicate();
+        buffer.position((int) address);
+        buffer.put(bytes);
+    }
+
+    /**
+     * 返回chunk中前length个字节的只读视图，调用方要保证读的时候chunk没有被归还
+     */
+    public ByteBuffer read(long address, int length) {
+        ByteBuffer buffer = slabs(address).readOnly.duplicate();
+        int offset = (int) address;
+        buffer.limit(offset + length).position(offset);
+        return buffer;
+    }
+
+    /**
+     * 分配中的chunk占用的字节数
+     */
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * 已经申请的堆外内存
+     */
+    public synchronized long reservedBytes() {
+        return (long) slabCount << SLAB_SHIFT;
+    }
+
+    /**
+     * 不加锁：slab在分配出它的chunk之前就放进了数组，读线程拿到地址时一定能在数组中看到它
+     */
+    private Slab slabs(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    private Slab takeEmptySlab() {
+        Slab slab = empty;
+        if (slab != null) {
+            empty = slab.next;
+            slab.next = null;
+            return slab;
+        }
+        if (slabCount == maxSlabs) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        } catch (OutOfMemoryError e) {
+            // 直接内存用完了，和slab数到了上限一样分配失败，value留在堆上
+            return null;
+        }
+        Slab[] slabs = this.slabs;
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabs.length * 2);
+        }
+        slab = new Slab(slabCount, buffer);
+        slabs[slabCount++] = slab;
+        this.slabs = slabs;
+        return slab;
+    }
+
+    private void link(Slab slab) {
+        Slab head = available[slab.sizeClass];
+        slab.prev = null;
+        slab.next = head;
+        if (head != null) {
+            head.prev = slab;
+        }
+        available[slab.sizeClass] = slab;
+    }
+
+    private void unlink(Slab slab) {
+        if (slab.prev != null) {
+            slab.prev.next = slab.next;
+        } else {
+            available[slab.sizeClass] = slab.next;
+        }
+        if (slab.next != null) {
+            slab.next.prev = slab.prev;
+        }
+        slab.prev = null;
+        slab.next = null;
+    }
+
+    static final class Slab {
+        final int index;
+
+        final ByteBuffer buffer;
+
+        final ByteBuffer readOnly;
+
+        int sizeClass;
+
+        int chunkSize;
+
+        /**
+         * 在用的chunk个数
+         */
+        int used;
+
+        /**
+         * 从没分配过的chunk从这里开始
+         */
+        int top;
+
+        /**
+         * 空闲chunk链表的头，每个空闲chunk的前4个字节存下一个的偏移，-1表示没有
+         */
+        int freeHead = -1;
+
+        Slab prev;
+
+        Slab next;
+
+        Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+            this.readOnly = buffer.asReadOnlyBuffer();
+        }
+
+        void assign(int sizeClass) {
+            this.sizeClass = sizeClass;
+            this.chunkSize = MIN_CHUNK_SIZE << sizeClass;
+            this.top = 0;
+            this.freeHead = -1;
+        }
+
+        boolean isFull() {
+            return freeHead < 0 && top + chunkSize > SLAB_SIZE;
+        }
+
+        int take() {
+            int offset;
+            if (freeHead >= 0) {
+                offset = freeHead;
+                freeHead = buffer.getInt(offset);
+            } else {
+                offset = top;
+                top += chunkSize;
+            }
+            used++;
+            return offset;
+        }
+
+        void put(int offset) {
+            buffer.putInt(offset, freeHead);
+            freeHead = offset;
+            used--;
+        }
+    }
+}
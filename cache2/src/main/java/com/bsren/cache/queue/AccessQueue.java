@@ -76,7 +76,7 @@ public final class AccessQueue<K,V> extends AbstractQueue<ReferenceEntry<K,V>> {
     @Override
     public void clear() {
         ReferenceEntry<K,V> e = head.getNextInAccessQueue();
-        while (e!=null){
+        while (e!=head){
             ReferenceEntry<K,V> next = e.getNextInAccessQueue();
             nullifyAccessOrder(e);
             e = next;
@@ -123,6 +123,22 @@ public final class AccessQueue<K,V> extends AbstractQueue<ReferenceEntry<K,V>> {
         return (next==head)?null:next;
     }
 
+    /**
+     * 队尾，也就是最近一次offer进来的entry
+     */
+    public ReferenceEntry<K, V> peekLast() {
+        ReferenceEntry<K,V> last = head.getPreviousInAccessQueue();
+        return (last==head)?null:last;
+    }
+
+    /**
+     * e在队列中的前一个entry，到达队头时返回null
+     */
+    public ReferenceEntry<K, V> previousOf(ReferenceEntry<K, V> e) {
+        ReferenceEntry<K,V> previous = e.getPreviousInAccessQueue();
+        return (previous==head)?null:previous;
+    }
+
     @Override
     public boolean remove(Object o) {
         ReferenceEntry<K,V> e = (ReferenceEntry<K, V>) o;
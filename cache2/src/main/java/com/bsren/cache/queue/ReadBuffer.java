@@ -0,0 +1,136 @@
+package com.bsren.cache.queue;
+
+import com.bsren.cache.ReferenceEntry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A striped, lossy buffer that records the entries read from a segment so that the access order
+ * can be replayed later under the segment lock.
+ *
+ * <p>Each stripe is a fixed-size ring with its own write counter, and a reader picks the stripe by
+ * its thread, so readers of the same segment rarely contend on a single tail. Recording a read
+ * allocates nothing. When the stripe is full or another reader won the race for the slot, the
+ * read is simply dropped: the access order is only a hint for eviction, and a hot entry will be
+ * recorded again soon enough.
+ *
+ * <p>{@link #offer} may be called by any thread; {@link #drainTo} must only be called while
+ * holding the segment lock.
+ */
+public final class ReadBuffer<K, V> {
+
+    /**
+     * offer的结果
+     */
+    public static final int SUCCESS = 0;
+    public static final int FAILED = 1;
+    public static final int FULL = 2;
+
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 条带数，不超过CPU个数向上取整到2的幂，最多16个
+     */
+    static final int STRIPES = Math.min(ceilingPowerOfTwo(NCPU), 16);
+
+    static final int STRIPE_MASK = STRIPES - 1;
+
+    /**
+     * 每个条带的容量
+     */
+    public static final int BUFFER_SIZE = 16;
+
+    static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    final Stripe<K, V>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    public ReadBuffer() {
+        stripes = (Stripe<K, V>[]) new Stripe<?, ?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<>();
+        }
+    }
+
+    /**
+     * 记录一次读，条带已满或者抢不到槽位时丢弃这次记录
+     */
+    public int offer(ReferenceEntry<K, V> e) {
+        return stripes[stripeIndex()].offer(e);
+    }
+
+    /**
+     * 把所有条带中已经记录的读按顺序交给consumer，返回处理的个数
+     */
+    public int drainTo(Consumer<ReferenceEntry<K, V>> consumer) {
+        int drained = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            drained += stripe.drainTo(consumer);
+        }
+        return drained;
+    }
+
+    /**
+     * 按线程选择条带，同一个线程总是写同一个条带
+     */
+    static int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & STRIPE_MASK;
+    }
+
+    static int ceilingPowerOfTwo(int x) {
+        int n = 1;
+        while (n < x) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    static final class Stripe<K, V> {
+
+        final AtomicReferenceArray<ReferenceEntry<K, V>> buffer =
+                new AtomicReferenceArray<>(BUFFER_SIZE);
+
+        final AtomicLong writeCounter = new AtomicLong();
+
+        /**
+         * 只在持有segment锁时写
+         */
+        volatile long readCounter;
+
+        int offer(ReferenceEntry<K, V> e) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            if (tail - head >= BUFFER_SIZE) {
+                return FULL;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & BUFFER_MASK), e);
+                return SUCCESS;
+            }
+            return FAILED;
+        }
+
+        int drainTo(Consumer<ReferenceEntry<K, V>> consumer) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            int drained = 0;
+            for (; head != tail; head++) {
+                int index = (int) (head & BUFFER_MASK);
+                ReferenceEntry<K, V> e = buffer.get(index);
+                if (e == null) {
+                    // 槽位已经抢到但还没写入，下次再处理
+                    break;
+                }
+                buffer.lazySet(index, null);
+                consumer.accept(e);
+                drained++;
+            }
+            readCounter = head;
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.bsren.cache.queue;
+
+import com.bsren.cache.AbstractReferenceEntry;
+import com.bsren.cache.ReferenceEntry;
+import com.google.j2objc.annotations.Weak;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.bsren.cache.entry.NullEntry.nullEntry;
+import static com.bsren.cache.queue.WriteQueue.connectWriteOrder;
+import static com.bsren.cache.queue.WriteQueue.nullifyWriteOrder;
+
+/**
+ * A hierarchical timing wheel that orders entries by their own expiration time
+ * ({@link ReferenceEntry#getVariableTime()}).
+ *
+ * <p>The wheel has five levels of buckets, each a circular list linked through the entries'
+ * write-order pointers. A bucket at one level spans a tick of about a second, a minute, an hour,
+ * a day and six days respectively. Scheduling an entry picks the finest level whose range still
+ * covers its expiration and links it into that level's bucket in O(1). When time advances, only
+ * the buckets whose ticks elapsed are visited. Entries that are due are handed back to the
+ * segment, and the rest are moved down to a finer level. So expiring N entries costs amortized
+ * O(1) each, without sorting or scanning.
+ *
+ * <p>The wheel borrows the write-order pointers, so it cannot be combined with the write queue
+ * of {@code expireAfterWrite}. This class is not thread-safe; the owning segment only touches it
+ * while holding its lock.
+ */
+public final class TimerWheel<K, V> {
+
+    static final int[] BUCKETS = {64, 64, 32, 4, 1};
+
+    /**
+     * 每层一个bucket覆盖的时间，向上取整到2的幂，约为1.07秒、1.14分钟、1.22小时、1.63天、6.5天
+     * 最后一个用来判断是否落到最外层
+     */
+    static final long[] SPANS = {
+            ceilingPowerOfTwo(TimeUnit.SECONDS.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.MINUTES.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.HOURS.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+    };
+
+    static final long[] SHIFT = {
+            Long.numberOfTrailingZeros(SPANS[0]),
+            Long.numberOfTrailingZeros(SPANS[1]),
+            Long.numberOfTrailingZeros(SPANS[2]),
+            Long.numberOfTrailingZeros(SPANS[3]),
+            Long.numberOfTrailingZeros(SPANS[4]),
+    };
+
+    final ReferenceEntry<K, V>[][] wheel;
+
+    /**
+     * 上次推进到的时间
+     */
+    long nanos;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long nanos) {
+        this.nanos = nanos;
+        wheel = (ReferenceEntry<K, V>[][]) new ReferenceEntry<?, ?>[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[BUCKETS[i]];
+            for (int j = 0; j < wheel[i].length; j++) {
+                wheel[i][j] = new Sentinel<>();
+            }
+        }
+    }
+
+    /**
+     * 把时间推进到currentTimeNanos，返回到期的entry，这些entry已经从时间轮中摘掉了
+     * 经过的bucket中还没到期的entry重新放到更低层的bucket中
+     * 到期的entry由segment删除，删除会复制链表中的entry，所以这里只收集不删除
+     */
+    public List<ReferenceEntry<K, V>> advance(long currentTimeNanos) {
+        long previousTimeNanos = nanos;
+        nanos = currentTimeNanos;
+        // ticker越过0时整体平移，保证比较的是正数
+        if ((previousTimeNanos < 0) && (currentTimeNanos > 0)) {
+            previousTimeNanos += Long.MAX_VALUE;
+            currentTimeNanos += Long.MAX_VALUE;
+        }
+        if ((currentTimeNanos >>> SHIFT[0]) - (previousTimeNanos >>> SHIFT[0]) <= 0) {
+            return Collections.emptyList();
+        }
+        List<ReferenceEntry<K, V>> expired = new ArrayList<>();
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = (previousTimeNanos >>> SHIFT[i]);
+            long currentTicks = (currentTimeNanos >>> SHIFT[i]);
+            long delta = currentTicks - previousTicks;
+            if (delta <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, delta, expired);
+        }
+        return expired;
+    }
+
+    /**
+     * 处理一层中从previousTicks开始经过的bucket，转过一整圈时每个bucket都处理一次
+     */
+    private void expire(int index, long previousTicks, long delta, List<ReferenceEntry<K, V>> expired) {
+        ReferenceEntry<K, V>[] timerWheel = wheel[index];
+        int mask = timerWheel.length - 1;
+        int steps = (int) Math.min(delta, mask) + 1;
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+        for (int i = start; i < end; i++) {
+            ReferenceEntry<K, V> sentinel = timerWheel[i & mask];
+            ReferenceEntry<K, V> e = sentinel.getNextInWriteQueue();
+            sentinel.setNextInWriteQueue(sentinel);
+            sentinel.setPreviousInWriteQueue(sentinel);
+            while (e != sentinel) {
+                ReferenceEntry<K, V> next = e.getNextInWriteQueue();
+                nullifyWriteOrder(e);
+                if ((e.getVariableTime() - nanos) > 0) {
+                    schedule(e);
+                } else {
+                    expired.add(e);
+                }
+                e = next;
+            }
+        }
+    }
+
+    /**
+     * 按entry的过期时间放入对应的bucket，已经在时间轮中的先摘下来
+     */
+    public void schedule(ReferenceEntry<K, V> e) {
+        if (isScheduled(e)) {
+            unlink(e);
+        }
+        ReferenceEntry<K, V> sentinel = findBucket(e.getVariableTime());
+        connectWriteOrder(sentinel.getPreviousInWriteQueue(), e);
+        connectWriteOrder(e, sentinel);
+    }
+
+    /**
+     * 过期时间变了，只有还在时间轮中的entry才需要挪动
+     */
+    public void reschedule(ReferenceEntry<K, V> e) {
+        if (isScheduled(e)) {
+            schedule(e);
+        }
+    }
+
+    public void deschedule(ReferenceEntry<K, V> e) {
+        if (isScheduled(e)) {
+            unlink(e);
+        }
+    }
+
+    public boolean isScheduled(ReferenceEntry<K, V> e) {
+        return e.getNextInWriteQueue() != nullEntry();
+    }
+
+    public void clear() {
+        for (ReferenceEntry<K, V>[] buckets : wheel) {
+            for (ReferenceEntry<K, V> sentinel : buckets) {
+                ReferenceEntry<K, V> e = sentinel.getNextInWriteQueue();
+                while (e != sentinel) {
+                    ReferenceEntry<K, V> next = e.getNextInWriteQueue();
+                    nullifyWriteOrder(e);
+                    e = next;
+                }
+                sentinel.setNextInWriteQueue(sentinel);
+                sentinel.setPreviousInWriteQueue(sentinel);
+            }
+        }
+    }
+
+    /**
+     * 距离下一次推进能处理到entry还有多久，时间轮为空时返回Long.MAX_VALUE
+     * 找最细的一层中第一个非空的bucket，再看更高层的下一个bucket会不会更早降级下来
+     */
+    public long getExpirationDelay() {
+        for (int i = 0; i < SHIFT.length; i++) {
+            ReferenceEntry<K, V>[] timerWheel = wheel[i];
+            long ticks = (nanos >>> SHIFT[i]);
+            long spanMask = SPANS[i] - 1;
+            int mask = timerWheel.length - 1;
+            int start = (int) (ticks & mask);
+            int end = start + timerWheel.length;
+            for (int j = start; j < end; j++) {
+                ReferenceEntry<K, V> sentinel = timerWheel[j & mask];
+                if (sentinel.getNextInWriteQueue() == sentinel) {
+                    continue;
+                }
+                long buckets = (j - start);
+                long delay = (buckets << SHIFT[i]) - (nanos & spanMask);
+                delay = (delay > 0) ? delay : SPANS[i];
+                for (int k = i + 1; k < SHIFT.length; k++) {
+                    delay = Math.min(delay, peekAhead(k));
+                }
+                return delay;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 这一层的下一个bucket非空时，返回到它开始的时间
+     */
+    private long peekAhead(int index) {
+        long ticks = (nanos >>> SHIFT[index]);
+        ReferenceEntry<K, V>[] timerWheel = wheel[index];
+        long spanMask = SPANS[index] - 1;
+        int mask = timerWheel.length - 1;
+        ReferenceEntry<K, V> sentinel = timerWheel[(int) ((ticks + 1) & mask)];
+        return (sentinel.getNextInWriteQueue() == sentinel)
+                ? Long.MAX_VALUE
+                : (SPANS[index] - (nanos & spanMask));
+    }
+
+    /**
+     * 找到能覆盖剩余时间的最细的一层，已经过期的放到当前的bucket，下一个tick就会被处理
+     */
+    ReferenceEntry<K, V> findBucket(long time) {
+        long duration = time - nanos;
+        if (duration < 0) {
+            time = nanos;
+        }
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = (time >>> SHIFT[i]);
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[length][0];
+    }
+
+    private void unlink(ReferenceEntry<K, V> e) {
+        connectWriteOrder(e.getPreviousInWriteQueue(), e.getNextInWriteQueue());
+        nullifyWriteOrder(e);
+    }
+
+    static long ceilingPowerOfTwo(long x) {
+        return 1L << -Long.numberOfLeadingZeros(x - 1);
+    }
+
+    /**
+     * 每个bucket的头节点
+     */
+    static final class Sentinel<K, V> extends AbstractReferenceEntry<K, V> {
+
+        @Weak
+        ReferenceEntry<K, V> nextWrite = this;
+
+        @Override
+        public ReferenceEntry<K, V> getNextInWriteQueue() {
+            return nextWrite;
+        }
+
+        @Override
+        public void setNextInWriteQueue(ReferenceEntry<K, V> next) {
+            this.nextWrite = next;
+        }
+
+        @Weak
+        ReferenceEntry<K, V> previousWrite = this;
+
+        @Override
+        public ReferenceEntry<K, V> getPreviousInWriteQueue() {
+            return previousWrite;
+        }
+
+        @Override
+        public void setPreviousInWriteQueue(ReferenceEntry<K, V> previous) {
+            this.previousWrite = previous;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.bsren.cache.queue;
+
+import com.bsren.cache.ReferenceEntry;
+
+/**
+ * A bounded ring of policy events (an entry was written or removed) recorded by a segment's writes.
+ *
+ * <p>Writers publish what changed instead of reordering the eviction and expiration queues
+ * themselves, and a single maintenance pass later applies the events in order, in one batch.
+ * Events are recorded while holding the segment lock: a chain removal copies the entries in front
+ * of the removed one, so every event for those entries must already be in the buffer, where the
+ * segment can apply it before the copy. With a single producer the buffer needs no atomic
+ * operations, and an event takes three array slots instead of an allocated task.
+ *
+ * <p>{@link #offer} fails rather than blocks when the buffer is full, so the caller can drain it
+ * first. All methods except {@link #size} must only be called while holding the segment lock.
+ */
+public final class WriteBuffer<K, V> {
+
+    /**
+     * 处理事件，drainTo按写入的顺序调用
+     */
+    public interface Handler<K, V> {
+        /**
+         * entry被写入，previousWeight是被覆盖前的value的权重
+         */
+        void onWrite(ReferenceEntry<K, V> e, int weight, int previousWeight);
+
+        /**
+         * entry被删除，weight是删除时value的权重
+         */
+        void onRemoval(ReferenceEntry<K, V> e, int weight);
+    }
+
+    /**
+     * 删除事件的previousWeight，权重不会是负数
+     */
+    static final int REMOVAL = -1;
+
+    final ReferenceEntry<K, V>[] entries;
+
+    final int[] weights;
+
+    final int[] previousWeights;
+
+    final int mask;
+
+    /**
+     * 只增不减，溢出后相减仍然是事件个数；不加锁读size时只是一个估计
+     */
+    int head;
+
+    int tail;
+
+    @SuppressWarnings("unchecked")
+    public WriteBuffer(int capacity) {
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        entries = (ReferenceEntry<K, V>[]) new ReferenceEntry<?, ?>[length];
+        weights = new int[length];
+        previousWeights = new int[length];
+        mask = length - 1;
+    }
+
+    /**
+     * 记录一次写，满了返回false
+     */
+    public boolean offerWrite(ReferenceEntry<K, V> e, int weight, int previousWeight) {
+        return offer(e, weight, previousWeight);
+    }
+
+    /**
+     * 记录一次删除，满了返回false
+     */
+    public boolean offerRemoval(ReferenceEntry<K, V> e, int weight) {
+        return offer(e, weight, REMOVAL);
+    }
+
+    private boolean offer(ReferenceEntry<K, V> e, int weight, int previousWeight) {
+        if (tail - head == entries.length) {
+            return false;
+        }
+        int index = tail & mask;
+        entries[index] = e;
+        weights[index] = weight;
+        previousWeights[index] = previousWeight;
+        tail++;
+        return true;
+    }
+
+    /**
+     * 按顺序把所有事件交给handler，返回处理的个数
+     */
+    public int drainTo(Handler<K, V> handler) {
+        int drained = 0;
+        while (head != tail) {
+            int index = head & mask;
+            ReferenceEntry<K, V> e = entries[index];
+            int weight = weights[index];
+            int previousWeight = previousWeights[index];
+            entries[index] = null;
+            head++;
+            drained++;
+            if (previousWeight == REMOVAL) {
+                handler.onRemoval(e, weight);
+            } else {
+                handler.onWrite(e, weight, previousWeight);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * 还没被处理的事件个数
+     */
+    public int size() {
+        return tail - head;
+    }
+}
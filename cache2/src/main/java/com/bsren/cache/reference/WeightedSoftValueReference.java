@@ -8,7 +8,7 @@ import java.lang.ref.ReferenceQueue;
 public class WeightedSoftValueReference<K, V> extends SoftValueReference<K, V> {
     final int weight;
 
-    WeightedSoftValueReference(
+    public WeightedSoftValueReference(
             ReferenceQueue<V> queue, V referent, ReferenceEntry<K, V> entry, int weight) {
         super(queue, referent, entry);
         this.weight = weight;
@@ -5,7 +5,7 @@ package com.bsren.cache.reference;
 public class WeightedStrongValueReference<K, V> extends StrongValueReference<K, V> {
     final int weight;
 
-    WeightedStrongValueReference(V referent, int weight) {
+    public WeightedStrongValueReference(V referent, int weight) {
         super(referent);
         this.weight = weight;
     }
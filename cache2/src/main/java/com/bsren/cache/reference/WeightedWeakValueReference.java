@@ -5,10 +5,10 @@ import com.bsren.cache.ValueReference;
 
 import java.lang.ref.ReferenceQueue;
 
-class WeightedWeakValueReference<K, V> extends WeakValueReference<K, V> {
+public class WeightedWeakValueReference<K, V> extends WeakValueReference<K, V> {
     final int weight;
 
-    WeightedWeakValueReference(
+    public WeightedWeakValueReference(
             ReferenceQueue<V> queue, V referent, ReferenceEntry<K, V> entry, int weight) {
         super(queue, referent, entry);
         this.weight = weight;
@@ -0,0 +1,115 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class AsMapTest {
+
+    static final int THREADS = 8;
+
+    static final int KEYS = 4;
+
+    static final int ROUNDS = 5_000;
+
+    static ConcurrentMap<Integer, Integer> newMap() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(2)
+                .maximumSize(1000)
+                .build();
+        return cache.asMap();
+    }
+
+    /**
+     * 所有线程同时开始，每个线程按顺序对每一轮调用一次action
+     */
+    static void runConcurrently(IntConsumer action) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        action.accept(round);
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+    }
+
+    @Test
+    public void computeIsAtomic() throws Exception {
+        ConcurrentMap<Integer, Integer> map = newMap();
+        runConcurrently(round -> map.compute(round % KEYS, (k, v) -> (v == null) ? 1 : v + 1));
+        for (int k = 0; k < KEYS; k++) {
+            assertEquals(THREADS * ROUNDS / KEYS, (int) map.get(k));
+        }
+    }
+
+    @Test
+    public void mergeIsAtomic() throws Exception {
+        ConcurrentMap<Integer, Integer> map = newMap();
+        runConcurrently(round -> map.merge(round % KEYS, 1, Integer::sum));
+        for (int k = 0; k < KEYS; k++) {
+            assertEquals(THREADS * ROUNDS / KEYS, (int) map.get(k));
+        }
+    }
+
+    @Test
+    public void computeIfAbsentCallsTheFunctionOncePerKey() throws Exception {
+        ConcurrentMap<Integer, Integer> map = newMap();
+        AtomicInteger calls = new AtomicInteger();
+        runConcurrently(round -> {
+            int key = round % 100;
+            int value = map.computeIfAbsent(key, k -> {
+                calls.incrementAndGet();
+                return k * 10;
+            });
+            assertEquals(key * 10, value);
+        });
+        assertEquals(100, calls.get());
+    }
+
+    @Test
+    public void computeRemovesWhenTheFunctionReturnsNull() throws Exception {
+        ConcurrentMap<Integer, Integer> map = newMap();
+        // 每个key加到THREADS就删掉，删除和加一不能交错，每个key被加了THREADS的整数倍次
+        AtomicInteger removals = new AtomicInteger();
+        runConcurrently(round -> map.compute(round % 500, (k, v) -> {
+            int next = (v == null) ? 1 : v + 1;
+            if (next == THREADS) {
+                removals.incrementAndGet();
+                return null;
+            }
+            return next;
+        }));
+        assertEquals(ROUNDS, removals.get());
+        assertEquals(0, map.size());
+        assertNull(map.computeIfPresent(0, (k, v) -> v + 1));
+        assertFalse(map.containsKey(0));
+    }
+}
@@ -0,0 +1,124 @@
+package com.bsren.cache;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncLoadingCacheTest {
+
+    final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * 加载阻塞到release，前failures次加载失败
+     */
+    static final class GatedLoader extends CacheLoader<Integer, Integer> {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final int failures;
+
+        GatedLoader(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public Integer load(Integer key) throws Exception {
+            int n = loads.incrementAndGet();
+            assertTrue(release.await(10, TimeUnit.SECONDS));
+            if (n <= failures) {
+                throw new IllegalStateException("load " + n + " of " + key);
+            }
+            return key * 10;
+        }
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    AsyncLoadingCache<Integer, Integer> newCache(GatedLoader loader) {
+        return CacheBuilder.newBuilder().executor(executor).buildAsync(loader);
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        GatedLoader loader = new GatedLoader(0);
+        AsyncLoadingCache<Integer, Integer> cache = newCache(loader);
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread caller = new Thread(() -> {
+                CompletableFuture<Integer> future = cache.get(1);
+                synchronized (futures) {
+                    futures.add(future);
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        // 调用者都没有被阻塞，拿到的future都还没完成
+        assertEquals(8, futures.size());
+        for (CompletableFuture<Integer> future : futures) {
+            assertFalse(future.isDone());
+        }
+
+        loader.release.countDown();
+        for (CompletableFuture<Integer> future : futures) {
+            assertEquals(10, (int) future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loader.loads.get());
+        assertEquals(10, (int) cache.getIfPresent(1).get());
+    }
+
+    @Test
+    public void cancellingOneCallerDoesNotCancelTheSharedLoad() throws Exception {
+        GatedLoader loader = new GatedLoader(0);
+        AsyncLoadingCache<Integer, Integer> cache = newCache(loader);
+
+        CompletableFuture<Integer> cancelled = cache.get(1);
+        CompletableFuture<Integer> other = cache.get(1);
+        assertTrue(cancelled.cancel(true));
+
+        loader.release.countDown();
+        assertEquals(10, (int) other.get(10, TimeUnit.SECONDS));
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, loader.loads.get());
+        // 加载的结果照样存进了cache
+        assertEquals(10, (int) cache.get(1).get());
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void failedLoadIsNotCached() throws Exception {
+        GatedLoader loader = new GatedLoader(1);
+        loader.release.countDown();
+        AsyncLoadingCache<Integer, Integer> cache = newCache(loader);
+
+        try {
+            cache.get(1).get(10, TimeUnit.SECONDS);
+            fail("expected the first load to fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(10, (int) cache.get(1).get(10, TimeUnit.SECONDS));
+        assertEquals(2, loader.loads.get());
+    }
+}
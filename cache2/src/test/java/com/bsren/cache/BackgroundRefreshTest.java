@@ -0,0 +1,237 @@
+package com.bsren.cache;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackgroundRefreshTest {
+
+    static final class FakeTicker extends Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    /**
+     * 第一次加载立即返回，之后的加载阻塞到release
+     */
+    static final class BlockingLoader extends CacheLoader<Integer, Integer> {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Integer load(Integer key) throws Exception {
+            int n = loads.incrementAndGet();
+            if (n == 1) {
+                // 让segment记下一个不为0的加载时间，提前刷新要用到
+                Thread.sleep(20);
+            } else {
+                started.countDown();
+                release.await();
+            }
+            return key * 10 + n;
+        }
+    }
+
+    @Test
+    public void staleReadDoesNotWaitForRevalidation() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        BlockingLoader loader = new BlockingLoader();
+        LoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .staleWhileRevalidate(1, TimeUnit.MINUTES)
+                .build(loader);
+        assertEquals(11, (int) cache.get(1));
+
+        ticker.advance(90, TimeUnit.SECONDS);
+        assertEquals(11, (int) cache.get(1));
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+        // 刷新还卡在loader里，读照样拿到旧值
+        assertEquals(11, (int) cache.get(1));
+
+        loader.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.getIfPresent(1) == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(12, (int) cache.getIfPresent(1));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void earlyRefreshDoesNotBlockTheRead() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        BlockingLoader loader = new BlockingLoader();
+        LoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .earlyRefresh(1000)
+                .build(loader);
+        assertEquals(11, (int) cache.get(1));
+
+        ticker.advance(TimeUnit.MINUTES.toMillis(1) - 1, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100 && loader.started.getCount() > 0; i++) {
+            assertEquals(11, (int) cache.get(1));
+        }
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+        assertEquals(11, (int) cache.get(1));
+
+        loader.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.get(1) == 11 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // 刷新完的entry离过期又远了，但加载时间被拉长，之后的读仍可能再刷新一次
+        assertTrue(cache.get(1) > 11);
+    }
+
+    @Test
+    public void earlyRefreshOfLongKeyUsesTheGivenLoader() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        AtomicInteger defaultLoads = new AtomicInteger();
+        LongKeyLoadingCache<Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .earlyRefresh(1000)
+                .buildLongKeys(new CacheLoader<Long, Integer>() {
+                    @Override
+                    public Integer load(Long key) {
+                        defaultLoads.incrementAndGet();
+                        return -1;
+                    }
+                });
+        assertEquals(1, (int) cache.get(1L, () -> {
+            Thread.sleep(20);
+            return 1;
+        }));
+
+        ticker.advance(TimeUnit.MINUTES.toMillis(1) - 1, TimeUnit.MILLISECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int value = 1;
+        while (value == 1 && System.nanoTime() < deadline) {
+            value = cache.get(1L, () -> 2);
+            Thread.sleep(1);
+        }
+        assertEquals(2, value);
+        assertEquals(0, defaultLoads.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void refreshAfterWriteDoesNotBlockTheRead() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        BlockingLoader loader = new BlockingLoader();
+        LoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .build(loader);
+        assertEquals(11, (int) cache.get(1));
+
+        // 没有设置executor，刷新也不在读线程上
+        ticker.advance(90, TimeUnit.SECONDS);
+        assertEquals(11, (int) cache.get(1));
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+        assertEquals(11, (int) cache.get(1));
+
+        loader.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.get(1) == 11 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(12, (int) cache.get(1));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void asyncHitDoesNotBlockOnRefresh() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        BlockingLoader loader = new BlockingLoader();
+        AsyncLoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .buildAsync(loader);
+        assertEquals(11, (int) cache.get(1).get());
+
+        ticker.advance(90, TimeUnit.SECONDS);
+        CompletableFuture<Integer> hit = cache.get(1);
+        assertTrue(hit.isDone());
+        assertEquals(11, (int) hit.get());
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+        loader.release.countDown();
+    }
+
+    @Test(timeout = 10_000)
+    public void asyncGetServesStaleWhileRevalidating() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        BlockingLoader loader = new BlockingLoader();
+        AsyncLoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .staleWhileRevalidate(1, TimeUnit.MINUTES)
+                .buildAsync(loader);
+        assertEquals(11, (int) cache.get(1).get());
+
+        ticker.advance(90, TimeUnit.SECONDS);
+        CompletableFuture<Integer> stale = cache.get(1);
+        assertTrue(stale.isDone());
+        assertEquals(11, (int) stale.get());
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+
+        loader.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.getIfPresent(1) == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(12, (int) cache.get(1).get());
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void asyncGetFallsBackToStaleOnError() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        AtomicInteger loads = new AtomicInteger();
+        AsyncLoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .staleIfError(1, TimeUnit.MINUTES)
+                .buildAsync(new CacheLoader<Integer, Integer>() {
+                    @Override
+                    public Integer load(Integer key) {
+                        if (loads.incrementAndGet() > 1) {
+                            throw new IllegalStateException("down");
+                        }
+                        return key * 10;
+                    }
+                });
+        assertEquals(10, (int) cache.get(1).get());
+
+        ticker.advance(90, TimeUnit.SECONDS);
+        assertEquals(10, (int) cache.get(1).get());
+        assertEquals(2, loads.get());
+        // 宽限期过后不再有旧值可用
+        ticker.advance(1, TimeUnit.MINUTES);
+        try {
+            cache.get(1).get();
+            fail("expected the load to fail");
+        } catch (ExecutionException expected) {
+        }
+    }
+}
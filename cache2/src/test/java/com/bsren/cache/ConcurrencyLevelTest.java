@@ -0,0 +1,75 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * segment个数由concurrencyLevel决定，initialCapacity只决定每个segment的table大小
+ */
+public class ConcurrencyLevelTest {
+
+    static LocalCache<Object, Object> localCache(CacheBuilder<Object, Object> builder) {
+        return ((LocalManualCache<Object, Object>) builder.build()).localCache;
+    }
+
+    static int segments(CacheBuilder<Object, Object> builder) {
+        return localCache(builder).segments.length;
+    }
+
+    @Test
+    public void initialCapacityDoesNotChangeSegmentCount() {
+        assertEquals(8, segments(CacheBuilder.newBuilder().concurrencyLevel(8)));
+        assertEquals(8, segments(CacheBuilder.newBuilder().concurrencyLevel(8).initialCapacity(1)));
+        assertEquals(8, segments(CacheBuilder.newBuilder().concurrencyLevel(8).initialCapacity(10_000)));
+        assertEquals(8, segments(CacheBuilder.newBuilder().concurrencyLevel(5)));
+    }
+
+    @Test
+    public void initialCapacitySizesTheSegmentTables() {
+        LocalCache<Object, Object> map = localCache(CacheBuilder.newBuilder().concurrencyLevel(4).initialCapacity(64));
+        assertEquals(4, map.segments.length);
+        for (LocalCache.Segment<Object, Object> segment : map.segments) {
+            assertEquals(16, segment.table.length());
+        }
+    }
+
+    @Test
+    public void withoutConcurrencyLevelSegmentsFollowInitialCapacity() {
+        assertEquals(1, segments(CacheBuilder.newBuilder()));
+        assertEquals(1, segments(CacheBuilder.newBuilder().initialCapacity(19)));
+        assertEquals(2, segments(CacheBuilder.newBuilder().initialCapacity(20)));
+        assertEquals(64, segments(CacheBuilder.newBuilder().initialCapacity(1000)));
+    }
+
+    @Test
+    public void maximumSizeLimitsSegmentCount() {
+        // 每个segment至少能分到20个
+        assertEquals(8, segments(CacheBuilder.newBuilder().concurrencyLevel(64).maximumSize(100)));
+        assertEquals(1, segments(CacheBuilder.newBuilder().concurrencyLevel(64).maximumSize(10)));
+    }
+
+    @Test
+    public void automaticConcurrencyLevelFollowsProcessors() {
+        int expected = 1;
+        while (expected < 4 * Runtime.getRuntime().availableProcessors()) {
+            expected <<= 1;
+        }
+        assertEquals(expected, segments(CacheBuilder.newBuilder().automaticConcurrencyLevel()));
+    }
+
+    @Test
+    public void concurrencyLevelIsSetOnce() {
+        try {
+            CacheBuilder.newBuilder().concurrencyLevel(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            CacheBuilder.newBuilder().concurrencyLevel(4).automaticConcurrencyLevel();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EvictionPolicyTest {
+
+    static final int MAXIMUM_SIZE = 100;
+
+    static final int HOT_KEYS = 50;
+
+    static Cache<Integer, Integer> newCache(EvictionPolicy policy) {
+        return CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(MAXIMUM_SIZE)
+                .evictionPolicy(policy)
+                .build();
+    }
+
+    /**
+     * 先反复读一批热点key，再把大量只出现一次的key扫过一遍，返回扫完之后还留下的热点key个数
+     */
+    static int hotKeysAfterScan(Cache<Integer, Integer> cache) {
+        for (int k = 0; k < HOT_KEYS; k++) {
+            cache.put(k, k);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int k = 0; k < HOT_KEYS; k++) {
+                cache.getIfPresent(k);
+            }
+            cache.cleanUp();
+        }
+        for (int k = 1000; k < 1000 + 20 * MAXIMUM_SIZE; k++) {
+            cache.put(k, k);
+        }
+        cache.cleanUp();
+        assertTrue(cache.size() <= MAXIMUM_SIZE);
+
+        int survivors = 0;
+        for (int k = 0; k < HOT_KEYS; k++) {
+            if (cache.asMap().containsKey(k)) {
+                survivors++;
+            }
+        }
+        return survivors;
+    }
+
+    @Test
+    public void frequentKeysSurviveAScan() {
+        // sketch的计数会冲突，偶尔有热点key输给扫过的key，绝大多数都要留下
+        int survivors = hotKeysAfterScan(newCache(EvictionPolicy.W_TINY_LFU));
+        assertTrue("only " + survivors + " hot keys survived", survivors >= HOT_KEYS * 9 / 10);
+    }
+
+    @Test
+    public void scanFlushesLruWorkingSet() {
+        assertEquals(0, hotKeysAfterScan(newCache(EvictionPolicy.LRU)));
+    }
+}
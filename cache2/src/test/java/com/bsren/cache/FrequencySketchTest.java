@@ -0,0 +1,78 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+
+    static final int HOT = 0x9E3779B9;
+
+    @Test
+    public void countersSaturateAtFifteen() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(HOT);
+        }
+        assertEquals(15, sketch.frequency(HOT));
+    }
+
+    @Test
+    public void countersAreHalvedEverySamplePeriod() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(HOT);
+        }
+        int sampleSize = sketch.sampleSize;
+        assertEquals(10 * 512, sampleSize);
+
+        // 别的key把一个采样周期用完，size减半时所有计数器都减半，饱和的计数器变成7
+        int hash = 1;
+        int previous;
+        do {
+            previous = sketch.size;
+            sketch.increment(hash++);
+        } while (sketch.size > previous);
+        assertTrue("size " + sketch.size, sketch.size <= sampleSize / 2);
+        assertEquals(7, sketch.frequency(HOT));
+    }
+
+    @Test
+    public void oldPopularityDecays() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(HOT);
+        }
+        // 几个采样周期之后，当初的热点key和刚被用过两次的key差不多
+        for (int i = 0; i < 4 * sketch.sampleSize; i++) {
+            sketch.increment(i * 31 + 7);
+        }
+        int fresh = 0x12345678;
+        sketch.increment(fresh);
+        sketch.increment(fresh);
+        assertTrue(sketch.frequency(HOT) <= sketch.frequency(fresh) + 1);
+    }
+
+    @Test
+    public void readsAndWritesFeedTheSketch() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(100)
+                .evictionPolicy(EvictionPolicy.W_TINY_LFU)
+                .build();
+        LocalCache<Integer, Integer> map = ((LocalManualCache<Integer, Integer>) cache).localCache;
+        int hash = map.hash(1);
+        FrequencySketch sketch = map.segmentFor(hash).frequencySketch;
+
+        cache.put(1, 1);
+        cache.put(1, 2);
+        cache.cleanUp();
+        assertEquals(2, sketch.frequency(hash));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(2, (int) cache.getIfPresent(1));
+        }
+        cache.cleanUp();
+        assertEquals(7, sketch.frequency(hash));
+    }
+}
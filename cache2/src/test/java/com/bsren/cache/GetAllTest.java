@@ -0,0 +1,183 @@
+package com.bsren.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GetAllTest {
+
+    /**
+     * 没有实现loadAll，getAll退回到逐个加载；key为"runtime"、"error"、"checked"时按对应的方式失败
+     */
+    static final CacheLoader<String, String> FAILING = new CacheLoader<String, String>() {
+        @Override
+        public String load(String key) throws Exception {
+            switch (key) {
+                case "runtime":
+                    throw new IllegalStateException(key);
+                case "error":
+                    throw new AssertionError(key);
+                case "checked":
+                    throw new Exception(key);
+                default:
+                    return key.toUpperCase();
+            }
+        }
+    };
+
+    static List<String> keys(String... keys) {
+        List<String> list = new ArrayList<>();
+        for (String key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+
+    static Class<?> failureOf(LoadingCache<String, String> cache, String key) {
+        try {
+            cache.getAll(keys("a", key, "b"));
+            fail("expected " + key + " to fail");
+            return null;
+        } catch (Throwable t) {
+            return t.getClass();
+        }
+    }
+
+    @Test
+    public void parallelFallbackThrowsLikeSequentialFallback() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            LoadingCache<String, String> sequential = CacheBuilder.newBuilder().build(FAILING);
+            LoadingCache<String, String> parallel = CacheBuilder.newBuilder().executor(executor).build(FAILING);
+
+            assertEquals(UncheckedExecutionException.class, failureOf(sequential, "runtime"));
+            assertEquals(ExecutionError.class, failureOf(sequential, "error"));
+            assertEquals(ExecutionException.class, failureOf(sequential, "checked"));
+            for (String key : keys("runtime", "error", "checked")) {
+                assertEquals(key, failureOf(sequential, key), failureOf(parallel, key));
+            }
+            assertEquals(ImmutableMap.of("a", "A", "b", "B"), parallel.getAll(keys("a", "b")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parallelFallbackLoadsOverlap() throws Exception {
+        int keys = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(keys);
+        try {
+            // 每个加载都要等所有加载开始之后才能完成，逐个加载的话第一个就会超时
+            CountDownLatch started = new CountDownLatch(keys);
+            LoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                    .executor(executor)
+                    .build(new CacheLoader<Integer, Integer>() {
+                        @Override
+                        public Integer load(Integer key) throws Exception {
+                            started.countDown();
+                            if (!started.await(5, TimeUnit.SECONDS)) {
+                                throw new IllegalStateException("loads did not overlap");
+                            }
+                            return key * 10;
+                        }
+                    });
+            List<Integer> request = new ArrayList<>();
+            for (int k = 0; k < keys; k++) {
+                request.add(k);
+            }
+
+            long start = System.nanoTime();
+            ImmutableMap<Integer, Integer> values = cache.getAll(request);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(keys, values.size());
+            for (int k = 0; k < keys; k++) {
+                assertEquals(k * 10, (int) values.get(k));
+            }
+            assertTrue("took " + elapsed + " ns", elapsed < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void mixesHitsLoadingKeysAndCachedFailures() throws Exception {
+        Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+        CountDownLatch release = new CountDownLatch(1);
+        LoadingCache<String, String> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .recordStats()
+                .cacheLoadFailures(1, 60, TimeUnit.MINUTES)
+                .build(new CacheLoader<String, String>() {
+                    @Override
+                    public String load(String key) throws Exception {
+                        loads.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+                        if (key.equals("bad")) {
+                            throw new IllegalStateException(key);
+                        }
+                        if (key.equals("slow")) {
+                            assertTrue(release.await(10, TimeUnit.SECONDS));
+                        }
+                        return key.toUpperCase();
+                    }
+                });
+        cache.put("a", "A");
+        cache.put("b", "B");
+        try {
+            cache.get("bad");
+            fail();
+        } catch (Exception expected) {
+        }
+        // 另一个线程正在加载slow
+        Thread loader = new Thread(() -> cache.getUnchecked("slow"));
+        loader.start();
+        while (!loads.containsKey("slow")) {
+            Thread.sleep(1);
+        }
+        long hits = cache.stats().hitCount();
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            release.countDown();
+        }).start();
+        ImmutableMap<String, String> values = cache.getAll(keys("a", "x", "b", "slow", "y"));
+        loader.join();
+
+        assertEquals(keys("a", "x", "b", "slow", "y"), new ArrayList<>(values.keySet()));
+        assertEquals(keys("A", "X", "B", "SLOW", "Y"), new ArrayList<>(values.values()));
+        assertEquals(2, cache.stats().hitCount() - hits);
+        // 正在加载的key等待已有的加载，命中的key不加载
+        assertEquals(1, loads.get("slow").get());
+        assertEquals(1, loads.get("x").get());
+        assertEquals(1, loads.get("y").get());
+        assertFalse(loads.containsKey("a") || loads.containsKey("b"));
+
+        // 记住的失败照样抛出，不再调用loader
+        try {
+            cache.getAll(keys("a", "bad"));
+            fail();
+        } catch (Exception expected) {
+        }
+        assertEquals(1, loads.get("bad").get());
+    }
+}
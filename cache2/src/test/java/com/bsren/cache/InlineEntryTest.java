@@ -0,0 +1,172 @@
+package com.bsren.cache;
+
+import com.bsren.cache.ProbingTableTest.CollidingKey;
+import com.bsren.cache.entry.InlineValueEntry;
+import com.bsren.cache.listeners.RemovalCause;
+import com.bsren.cache.listeners.RemovalNotification;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * value内联在entry中时，删除链上后面的entry会复制前面的entry；刷新中的entry被复制后，旧值和新值都不能丢
+ */
+public class InlineEntryTest {
+
+    /**
+     * refreshing为true时load要等release才返回，fails为true时随后失败
+     */
+    static final class GatedLoader extends CacheLoader<CollidingKey, String> {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean refreshing;
+        volatile boolean fails;
+
+        @Override
+        public String load(CollidingKey key) throws Exception {
+            if (refreshing) {
+                started.countDown();
+                assertTrue(release.await(10, TimeUnit.SECONDS));
+                if (fails) {
+                    throw new IllegalStateException("refresh failed");
+                }
+                return "new" + key.id;
+            }
+            return "old" + key.id;
+        }
+    }
+
+    static ReferenceEntry<CollidingKey, String> entryFor(LoadingCache<CollidingKey, String> cache, CollidingKey key) {
+        LocalCache<CollidingKey, String> map = ((LocalLoadingCache<CollidingKey, String>) cache).localCache;
+        return map.segments[0].getEntry(key, map.hash(key));
+    }
+
+    @Test(timeout = 10_000)
+    public void refreshSurvivesCopyOnChainRemoval() throws Exception {
+        checkRefreshSurvivesCopy(CacheBuilder.newBuilder());
+        checkRefreshSurvivesCopy(CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.HOURS));
+        checkRefreshSurvivesCopy(CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.HOURS));
+    }
+
+    static void checkRefreshSurvivesCopy(CacheBuilder<Object, Object> builder) throws Exception {
+        List<RemovalNotification<CollidingKey, String>> removals = new ArrayList<>();
+        GatedLoader loader = new GatedLoader();
+        LoadingCache<CollidingKey, String> cache = builder
+                .concurrencyLevel(1)
+                .<CollidingKey, String>removalListener(removals::add)
+                .build(loader);
+        // 同一个bucket里，后放的entry在链的前面：链是a -> b
+        CollidingKey a = new CollidingKey(1, 1);
+        CollidingKey b = new CollidingKey(2, 1);
+        assertEquals("old2", cache.get(b));
+        assertEquals("old1", cache.get(a));
+        ReferenceEntry<CollidingKey, String> original = entryFor(cache, a);
+        assertTrue(original instanceof InlineValueEntry);
+        assertTrue(original.getNext() != null && original.getNext().getKey() == b);
+
+        loader.refreshing = true;
+        Thread refresher = new Thread(() -> cache.refresh(a));
+        refresher.start();
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+
+        // 删除b要复制a，复制出的entry带着刷新中的LoadingValueReference
+        cache.invalidate(b);
+        ReferenceEntry<CollidingKey, String> copy = entryFor(cache, a);
+        assertNotSame(original, copy);
+        assertTrue(copy.getValueReference().isLoading());
+        assertEquals("old1", cache.getIfPresent(a));
+        assertEquals("old1", cache.asMap().get(a));
+
+        loader.release.countDown();
+        refresher.join();
+        assertEquals("new1", cache.getIfPresent(a));
+        assertEquals(1, cache.size());
+        ReferenceEntry<CollidingKey, String> refreshed = entryFor(cache, a);
+        assertTrue(refreshed instanceof InlineValueEntry);
+        assertTrue(refreshed.getValueReference() == refreshed);
+
+        // 被替换的是刷新前的旧值
+        cache.cleanUp();
+        assertEquals(2, removals.size());
+        assertEquals(b, removals.get(0).getKey());
+        assertEquals(RemovalCause.EXPLICIT, removals.get(0).getCause());
+        assertEquals(a, removals.get(1).getKey());
+        assertEquals("old1", removals.get(1).getValue());
+        assertEquals(RemovalCause.REPLACED, removals.get(1).getCause());
+    }
+
+    @Test(timeout = 10_000)
+    public void refreshKeepsTheInlinedOldValue() throws Exception {
+        List<RemovalNotification<CollidingKey, String>> removals = new ArrayList<>();
+        GatedLoader loader = new GatedLoader();
+        LoadingCache<CollidingKey, String> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .<CollidingKey, String>removalListener(removals::add)
+                .build(loader);
+        CollidingKey a = new CollidingKey(1, 1);
+        assertEquals("old1", cache.get(a));
+        ReferenceEntry<CollidingKey, String> entry = entryFor(cache, a);
+
+        loader.refreshing = true;
+        Thread refresher = new Thread(() -> cache.refresh(a));
+        refresher.start();
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+        loader.release.countDown();
+        refresher.join();
+
+        // 没有复制时新值写回同一个entry的字段，被替换的通知里仍是旧值
+        assertSame(entry, entryFor(cache, a));
+        assertEquals("new1", cache.getIfPresent(a));
+        cache.cleanUp();
+        assertEquals(1, removals.size());
+        assertEquals("old1", removals.get(0).getValue());
+        assertEquals(RemovalCause.REPLACED, removals.get(0).getCause());
+    }
+
+    @Test(timeout = 10_000)
+    public void failedRefreshRestoresOldValueIntoTheCopy() throws Exception {
+        List<RemovalNotification<CollidingKey, String>> removals = new ArrayList<>();
+        GatedLoader loader = new GatedLoader();
+        LoadingCache<CollidingKey, String> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .<CollidingKey, String>removalListener(removals::add)
+                .build(loader);
+        CollidingKey a = new CollidingKey(1, 1);
+        CollidingKey b = new CollidingKey(2, 1);
+        cache.get(b);
+        cache.get(a);
+        ReferenceEntry<CollidingKey, String> original = entryFor(cache, a);
+
+        loader.refreshing = true;
+        loader.fails = true;
+        Thread refresher = new Thread(() -> cache.refresh(a));
+        refresher.start();
+        assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+        cache.invalidate(b);
+        loader.release.countDown();
+        refresher.join();
+
+        // 刷新失败时复制出的entry拿回旧值，旧值不能还挂在已经摘掉的原entry上
+        ReferenceEntry<CollidingKey, String> copy = entryFor(cache, a);
+        assertNotSame(original, copy);
+        assertNotSame(original, copy.getValueReference());
+        assertEquals("old1", cache.getIfPresent(a));
+        assertEquals(1, cache.size());
+
+        cache.invalidate(a);
+        cache.cleanUp();
+        assertEquals(0, cache.size());
+        assertEquals(2, removals.size());
+        assertEquals(a, removals.get(1).getKey());
+        assertEquals("old1", removals.get(1).getValue());
+        assertEquals(RemovalCause.EXPLICIT, removals.get(1).getCause());
+    }
+}
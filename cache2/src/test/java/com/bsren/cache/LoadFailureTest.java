@@ -0,0 +1,184 @@
+package com.bsren.cache;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoadFailureTest {
+
+    static final class FakeTicker extends Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    static final CacheLoader<Object, Object> FAILING = new CacheLoader<Object, Object>() {
+        @Override
+        public Object load(Object key) {
+            throw new IllegalStateException("no value for " + key);
+        }
+    };
+
+    static <K, V> LocalCache.Segment<K, V> onlySegment(LoadingCache<K, V> cache) {
+        LocalCache<K, V> map = ((LocalManualCache<K, V>) cache).localCache;
+        assertEquals(1, map.segments.length);
+        return map.segments[0];
+    }
+
+    /**
+     * 表中的entry个数，包括加载中和失败的
+     */
+    static int entriesInTable(LocalCache.Segment<?, ?> segment) {
+        segment.lock();
+        try {
+            segment.finishTransfer();
+            return countEntries(segment);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    private static <K, V> int countEntries(LocalCache.Segment<K, V> segment) {
+        AtomicReferenceArray<ReferenceEntry<K, V>> table = segment.table;
+        int entries = 0;
+        for (int i = 0; i < table.length(); i++) {
+            for (ReferenceEntry<K, V> e = segment.firstAt(table, i); e != null; e = e.getNext()) {
+                entries++;
+            }
+        }
+        return entries;
+    }
+
+    static void assertFails(LoadingCache<Object, Object> cache, Object key) {
+        try {
+            cache.get(key);
+            fail("expected " + key + " to fail");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void failuresExpireInRetryOrder() {
+        FakeTicker ticker = new FakeTicker();
+        LoadingCache<Object, Object> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .ticker(ticker)
+                .cacheLoadFailures(1, 60, TimeUnit.SECONDS)
+                .build(FAILING);
+        LocalCache.Segment<Object, Object> segment = onlySegment(cache);
+
+        assertFails(cache, "a");
+        ticker.advance(1, TimeUnit.SECONDS);
+        // 第二次失败，退避到3秒
+        assertFails(cache, "a");
+        // 后失败的b先到重试时间：2秒
+        assertFails(cache, "b");
+        assertEquals(2, entriesInTable(segment));
+
+        ticker.advance(1500, TimeUnit.MILLISECONDS);
+        cache.cleanUp();
+        assertEquals(1, entriesInTable(segment));
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        cache.cleanUp();
+        assertEquals(0, entriesInTable(segment));
+    }
+
+    @Test
+    public void failuresAreBoundedAndGrowTheTable() {
+        FakeTicker ticker = new FakeTicker();
+        LoadingCache<Object, Object> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .initialCapacity(16)
+                .maximumSize(1000)
+                .ticker(ticker)
+                .cacheLoadFailures(1, 60, TimeUnit.MINUTES)
+                .build(FAILING);
+        LocalCache.Segment<Object, Object> segment = onlySegment(cache);
+
+        for (int k = 0; k < 20_000; k++) {
+            assertFails(cache, k);
+        }
+        assertEquals(0, cache.size());
+        assertEquals(1000, entriesInTable(segment));
+        assertTrue("table did not grow: " + segment.table.length(), segment.table.length() >= 1024);
+
+        // 最近失败的key还记着，重试前不调用loader
+        assertFails(cache, 19_999);
+        assertEquals(1000, entriesInTable(segment));
+    }
+
+    @Test
+    public void failureDoesNotPinWeakKey() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        LoadingCache<Object, Object> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .weakKeys()
+                .ticker(ticker)
+                .cacheLoadFailures(1, 60, TimeUnit.MINUTES)
+                .build(FAILING);
+
+        Object key = new Object();
+        assertFails(cache, key);
+        WeakReference<Object> ref = new WeakReference<>(key);
+        key = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+
+        // 退避期过后，key已经被回收的entry也能删掉
+        ticker.advance(2, TimeUnit.MINUTES);
+        cache.cleanUp();
+        assertEquals(0, entriesInTable(onlySegment(cache)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void clearForgetsFailures() {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger removals = new AtomicInteger();
+        LoadingCache<Object, Object> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .<Object, Object>removalListener(notification -> removals.incrementAndGet())
+                .cacheLoadFailures(1, 60, TimeUnit.MINUTES)
+                .build(new CacheLoader<Object, Object>() {
+                    @Override
+                    public Object load(Object key) {
+                        loads.incrementAndGet();
+                        throw new IllegalStateException("no value for " + key);
+                    }
+                });
+        LocalCache.Segment<Object, Object> segment = onlySegment(cache);
+
+        assertFails(cache, "a");
+        assertFails(cache, "a");
+        assertEquals(1, loads.get());
+        assertEquals(0, segment.count);
+
+        // segment中只有失败的entry，清空之后马上重试
+        cache.asMap().clear();
+        assertEquals(0, entriesInTable(segment));
+        assertEquals(0, removals.get());
+        assertFails(cache, "a");
+        assertEquals(2, loads.get());
+    }
+}
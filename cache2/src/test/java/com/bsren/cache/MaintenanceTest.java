@@ -0,0 +1,91 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MaintenanceTest {
+
+    /**
+     * 只记下提交的任务，由测试在指定的线程上运行
+     */
+    static final class QueueingExecutor implements Executor {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        /**
+         * 在名为name的线程上运行所有任务，包括运行中又提交的
+         */
+        void runAllOn(String name) throws InterruptedException {
+            Thread thread = new Thread(() -> {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            }, name);
+            thread.start();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void evictionRunsOnTheExecutor() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        List<String> listenerThreads = new ArrayList<>();
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(10)
+                .executor(executor)
+                .<Integer, Integer>removalListener(notification -> {
+                    synchronized (listenerThreads) {
+                        listenerThreads.add(Thread.currentThread().getName());
+                    }
+                })
+                .build();
+
+        for (int k = 0; k < 20; k++) {
+            cache.put(k, k);
+        }
+        // 写线程只提交了维护任务，没有自己驱逐
+        assertEquals(20, cache.size());
+        assertTrue(listenerThreads.isEmpty());
+        assertFalse(executor.tasks.isEmpty());
+
+        executor.runAllOn("maintenance");
+        assertEquals(10, cache.size());
+        assertEquals(10, listenerThreads.size());
+        for (String name : listenerThreads) {
+            assertEquals("maintenance", name);
+        }
+    }
+
+    @Test
+    public void oneMaintenanceTaskIsPendingPerSegment() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(10)
+                .executor(executor)
+                .build();
+
+        for (int k = 0; k < 1000; k++) {
+            cache.put(k, k);
+        }
+        // 已经提交过的segment只标记一下，不会为每次写再提交一次
+        assertEquals(1, executor.tasks.size());
+        executor.runAllOn("maintenance");
+        assertEquals(10, cache.size());
+    }
+}
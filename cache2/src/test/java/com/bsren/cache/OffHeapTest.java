@@ -0,0 +1,121 @@
+package com.bsren.cache;
+
+import com.bsren.cache.offheap.Serializers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapTest {
+
+    static long usedBytes(Cache<?, ?> cache) {
+        long used = 0;
+        for (LocalCache.Segment<?, ?> segment : ((LocalManualCache<?, ?>) cache).localCache.segments) {
+            used += segment.slabs.usedBytes();
+        }
+        return used;
+    }
+
+    @Test
+    public void requiresAByteBound() {
+        try {
+            CacheBuilder.newBuilder().offHeapValues(Serializers.utf8()).build();
+            fail("an unbounded off-heap cache was built");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            CacheBuilder.newBuilder()
+                    .maximumWeight(1 << 20)
+                    .<Object, String>weigher((k, v) -> 1)
+                    .offHeapValues(Serializers.utf8())
+                    .build();
+            fail("an off-heap cache weighed by a weigher was built");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void removedAndReplacedValuesFreeTheirMemory() {
+        Cache<Integer, String> cache = CacheBuilder.newBuilder()
+                .maximumWeight(16 << 20)
+                .offHeapValues(Serializers.utf8())
+                .build();
+        for (int k = 0; k < 1000; k++) {
+            cache.put(k, "value " + k);
+        }
+        for (int k = 0; k < 1000; k++) {
+            cache.put(k, "replaced " + k);
+        }
+        for (int k = 0; k < 1000; k++) {
+            assertEquals("replaced " + k, cache.getIfPresent(k));
+        }
+        assertEquals(1000L * 64, usedBytes(cache));
+        for (int k = 0; k < 1000; k++) {
+            cache.invalidate(k);
+        }
+        cache.cleanUp();
+        assertEquals(0, usedBytes(cache));
+    }
+
+    @Test
+    public void collectedKeysFreeTheirMemory() throws Exception {
+        Cache<Object, String> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .weakKeys()
+                .maximumWeight(16 << 20)
+                .offHeapValues(Serializers.utf8())
+                .build();
+        List<Object> kept = new ArrayList<>();
+        for (int k = 0; k < 2000; k++) {
+            Object key = new Object();
+            cache.put(key, "value " + k);
+            if (k % 4 == 0) {
+                kept.add(key);
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        // 删除会复制排在前面的entry，其中key已经被回收的在复制时丢掉
+        for (Object key : kept) {
+            cache.invalidate(key);
+        }
+        for (int i = 0; i < 200; i++) {
+            cache.cleanUp();
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, usedBytes(cache));
+    }
+
+    @Test
+    public void readersNeverSeeReusedMemory() throws Throwable {
+        Cache<Integer, String> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(1 << 20)
+                .offHeapValues(Serializers.utf8())
+                .build();
+        int keys = 64;
+        for (int k = 0; k < keys; k++) {
+            cache.put(k, k + ":0");
+        }
+        // 覆盖后chunk马上被别的key的新value重用，读线程读到的仍然必须是这个key的某个完整的value
+        ResizeTest.runWithReaders(3, () -> {
+            for (int round = 1; round <= 2000; round++) {
+                for (int k = 0; k < keys; k++) {
+                    cache.put(k, k + ":" + round);
+                }
+            }
+        }, () -> {
+            int k = ThreadLocalRandom.current().nextInt(keys);
+            String value = cache.getIfPresent(k);
+            assertTrue("key " + k + " read " + value, value != null && value.startsWith(k + ":"));
+        });
+        assertEquals(keys * 64L, usedBytes(cache));
+    }
+}
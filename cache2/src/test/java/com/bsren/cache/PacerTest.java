@@ -0,0 +1,91 @@
+package com.bsren.cache;
+
+import com.bsren.cache.listeners.RemovalCause;
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PacerTest {
+
+    final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void idleSegmentsExpireWithoutReads() throws Exception {
+        int entries = 50;
+        CountDownLatch expired = new CountDownLatch(entries);
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .expireAfterWrite(100, TimeUnit.MILLISECONDS)
+                .scheduler(scheduler)
+                .<Integer, Integer>removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.EXPIRED) {
+                        expired.countDown();
+                    }
+                })
+                .build();
+        for (int k = 0; k < entries; k++) {
+            cache.put(k, k);
+        }
+
+        // 之后再也没有读写，过期全靠pacer唤醒
+        assertTrue("only " + (entries - expired.getCount()) + " entries expired",
+                expired.await(10, TimeUnit.SECONDS));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void nearbyDeadlinesShareOneWakeup() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .scheduler(scheduler)
+                .build();
+        for (int k = 0; k < 1000; k++) {
+            cache.put(k, k);
+        }
+        assertEquals(1, scheduler.getQueue().size());
+    }
+
+    /**
+     * 唯一等待中的唤醒还有多久
+     */
+    long pendingDelaySeconds() {
+        assertEquals(1, scheduler.getQueue().size());
+        return ((Delayed) scheduler.getQueue().peek()).getDelay(TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void earlierDeadlineReplacesThePendingWakeup() {
+        scheduler.setRemoveOnCancelPolicy(true);
+        Ticker ticker = Ticker.systemTicker();
+        Pacer pacer = new Pacer(scheduler, ticker, () -> {
+        });
+        long now = ticker.read();
+
+        pacer.schedule(now + TimeUnit.MINUTES.toNanos(10));
+        assertTrue(pendingDelaySeconds() > 9 * 60);
+        // 更晚的deadline不动已有的唤醒
+        pacer.schedule(now + TimeUnit.MINUTES.toNanos(20));
+        assertTrue(pendingDelaySeconds() > 9 * 60 && pendingDelaySeconds() <= 10 * 60);
+        // 更早的deadline取消它，重新安排
+        pacer.schedule(now + TimeUnit.MINUTES.toNanos(1));
+        assertTrue(pendingDelaySeconds() <= 60);
+        // 再早也不会早于TOLERANCE
+        pacer.schedule(now);
+        assertEquals(1, scheduler.getQueue().size());
+        assertTrue(((Delayed) scheduler.getQueue().peek()).getDelay(TimeUnit.NANOSECONDS) > Pacer.TOLERANCE / 2);
+    }
+}
@@ -0,0 +1,155 @@
+package com.bsren.cache;
+
+import com.bsren.cache.LoadFailureTest.FakeTicker;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 原始类型key的命中路径不装箱，结果要和装箱的Cache接口完全一样
+ */
+public class PrimitiveKeyTest {
+
+    /**
+     * 高32位不同、Long.hashCode相同的key也在里面，按hash查到以后还要比较key本身
+     */
+    static final long[] LONG_KEYS = {
+            0, 1, -1, 42, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 32, (1L << 32) | 1, -(1L << 32), 0x7FFFFFFF00000000L
+    };
+
+    static final int[] INT_KEYS = {0, 1, -1, 42, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 16, -(1 << 16)};
+
+    static CacheBuilder<Object, Object>[] builders() {
+        @SuppressWarnings("unchecked")
+        CacheBuilder<Object, Object>[] builders = new CacheBuilder[]{
+                CacheBuilder.newBuilder(),
+                CacheBuilder.newBuilder().tableLayout(TableLayout.OPEN_ADDRESSING),
+                CacheBuilder.newBuilder().concurrencyLevel(4).maximumSize(1000),
+                CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.HOURS),
+        };
+        return builders;
+    }
+
+    @Test
+    public void longKeysMatchBoxedApi() {
+        for (CacheBuilder<Object, Object> builder : builders()) {
+            LongKeyCache<String> cache = builder.recordStats().buildLongKeys();
+            for (int i = 0; i < LONG_KEYS.length; i += 2) {
+                cache.put(LONG_KEYS[i], "v" + i);
+            }
+            for (int i = 1; i < LONG_KEYS.length; i += 2) {
+                cache.put(Long.valueOf(LONG_KEYS[i]), "v" + i);
+            }
+            for (int i = 0; i < LONG_KEYS.length; i++) {
+                long key = LONG_KEYS[i];
+                assertEquals(builder + " " + key, "v" + i, cache.getIfPresent(key));
+                assertEquals(cache.getIfPresent(Long.valueOf(key)), cache.getIfPresent(key));
+            }
+            assertNull(cache.getIfPresent(2L));
+            assertNull(cache.getIfPresent(Long.MIN_VALUE + 1));
+            assertEquals(3 * LONG_KEYS.length, cache.stats().hitCount());
+            assertEquals(2, cache.stats().missCount());
+
+            cache.invalidate(LONG_KEYS[0]);
+            assertNull(cache.getIfPresent(LONG_KEYS[0]));
+            assertNull(cache.getIfPresent(Long.valueOf(LONG_KEYS[0])));
+        }
+    }
+
+    @Test
+    public void intKeysMatchBoxedApi() {
+        for (CacheBuilder<Object, Object> builder : builders()) {
+            IntKeyCache<String> cache = builder.recordStats().buildIntKeys();
+            for (int i = 0; i < INT_KEYS.length; i++) {
+                cache.put(INT_KEYS[i], "v" + i);
+            }
+            for (int i = 0; i < INT_KEYS.length; i++) {
+                int key = INT_KEYS[i];
+                assertEquals(builder + " " + key, "v" + i, cache.getIfPresent(key));
+                assertEquals(cache.getIfPresent(Integer.valueOf(key)), cache.getIfPresent(key));
+                assertEquals("v" + i, cache.asMap().get(key));
+            }
+            assertNull(cache.getIfPresent(2));
+            assertEquals(3 * INT_KEYS.length, cache.stats().hitCount());
+
+            cache.invalidate(INT_KEYS[0]);
+            assertNull(cache.getIfPresent(INT_KEYS[0]));
+            assertEquals(INT_KEYS.length - 1, cache.size());
+        }
+    }
+
+    @Test
+    public void loadingHitsMatchBoxedApi() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        LongKeyLoadingCache<String> longs = CacheBuilder.newBuilder()
+                .buildLongKeys(new CacheLoader<Long, String>() {
+                    @Override
+                    public String load(Long key) {
+                        loads.incrementAndGet();
+                        return "v" + key;
+                    }
+                });
+        IntKeyLoadingCache<String> ints = CacheBuilder.newBuilder()
+                .buildIntKeys(new CacheLoader<Integer, String>() {
+                    @Override
+                    public String load(Integer key) {
+                        loads.incrementAndGet();
+                        return "v" + key;
+                    }
+                });
+        for (long key : LONG_KEYS) {
+            assertEquals("v" + key, longs.get(key));
+            assertEquals(longs.get(Long.valueOf(key)), longs.get(key));
+            assertEquals(longs.getUnchecked(Long.valueOf(key)), longs.getUnchecked(key));
+        }
+        for (int key : INT_KEYS) {
+            assertEquals("v" + key, ints.get(key));
+            assertEquals(ints.get(Integer.valueOf(key)), ints.get(key));
+            assertEquals(ints.getUnchecked(Integer.valueOf(key)), ints.getUnchecked(key));
+        }
+        // 每个key只加载一次，之后都是命中
+        assertEquals(LONG_KEYS.length + INT_KEYS.length, loads.get());
+    }
+
+    @Test
+    public void expiredEntriesAreMissesOnBothPaths() {
+        FakeTicker ticker = new FakeTicker();
+        LongKeyCache<String> cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .buildLongKeys();
+        cache.put(7L, "seven");
+        assertEquals("seven", cache.getIfPresent(7L));
+        ticker.advance(2, TimeUnit.MINUTES);
+        assertNull(cache.getIfPresent(7L));
+        assertNull(cache.getIfPresent(Long.valueOf(7L)));
+    }
+
+    @Test
+    public void randomOperationsAgreeAcrossPaths() {
+        LongKeyCache<String> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .tableLayout(TableLayout.OPEN_ADDRESSING)
+                .buildLongKeys();
+        Random random = new Random(7);
+        for (int round = 0; round < 20_000; round++) {
+            // 低32位相同的key，Long.hashCode冲突
+            long key = ((long) random.nextInt(64) << 32) ^ random.nextInt(4);
+            switch (random.nextInt(4)) {
+                case 0:
+                    cache.put(key, "v" + round);
+                    break;
+                case 1:
+                    cache.invalidate(key);
+                    break;
+                default:
+                    assertEquals(cache.getIfPresent(Long.valueOf(key)), cache.getIfPresent(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 开放寻址的table：删除留下的墓碑要被之后的插入复用，查找要能越过墓碑找到后面的key
+ */
+public class ProbingTableTest {
+
+    /**
+     * hashCode只有buckets种，key之间大量冲突，探测序列很长
+     */
+    static final class CollidingKey {
+        final int id;
+        final int buckets;
+
+        CollidingKey(int id, int buckets) {
+            this.id = id;
+            this.buckets = buckets;
+        }
+
+        @Override
+        public int hashCode() {
+            return id % buckets;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+
+        @Override
+        public String toString() {
+            return "key" + id;
+        }
+    }
+
+    static Cache<CollidingKey, Integer> newCache() {
+        return CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .tableLayout(TableLayout.OPEN_ADDRESSING)
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    static ProbingTable<CollidingKey, Integer> table(Cache<CollidingKey, Integer> cache) {
+        return (ProbingTable<CollidingKey, Integer>) ((LocalManualCache<CollidingKey, Integer>) cache)
+                .localCache.segments[0].table;
+    }
+
+    @Test
+    public void lookupsProbePastTombstones() {
+        Cache<CollidingKey, Integer> cache = newCache();
+        CollidingKey[] keys = new CollidingKey[5];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new CollidingKey(i, 1);
+            cache.put(keys[i], i);
+        }
+        ProbingTable<CollidingKey, Integer> table = table(cache);
+        assertEquals(4, table.maxProbe);
+
+        // 删掉探测序列前面的key，后面的key要越过墓碑才能找到
+        cache.invalidate(keys[0]);
+        cache.invalidate(keys[2]);
+        assertSame(table, table(cache));
+        assertNull(cache.getIfPresent(keys[0]));
+        assertNull(cache.getIfPresent(keys[2]));
+        assertEquals(Integer.valueOf(1), cache.getIfPresent(keys[1]));
+        assertEquals(Integer.valueOf(3), cache.getIfPresent(keys[3]));
+        assertEquals(Integer.valueOf(4), cache.getIfPresent(keys[4]));
+        assertNull(cache.getIfPresent(new CollidingKey(5, 1)));
+        assertEquals(Integer.valueOf(4), cache.asMap().put(keys[4], 40));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void insertsReuseTombstones() {
+        Cache<CollidingKey, Integer> cache = newCache();
+        CollidingKey[] keys = new CollidingKey[5];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new CollidingKey(i, 1);
+            cache.put(keys[i], i);
+        }
+        ProbingTable<CollidingKey, Integer> table = table(cache);
+        int used = table.used;
+        int home = indexOf(table, keys[0]);
+        int tombstone = indexOf(table, keys[1]);
+
+        cache.invalidate(keys[1]);
+        assertSame(ProbingTable.TOMBSTONE, table.get(tombstone));
+
+        // 新key插到第一个墓碑上，不占新的slot，探测距离也不变
+        CollidingKey fresh = new CollidingKey(5, 1);
+        cache.put(fresh, 5);
+        assertSame(table, table(cache));
+        assertEquals(tombstone, indexOf(table, fresh));
+        assertEquals(used, table.used);
+        assertEquals(4, table.maxProbe);
+        assertEquals(home, indexOf(table, keys[0]));
+
+        // 删掉的key重新放回来也复用墓碑
+        int slot = indexOf(table, keys[3]);
+        cache.invalidate(keys[3]);
+        cache.put(keys[3], 33);
+        assertEquals(slot, indexOf(table, keys[3]));
+        assertEquals(used, table.used);
+        assertEquals(Integer.valueOf(33), cache.getIfPresent(keys[3]));
+    }
+
+    static int indexOf(ProbingTable<CollidingKey, Integer> table, CollidingKey key) {
+        for (int i = 0; i < table.length(); i++) {
+            ReferenceEntry<CollidingKey, Integer> e = table.get(i);
+            if (ProbingTable.isEntry(e) && key.equals(e.getKey())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void randomInsertsAndDeletesMatchHashMap() {
+        Cache<CollidingKey, Integer> cache = newCache();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int round = 0; round < 20_000; round++) {
+            int id = random.nextInt(200);
+            CollidingKey key = new CollidingKey(id, 7);
+            if (random.nextInt(3) == 0) {
+                cache.invalidate(key);
+                expected.remove(id);
+            } else {
+                cache.put(key, round);
+                expected.put(id, round);
+            }
+            int probe = random.nextInt(200);
+            assertEquals(expected.get(probe), cache.getIfPresent(new CollidingKey(probe, 7)));
+        }
+        assertEquals(expected.size(), cache.size());
+        // 不加锁的查找最多看maxProbe + 1个slot，也要找到每个还在的key
+        LocalCache<CollidingKey, Integer> map = ((LocalManualCache<CollidingKey, Integer>) cache).localCache;
+        ProbingTable<CollidingKey, Integer> table = table(cache);
+        for (int id = 0; id < 200; id++) {
+            CollidingKey key = new CollidingKey(id, 7);
+            ReferenceEntry<CollidingKey, Integer> e = table.find(key, map.hash(key), map.keyEquivalence);
+            assertEquals(key.toString(), expected.containsKey(id), e != null);
+        }
+    }
+}
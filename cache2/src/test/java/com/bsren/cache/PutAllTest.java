@@ -0,0 +1,57 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PutAllTest {
+
+    static final int MAX_WEIGHT = 1000;
+
+    @Test
+    public void oversizedValuesInOneBatchAreEvicted() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(MAX_WEIGHT)
+                .<Integer, Integer>weigher((k, v) -> v)
+                .build();
+        Map<Integer, Integer> batch = new HashMap<>();
+        for (int k = 0; k < 400; k++) {
+            batch.put(k, (k % 2 == 0) ? 5000 : 1);
+        }
+        cache.putAll(batch);
+
+        int readable = 0;
+        for (int k = 0; k < 400; k++) {
+            Integer v = cache.getIfPresent(k);
+            if (v != null) {
+                assertTrue("oversized entry " + k + " still readable", v <= MAX_WEIGHT);
+                readable++;
+            }
+        }
+        assertEquals(readable, cache.size());
+        assertEquals(readable, cache.asMap().size());
+        assertEquals(200, readable);
+    }
+
+    @Test
+    public void batchLargerThanTheMaximumDoesNotGrowTheTable() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(100)
+                .build();
+        Map<Integer, Integer> batch = new HashMap<>();
+        for (int k = 0; k < 10_000; k++) {
+            batch.put(k, k);
+        }
+        cache.putAll(batch);
+
+        assertEquals(100, cache.size());
+        LocalCache.Segment<Integer, Integer> segment = ((LocalManualCache<Integer, Integer>) cache).localCache.segments[0];
+        assertTrue("segment grew to " + segment.table.length(), segment.table.length() <= 256);
+    }
+}
@@ -0,0 +1,175 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 扩容、缩容中的table：读线程不加锁，沿着forwarding读到新table，不能漏掉还在的key
+ */
+public class ResizeTest {
+
+    static Cache<Integer, Integer> newCache(TableLayout layout) {
+        return CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .tableLayout(layout)
+                .build();
+    }
+
+    static LocalCache.Segment<Integer, Integer> onlySegment(Cache<Integer, Integer> cache) {
+        return ((LocalManualCache<Integer, Integer>) cache).localCache.segments[0];
+    }
+
+    /**
+     * 跑readers个读线程直到writer结束，读线程出错时把第一个错误抛出来
+     */
+    static void runWithReaders(int readers, Runnable writer, Runnable read) throws Throwable {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (!done.get() && failure.get() == null) {
+                        read.run();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        try {
+            writer.run();
+        } finally {
+            done.set(true);
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public void readersSeeEveryKeyWhileTheTableGrows() throws Throwable {
+        for (TableLayout layout : TableLayout.values()) {
+            Cache<Integer, Integer> cache = newCache(layout);
+            int n = 200_000;
+            AtomicInteger written = new AtomicInteger();
+            runWithReaders(3, () -> {
+                for (int k = 0; k < n; k++) {
+                    cache.put(k, k);
+                    written.lazySet(k + 1);
+                }
+            }, () -> {
+                int bound = written.get();
+                if (bound > 0) {
+                    int k = ThreadLocalRandom.current().nextInt(bound);
+                    assertEquals(layout + " key " + k, Integer.valueOf(k), cache.getIfPresent(k));
+                }
+            });
+            assertEquals(n, cache.size());
+            assertTrue(onlySegment(cache).table.length() >= n);
+        }
+    }
+
+    @Test
+    public void readersSeeKeptKeysWhileTheTableShrinks() throws Throwable {
+        for (TableLayout layout : TableLayout.values()) {
+            Cache<Integer, Integer> cache = newCache(layout);
+            int n = 100_000;
+            List<Integer> removed = new ArrayList<>();
+            for (int k = 0; k < n; k++) {
+                cache.put(k, k);
+                if (k % 64 != 0) {
+                    removed.add(k);
+                }
+            }
+            Collections.shuffle(removed);
+            int capacity = onlySegment(cache).table.length();
+            runWithReaders(3, () -> {
+                for (Integer k : removed) {
+                    cache.invalidate(k);
+                }
+                cache.cleanUp();
+            }, () -> {
+                int k = ThreadLocalRandom.current().nextInt(n / 64) * 64;
+                assertEquals(layout + " key " + k, Integer.valueOf(k), cache.getIfPresent(k));
+            });
+            cache.trimToSize();
+
+            assertEquals((n + 63) / 64, cache.size());
+            assertTrue(layout + " table not shrunk", onlySegment(cache).table.length() < capacity / 16);
+            for (int k = 0; k < n; k++) {
+                if (k % 64 == 0) {
+                    assertEquals(Integer.valueOf(k), cache.getIfPresent(k));
+                } else {
+                    assertNull(cache.getIfPresent(k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concurrentWritersDuringResizeLoseNothing() throws Throwable {
+        for (TableLayout layout : TableLayout.values()) {
+            Cache<Integer, Integer> cache = newCache(layout);
+            int writers = 4;
+            int perWriter = 50_000;
+            List<Thread> threads = new ArrayList<>();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int w = 0; w < writers; w++) {
+                int base = w * perWriter;
+                Thread t = new Thread(() -> {
+                    try {
+                        for (int k = base; k < base + perWriter; k++) {
+                            cache.put(k, k);
+                            // 一边写一边删掉一部分，扩容和删除交错
+                            if (k % 3 == 0) {
+                                cache.invalidate(k);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            int expected = 0;
+            for (int k = 0; k < writers * perWriter; k++) {
+                Integer v = cache.getIfPresent(k);
+                if (k % 3 == 0) {
+                    assertNull(layout + " key " + k, v);
+                } else {
+                    assertEquals(layout + " key " + k, Integer.valueOf(k), v);
+                    expected++;
+                }
+            }
+            assertEquals(expected, cache.size());
+            // 迭代时每个key只出现一次
+            assertEquals(expected, cache.asMap().keySet().stream().count());
+            assertEquals(expected, cache.asMap().keySet().stream().distinct().count());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.bsren.cache;
+
+import com.bsren.cache.entry.SortedBin;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SortedBinTest {
+
+    /**
+     * hash全部相同的key，可比较，顺序和equals一致
+     */
+    static final class Colliding implements Comparable<Colliding> {
+        final int id;
+
+        Colliding(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Colliding) && ((Colliding) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public int compareTo(Colliding o) {
+            return Integer.compare(id, o.id);
+        }
+    }
+
+    static <K, V> LocalCache.Segment<K, V> onlySegment(Cache<K, V> cache) {
+        return ((LocalManualCache<K, V>) cache).localCache.segments[0];
+    }
+
+    static <K, V> int binCount(Cache<K, V> cache) {
+        AtomicReferenceArray<ReferenceEntry<K, V>> table = onlySegment(cache).table;
+        int bins = 0;
+        for (int i = 0; i < table.length(); i++) {
+            if (table.get(i) instanceof SortedBin) {
+                bins++;
+            }
+        }
+        return bins;
+    }
+
+    @Test
+    public void equalKeysOfDifferentClassesAreFound() {
+        Cache<Object, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .build();
+        // [i, -31 * i]的hash都是961，落在同一个bucket中建成bin
+        List<List<Integer>> keys = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            keys.add(new ArrayList<>(Arrays.asList(i, -31 * i)));
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            cache.put(keys.get(i), i);
+        }
+        assertEquals(1, binCount(cache));
+
+        for (int i = 0; i < keys.size(); i++) {
+            LinkedList<Integer> other = new LinkedList<>(keys.get(i));
+            assertEquals(Integer.valueOf(i), cache.getIfPresent(other));
+            cache.put(other, 100 + i);
+            assertEquals(Integer.valueOf(100 + i), cache.getIfPresent(keys.get(i)));
+        }
+        assertEquals(keys.size(), cache.size());
+
+        assertNull(cache.getIfPresent(new LinkedList<>(Arrays.asList(12, -31 * 12))));
+    }
+
+    @Test
+    public void removalsKeepTheBinConsistent() {
+        Cache<Colliding, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .build();
+        int n = 40;
+        for (int i = 0; i < n; i++) {
+            cache.put(new Colliding(i), i);
+        }
+        assertEquals(1, binCount(cache));
+
+        // 从中间、链表头和链表尾删，删除会复制排在前面的entry
+        int[] order = {20, 39, 0, 5, 33, 17, 1, 38, 10, 25};
+        boolean[] removed = new boolean[n];
+        for (int r : order) {
+            cache.invalidate(new Colliding(r));
+            removed[r] = true;
+            for (int i = 0; i < n; i++) {
+                assertEquals(removed[i] ? null : Integer.valueOf(i), cache.getIfPresent(new Colliding(i)));
+            }
+        }
+        // 删除后写入找到的是复制出来的entry，不会再插一个
+        for (int i = 0; i < n; i++) {
+            if (!removed[i]) {
+                cache.put(new Colliding(i), -i);
+            }
+        }
+        assertEquals(n - order.length, cache.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(removed[i] ? null : Integer.valueOf(-i), cache.getIfPresent(new Colliding(i)));
+        }
+
+        for (int i = 0; i < n; i++) {
+            cache.invalidate(new Colliding(i));
+        }
+        assertEquals(0, binCount(cache));
+        assertEquals(0, cache.size());
+        assertNull(cache.getIfPresent(new Colliding(3)));
+    }
+
+    @Test
+    public void readersFindKeptKeysWhileTheBinChanges() throws Throwable {
+        Cache<Colliding, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .build();
+        int kept = 16;
+        for (int i = 0; i < kept; i++) {
+            cache.put(new Colliding(2 * i), i);
+        }
+        ResizeTest.runWithReaders(3, () -> {
+            // 奇数的key不停地加进bin又删掉，偶数的key一直在
+            for (int round = 0; round < 2000; round++) {
+                for (int i = 0; i < kept; i++) {
+                    cache.put(new Colliding(2 * i + 1), -i);
+                }
+                for (int i = kept - 1; i >= 0; i -= 2) {
+                    cache.invalidate(new Colliding(2 * i + 1));
+                }
+                for (int i = 0; i < kept; i++) {
+                    cache.invalidate(new Colliding(2 * i + 1));
+                }
+            }
+        }, () -> {
+            for (int i = 0; i < kept; i++) {
+                assertEquals(Integer.valueOf(i), cache.getIfPresent(new Colliding(2 * i)));
+            }
+        });
+        assertEquals(kept, cache.size());
+        assertEquals(1, binCount(cache));
+    }
+}
@@ -0,0 +1,50 @@
+package com.bsren.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrimToSizeTest {
+
+    static LocalCache.Segment<Integer, Integer> onlySegment(Cache<Integer, Integer> cache) {
+        return ((LocalManualCache<Integer, Integer>) cache).localCache.segments[0];
+    }
+
+    @Test
+    public void trimsToTheSmallestTableThatHoldsTheEntries() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .build();
+        for (int k = 0; k < 1000; k++) {
+            cache.put(k, k);
+        }
+        for (int k = 500; k < 1000; k++) {
+            cache.invalidate(k);
+        }
+        cache.cleanUp();
+        // 负载1/4，维护不会缩容
+        assertEquals(2048, onlySegment(cache).table.length());
+
+        cache.trimToSize();
+        assertEquals(1024, onlySegment(cache).table.length());
+        for (int k = 0; k < 1000; k++) {
+            assertEquals((k < 500) ? Integer.valueOf(k) : null, cache.getIfPresent(k));
+        }
+    }
+
+    @Test
+    public void neverTrimsBelowTheInitialCapacity() {
+        Cache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .initialCapacity(256)
+                .build();
+        for (int k = 0; k < 1000; k++) {
+            cache.put(k, k);
+        }
+        for (int k = 0; k < 1000; k++) {
+            cache.invalidate(k);
+        }
+        cache.trimToSize();
+        assertEquals(256, onlySegment(cache).table.length());
+    }
+}
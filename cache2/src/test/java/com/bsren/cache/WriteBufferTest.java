@@ -0,0 +1,129 @@
+package com.bsren.cache;
+
+import com.bsren.cache.entry.StrongEntry;
+import com.bsren.cache.queue.WriteBuffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBufferTest {
+
+    static final int MAX_WEIGHT = 1000;
+
+    static final int OVERSIZED = 5000;
+
+    static Cache<Integer, Integer> newCache() {
+        return CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(MAX_WEIGHT)
+                .<Integer, Integer>weigher((k, v) -> v)
+                .build();
+    }
+
+    /**
+     * size()和能读到的entry个数一致，比整个cache还重的entry都被驱逐了
+     */
+    static void assertConsistent(Cache<Integer, Integer> cache, int keys) {
+        cache.cleanUp();
+        int readable = 0;
+        for (int k = 0; k < keys; k++) {
+            Integer v = cache.getIfPresent(k);
+            if (v != null) {
+                assertTrue("oversized entry " + k + " still readable", v <= MAX_WEIGHT);
+                readable++;
+            }
+        }
+        assertEquals(readable, cache.size());
+        assertEquals(readable, cache.asMap().size());
+    }
+
+    @Test
+    public void oversizedWritesFillingTheBufferKeepChainsIntact() {
+        Cache<Integer, Integer> cache = newCache();
+        int keys = 400;
+        for (int round = 0; round < 5; round++) {
+            for (int k = 0; k < keys; k++) {
+                cache.put(k, (k % 2 == 0) ? OVERSIZED : 1);
+            }
+        }
+        assertConsistent(cache, keys);
+        for (int k = 0; k < keys; k += 2) {
+            assertNull(cache.getIfPresent(k));
+        }
+    }
+
+    @Test
+    public void concurrentOversizedWritesKeepChainsIntact() throws Exception {
+        Cache<Integer, Integer> cache = newCache();
+        int keys = 2000;
+        int threads = 4;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                for (int round = 0; round < 20; round++) {
+                    for (int k = offset; k < keys; k += threads) {
+                        cache.put(k, ((k + round) % 3 == 0) ? OVERSIZED : 1);
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertConsistent(cache, keys);
+    }
+
+    @Test
+    public void bufferReplaysEventsInOrderAndRejectsWhenFull() {
+        WriteBuffer<Integer, Integer> buffer = new WriteBuffer<>(4);
+        List<ReferenceEntry<Integer, Integer>> entries = new ArrayList<>();
+        for (int k = 0; k < 4; k++) {
+            entries.add(new StrongEntry<>(k, k, null));
+        }
+        List<String> replayed = new ArrayList<>();
+        WriteBuffer.Handler<Integer, Integer> handler = new WriteBuffer.Handler<Integer, Integer>() {
+            @Override
+            public void onWrite(ReferenceEntry<Integer, Integer> e, int weight, int previousWeight) {
+                replayed.add("write " + e.getKey() + " " + weight + " " + previousWeight);
+            }
+
+            @Override
+            public void onRemoval(ReferenceEntry<Integer, Integer> e, int weight) {
+                replayed.add("remove " + e.getKey() + " " + weight);
+            }
+        };
+
+        // 绕过一圈之后顺序和权重都不变
+        for (int round = 0; round < 3; round++) {
+            replayed.clear();
+            assertTrue(buffer.offerWrite(entries.get(0), 1, 0));
+            assertTrue(buffer.offerWrite(entries.get(1), 2, 0));
+            assertTrue(buffer.offerWrite(entries.get(0), 3, 1));
+            assertTrue(buffer.offerRemoval(entries.get(1), 2));
+            assertFalse(buffer.offerWrite(entries.get(2), 1, 0));
+            assertEquals(4, buffer.size());
+
+            assertEquals(4, buffer.drainTo(handler));
+            assertEquals(0, buffer.size());
+            assertEquals(Arrays.asList("write 0 1 0", "write 1 2 0", "write 0 3 1", "remove 1 2"), replayed);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.bsren.cache.loading;
+
+import com.bsren.cache.CacheBuilder;
+import com.bsren.cache.CacheLoader;
+import com.bsren.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchingCacheLoaderTest {
+
+    final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * 记下每次loadAll的key，key为负数时不返回它的value
+     */
+    static class RecordingLoader extends CacheLoader<Integer, Integer> {
+        final List<List<Integer>> batches = new ArrayList<>();
+        final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public Integer load(Integer key) {
+            loads.incrementAndGet();
+            return key * 10;
+        }
+
+        @Override
+        public synchronized Map<Integer, Integer> loadAll(Iterable<? extends Integer> keys) {
+            List<Integer> batch = new ArrayList<>();
+            Map<Integer, Integer> values = new HashMap<>();
+            for (Integer key : keys) {
+                batch.add(key);
+                if (key >= 0) {
+                    values.put(key, key * 10);
+                }
+            }
+            batches.add(batch);
+            return values;
+        }
+
+        synchronized List<List<Integer>> batches() {
+            return new ArrayList<>(batches);
+        }
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    static <V> List<ListenableFuture<V>> submit(BatchingCacheLoader<Integer, V> loader, ExecutorService executor,
+                                                Integer... keys) {
+        List<ListenableFuture<V>> futures = new ArrayList<>();
+        for (Integer key : keys) {
+            futures.add(loader.asyncLoad(key, executor));
+        }
+        return futures;
+    }
+
+    @Test
+    public void loadsWithinTheWindowShareOneLoadAll() throws Exception {
+        RecordingLoader delegate = new RecordingLoader();
+        BatchingCacheLoader<Integer, Integer> loader =
+                new BatchingCacheLoader<>(delegate, TimeUnit.MILLISECONDS.toNanos(200), 100);
+
+        List<ListenableFuture<Integer>> futures = submit(loader, executor, 1, 2, 3, 2, 4);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(10 * Arrays.asList(1, 2, 3, 2, 4).get(i), (int) futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        // 重复的key只加载一次
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3, 4)), delegate.batches());
+        assertEquals(0, delegate.loads.get());
+    }
+
+    @Test
+    public void fullBatchIsLoadedBeforeTheWindowCloses() throws Exception {
+        RecordingLoader delegate = new RecordingLoader();
+        BatchingCacheLoader<Integer, Integer> loader =
+                new BatchingCacheLoader<>(delegate, TimeUnit.SECONDS.toNanos(30), 3);
+
+        List<ListenableFuture<Integer>> full = submit(loader, executor, 1, 2, 3);
+        for (ListenableFuture<Integer> future : full) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        // 下一个key开启了新的batch，要等窗口结束
+        ListenableFuture<Integer> next = loader.asyncLoad(4, executor);
+        Thread.sleep(100);
+        assertFalse(next.isDone());
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3)), delegate.batches());
+
+        submit(loader, executor, 5, 6);
+        assertEquals(40, (int) next.get(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6)), delegate.batches());
+    }
+
+    @Test
+    public void partialBatchIsLoadedWhenTheWindowCloses() throws Exception {
+        RecordingLoader delegate = new RecordingLoader();
+        long window = TimeUnit.MILLISECONDS.toNanos(100);
+        BatchingCacheLoader<Integer, Integer> loader = new BatchingCacheLoader<>(delegate, window, 100);
+
+        long start = System.nanoTime();
+        List<ListenableFuture<Integer>> futures = submit(loader, executor, 1, 2);
+        assertEquals(20, (int) futures.get(1).get(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= window);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), delegate.batches());
+    }
+
+    @Test
+    public void missingKeysAndFailuresReachEveryLoad() throws Exception {
+        RecordingLoader delegate = new RecordingLoader();
+        BatchingCacheLoader<Integer, Integer> loader =
+                new BatchingCacheLoader<>(delegate, TimeUnit.MILLISECONDS.toNanos(50), 100);
+        List<ListenableFuture<Integer>> futures = submit(loader, executor, 1, -1);
+        assertEquals(10, (int) futures.get(0).get(10, TimeUnit.SECONDS));
+        // 缺少的key得到null，由cache当作加载失败
+        assertNull(futures.get(1).get(10, TimeUnit.SECONDS));
+
+        BatchingCacheLoader<Integer, Integer> failing = new BatchingCacheLoader<>(new CacheLoader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public Map<Integer, Integer> loadAll(Iterable<? extends Integer> keys) {
+                throw new IllegalStateException("down");
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(50), 100);
+        for (ListenableFuture<Integer> future : submit(failing, executor, 1, 2)) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void loaderWithoutLoadAllLoadsEachKey() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        BatchingCacheLoader<Integer, Integer> loader = new BatchingCacheLoader<>(new CacheLoader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                loads.incrementAndGet();
+                return key * 10;
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(50), 100);
+
+        List<ListenableFuture<Integer>> futures = submit(loader, executor, 1, 2, 3);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(10 * (i + 1), (int) futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void concurrentMissesOfACacheAreBatched() throws Exception {
+        RecordingLoader delegate = new RecordingLoader();
+        int keys = 8;
+        LoadingCache<Integer, Integer> cache = CacheBuilder.newBuilder()
+                .batchLoads(10, TimeUnit.SECONDS, keys)
+                .build(delegate);
+
+        CountDownLatch done = new CountDownLatch(keys);
+        AtomicInteger wrong = new AtomicInteger();
+        for (int k = 0; k < keys; k++) {
+            int key = k;
+            executor.execute(() -> {
+                try {
+                    if (cache.get(key) != key * 10) {
+                        wrong.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    wrong.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        // 窗口很长，只有凑满一个batch才能这么快完成
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, wrong.get());
+        assertEquals(1, delegate.batches().size());
+        assertEquals(keys, delegate.batches().get(0).size());
+        assertEquals(0, delegate.loads.get());
+    }
+}
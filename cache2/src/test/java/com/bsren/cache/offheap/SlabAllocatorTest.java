@@ -0,0 +1,41 @@
+package com.bsren.cache.offheap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class SlabAllocatorTest {
+
+    @Test
+    public void neverReservesMoreThanTheBoundRoundedUpToASlab() {
+        SlabAllocator slabs = new SlabAllocator(SlabAllocator.SLAB_SIZE + 1);
+        long small = slabs.allocate(SlabAllocator.MIN_CHUNK_SIZE);
+        long large = slabs.allocate(SlabAllocator.SLAB_SIZE);
+        assertNotEquals(SlabAllocator.NO_ADDRESS, small);
+        assertNotEquals(SlabAllocator.NO_ADDRESS, large);
+        // 两个slab都分给了各自的size class，别的size class分配不到
+        assertEquals(SlabAllocator.NO_ADDRESS, slabs.allocate(1024));
+        assertEquals(2L * SlabAllocator.SLAB_SIZE, slabs.reservedBytes());
+
+        // 空出来的slab可以分给别的size class
+        slabs.free(large);
+        assertNotEquals(SlabAllocator.NO_ADDRESS, slabs.allocate(1024));
+        assertEquals(2L * SlabAllocator.SLAB_SIZE, slabs.reservedBytes());
+    }
+
+    @Test
+    public void freedChunksAreReused() {
+        SlabAllocator slabs = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        int chunks = SlabAllocator.SLAB_SIZE / 4096;
+        long[] addresses = new long[chunks];
+        for (int i = 0; i < chunks; i++) {
+            addresses[i] = slabs.allocate(4000);
+            assertNotEquals(SlabAllocator.NO_ADDRESS, addresses[i]);
+        }
+        assertEquals(SlabAllocator.NO_ADDRESS, slabs.allocate(4000));
+        slabs.free(addresses[7]);
+        assertEquals(addresses[7], slabs.allocate(4000));
+        assertEquals((long) SlabAllocator.SLAB_SIZE, slabs.usedBytes());
+    }
+}
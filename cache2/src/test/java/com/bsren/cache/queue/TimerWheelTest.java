@@ -0,0 +1,98 @@
+package com.bsren.cache.queue;
+
+import com.bsren.cache.ReferenceEntry;
+import com.bsren.cache.entry.StrongWriteEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    static ReferenceEntry<Integer, Integer> entry(int key, long variableTime) {
+        ReferenceEntry<Integer, Integer> e = new StrongWriteEntry<>(key, key, null);
+        e.setVariableTime(variableTime);
+        return e;
+    }
+
+    @Test
+    public void entriesExpireInOrderAcrossBuckets() {
+        TimerWheel<Integer, Integer> wheel = new TimerWheel<>(0);
+        // 每一层都有entry，还有落到最外层的
+        long[] durations = {
+                TimeUnit.MILLISECONDS.toNanos(500),
+                TimeUnit.SECONDS.toNanos(3),
+                TimeUnit.SECONDS.toNanos(59),
+                TimeUnit.MINUTES.toNanos(2),
+                TimeUnit.MINUTES.toNanos(61),
+                TimeUnit.HOURS.toNanos(3),
+                TimeUnit.HOURS.toNanos(30),
+                TimeUnit.DAYS.toNanos(2),
+                TimeUnit.DAYS.toNanos(10),
+        };
+        List<ReferenceEntry<Integer, Integer>> entries = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 300; i++) {
+            long duration = durations[i % durations.length] + TimeUnit.MILLISECONDS.toNanos(random.nextInt(30_000));
+            entries.add(entry(i, duration));
+        }
+        // 倒着放入，先放的不会因此先出来
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            wheel.schedule(entries.get(i));
+        }
+
+        // 每个entry都在它的过期时间之后、两步之内出来，所以不管在哪一层，出来的顺序和过期时间的顺序只差一个tick
+        long step = TimeUnit.SECONDS.toNanos(1);
+        long end = TimeUnit.DAYS.toNanos(11);
+        int expired = 0;
+        for (long now = step; now <= end; now += step) {
+            for (ReferenceEntry<Integer, Integer> e : wheel.advance(now)) {
+                long time = e.getVariableTime();
+                assertTrue("entry " + e.getKey() + " expired early at " + now, time <= now);
+                assertTrue("entry " + e.getKey() + " expired late at " + now, now - time < 2 * step);
+                assertFalse(wheel.isScheduled(e));
+                expired++;
+            }
+        }
+        assertEquals(entries.size(), expired);
+    }
+
+    @Test
+    public void rescheduledEntryMovesToItsNewBucket() {
+        TimerWheel<Integer, Integer> wheel = new TimerWheel<>(0);
+        ReferenceEntry<Integer, Integer> early = entry(1, TimeUnit.SECONDS.toNanos(2));
+        ReferenceEntry<Integer, Integer> late = entry(2, TimeUnit.HOURS.toNanos(2));
+        wheel.schedule(early);
+        wheel.schedule(late);
+
+        // 读之后过期时间推迟到一小时以后，另一个提前到一秒之内
+        early.setVariableTime(TimeUnit.HOURS.toNanos(1));
+        wheel.reschedule(early);
+        late.setVariableTime(TimeUnit.MILLISECONDS.toNanos(500));
+        wheel.reschedule(late);
+
+        List<ReferenceEntry<Integer, Integer>> due = wheel.advance(TimeUnit.SECONDS.toNanos(3));
+        assertEquals(1, due.size());
+        assertEquals(2, (int) due.get(0).getKey());
+        assertTrue(wheel.advance(TimeUnit.MINUTES.toNanos(59)).isEmpty());
+        due = wheel.advance(TimeUnit.MINUTES.toNanos(62));
+        assertEquals(1, due.size());
+        assertEquals(1, (int) due.get(0).getKey());
+    }
+
+    @Test
+    public void expirationDelayPointsAtTheEarliestBucket() {
+        TimerWheel<Integer, Integer> wheel = new TimerWheel<>(0);
+        assertEquals(Long.MAX_VALUE, wheel.getExpirationDelay());
+        wheel.schedule(entry(1, TimeUnit.HOURS.toNanos(5)));
+        wheel.schedule(entry(2, TimeUnit.SECONDS.toNanos(10)));
+        long delay = wheel.getExpirationDelay();
+        assertTrue("delay " + delay, delay > 0 && delay <= TimeUnit.SECONDS.toNanos(10));
+    }
+}